@@ -0,0 +1,86 @@
+package test.gov.cdc.izgateway.v2tofhir;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+import gov.cdc.izgw.v2tofhir.converter.MessageParser;
+
+/**
+ * Benchmarks MessageParser.convert() on the messages in messages.txt.
+ *
+ * Each operation converts every test message once.
+ *
+ * @author Audacious Inquiry
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ConversionBenchmark extends TestBase {
+	private List<String> texts;
+	private List<Message> messages;
+	private MessageParser parser;
+
+	/**
+	 * Load the test messages.
+	 */
+	@Setup
+	public void setup() {
+		texts = TEST_MESSAGES.stream().map(TestData::getTestData).toList();
+		messages = texts.stream().map(TestBase::parse).filter(Objects::nonNull).toList();
+		parser = new MessageParser();
+	}
+
+	/**
+	 * Convert the parsed test messages with a new MessageParser for each message.
+	 * @param bh	The blackhole
+	 */
+	@Benchmark
+	public void convertMessage(Blackhole bh) {
+		for (Message msg: messages) {
+			bh.consume(new MessageParser().convert(msg));
+		}
+	}
+
+	/**
+	 * Convert the parsed test messages reusing a MessageParser.
+	 * @param bh	The blackhole
+	 */
+	@Benchmark
+	public void convertMessageReusingParser(Blackhole bh) {
+		for (Message msg: messages) {
+			bh.consume(parser.convert(msg));
+		}
+	}
+
+	/**
+	 * Parse and convert the text of the test messages.
+	 * @param bh	The blackhole
+	 * @throws HL7Exception	If a message cannot be parsed
+	 */
+	@Benchmark
+	public void convertText(Blackhole bh) throws HL7Exception {
+		for (String text: texts) {
+			Bundle b = parser.convert(text);
+			bh.consume(b);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package test.gov.cdc.izgateway.v2tofhir;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ca.uhn.hl7v2.model.Type;
+import gov.cdc.izgw.v2tofhir.converter.DatatypeConverter;
+
+/**
+ * Benchmarks the DatatypeConverter.to* methods on the fields of the test segments
+ * found in messages.txt and segments.txt.
+ *
+ * Each operation converts every test field to the given FHIR type once.
+ *
+ * @author Audacious Inquiry
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatatypeConverterBenchmark extends TestBase {
+	/** The FHIR type to convert to */
+	@Param({
+		"Address", "CodeableConcept", "Coding", "ContactPoint", "DateTimeType", "DateType", "DecimalType",
+		"HumanName", "Identifier", "InstantType", "IntegerType", "Quantity", "StringType", "TimeType"
+	})
+	public String fhirType;
+
+	private List<Type> fields;
+	private Class<? extends IBase> clazz;
+
+	/**
+	 * Load the test fields.
+	 * @throws ClassNotFoundException If fhirType is not a FHIR type
+	 */
+	@Setup
+	public void setup() throws ClassNotFoundException {
+		fields = new ArrayList<>(getTestFields(null));
+		clazz = Class.forName("org.hl7.fhir.r4.model." + fhirType).asSubclass(IBase.class);
+	}
+
+	/**
+	 * Convert every test field to the FHIR type.
+	 * @param bh	The blackhole
+	 */
+	@Benchmark
+	public void convert(Blackhole bh) {
+		for (Type t: fields) {
+			bh.consume(DatatypeConverter.convert(clazz, t, null));
+		}
+	}
+}
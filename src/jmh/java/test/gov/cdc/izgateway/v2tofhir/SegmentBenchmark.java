@@ -0,0 +1,65 @@
+package test.gov.cdc.izgateway.v2tofhir;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ca.uhn.hl7v2.model.Segment;
+import gov.cdc.izgw.v2tofhir.converter.MessageParser;
+
+/**
+ * Benchmarks the segment parsers on the test segments of each type
+ * found in messages.txt and segments.txt.
+ *
+ * Each operation converts every test segment of the given type once.
+ *
+ * @author Audacious Inquiry
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentBenchmark extends TestBase {
+	/** The segment type to benchmark */
+	@Param({ "DSC", "ERR", "EVN", "MRG", "MSA", "MSH", "NK1", "OBX", "ORC", "PD1", "PID", "PV1", "QAK", "QID", "QPD", "RCP", "RXA", "RXR" })
+	public String segmentName;
+
+	private List<Segment> segments;
+	private MessageParser parser;
+
+	/**
+	 * Load the test segments of the given type.
+	 */
+	@Setup
+	public void setup() {
+		segments = getTestSegments(segmentName).stream().map(NamedSegment::segment).toList();
+		parser = new MessageParser();
+	}
+
+	/**
+	 * Convert each segment into a new bundle.
+	 * @param bh	The blackhole
+	 */
+	@Benchmark
+	public void parseSegment(Blackhole bh) {
+		for (Segment segment: segments) {
+			parser.reset();
+			bh.consume(parser.createBundle(Collections.singleton(segment)));
+		}
+	}
+}
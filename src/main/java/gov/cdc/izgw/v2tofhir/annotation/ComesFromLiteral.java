@@ -0,0 +1,162 @@
+package gov.cdc.izgw.v2tofhir.annotation;
+
+import java.lang.annotation.Annotation;
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.hl7.fhir.instance.model.api.IBase;
+
+/**
+ * ComesFromLiteral is an instance of the ComesFrom annotation created without reflection.
+ *
+ * It is used by the parser index generated by ParserIndexProcessor at build time, so that
+ * the field handlers for a parser can be created without reading annotations at runtime.
+ * Instances are equal to (and have the same hash code as) a ComesFrom annotation with the
+ * same values, as required by the Annotation interface.
+ *
+ * @see gov.cdc.izgw.v2tofhir.annotation.processing.ParserIndexProcessor
+ * @author Audacious Inquiry
+ */
+public final class ComesFromLiteral implements ComesFrom { // NOSONAR Implementing the annotation interface is intended
+	private final String path;
+	private final String[] also;
+	private final String[] source;
+	private final int field;
+	private final int component;
+	private final String comment;
+	private final String map;
+	private final String table;
+	private final String fixed;
+	private final Class<? extends IBase> fhir;
+	private final String type;
+	private final int priority;
+
+	/**
+	 * Create a ComesFrom annotation with the given values, in the order they are declared in ComesFrom.
+	 * @param path	The value for path
+	 * @param also	The value for also
+	 * @param source	The value for source
+	 * @param field	The value for field
+	 * @param component	The value for component
+	 * @param comment	The value for comment
+	 * @param map	The value for map
+	 * @param table	The value for table
+	 * @param fixed	The value for fixed
+	 * @param fhir	The value for fhir
+	 * @param type	The value for type
+	 * @param priority	The value for priority
+	 */
+	public ComesFromLiteral( // NOSONAR One parameter per annotation member
+		String path, String[] also, String[] source, int field, int component, String comment,
+		String map, String table, String fixed, Class<? extends IBase> fhir, String type, int priority
+	) {
+		this.path = path;
+		this.also = also;
+		this.source = source;
+		this.field = field;
+		this.component = component;
+		this.comment = comment;
+		this.map = map;
+		this.table = table;
+		this.fixed = fixed;
+		this.fhir = fhir;
+		this.type = type;
+		this.priority = priority;
+	}
+
+	@Override
+	public Class<? extends Annotation> annotationType() {
+		return ComesFrom.class;
+	}
+
+	@Override
+	public String path() {
+		return path;
+	}
+
+	@Override
+	public String[] also() {
+		return also.clone();
+	}
+
+	@Override
+	public String[] source() {
+		return source.clone();
+	}
+
+	@Override
+	public int field() {
+		return field;
+	}
+
+	@Override
+	public int component() {
+		return component;
+	}
+
+	@Override
+	public String comment() {
+		return comment;
+	}
+
+	@Override
+	public String map() {
+		return map;
+	}
+
+	@Override
+	public String table() {
+		return table;
+	}
+
+	@Override
+	public String fixed() {
+		return fixed;
+	}
+
+	@Override
+	public Class<? extends IBase> fhir() {
+		return fhir;
+	}
+
+	@Override
+	public String type() {
+		return type;
+	}
+
+	@Override
+	public int priority() {
+		return priority;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		return obj instanceof ComesFrom that &&
+			path.equals(that.path()) && Arrays.equals(also, that.also()) && Arrays.equals(source, that.source()) &&
+			field == that.field() && component == that.component() && comment.equals(that.comment()) &&
+			map.equals(that.map()) && table.equals(that.table()) && fixed.equals(that.fixed()) &&
+			fhir.equals(that.fhir()) && type.equals(that.type()) && priority == that.priority();
+	}
+
+	@Override
+	public int hashCode() {
+		// As specified by Annotation.hashCode()
+		return memberHash("path", path) + memberHash("also", Arrays.hashCode(also)) +
+			memberHash("source", Arrays.hashCode(source)) + memberHash("field", field) +
+			memberHash("component", component) + memberHash("comment", comment) +
+			memberHash("map", map) + memberHash("table", table) + memberHash("fixed", fixed) +
+			memberHash("fhir", fhir) + memberHash("type", type) + memberHash("priority", priority);
+	}
+
+	private static int memberHash(String name, Object value) {
+		return (127 * name.hashCode()) ^ Objects.hashCode(value);
+	}
+
+	@Override
+	public String toString() {
+		return "@" + ComesFrom.class.getName() + "(path=\"" + path + "\", field=" + field + ", component=" + component + ")";
+	}
+}
@@ -0,0 +1,314 @@
+package gov.cdc.izgw.v2tofhir.annotation.processing;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * ParserIndexProcessor generates a ParserIndex for the parsers annotated with &#64;Produces, so
+ * that parsers and their field handlers can be found without reflection at runtime.
+ *
+ * The generated class, gov.cdc.izgw.v2tofhir.segment.GeneratedParserIndex, maps each segment
+ * name to a factory for its parser, and each parser class to its field handlers.  A field
+ * handler is created for every &#64;ComesFrom annotation on a public method of the parser,
+ * including inherited methods, just as FieldHandler.initFieldHandlers() does using reflection.
+ * The annotation values are compiled into ComesFromLiteral instances, and each method into
+ * a lambda.  The index is registered in META-INF/services so that it is found by ServiceLoader.
+ *
+ * This processor is compiled before the rest of the library (see the compile-processor execution
+ * in pom.xml), and refers to the library's classes only by name.
+ *
+ * @author Audacious Inquiry
+ */
+@SupportedAnnotationTypes(ParserIndexProcessor.PRODUCES)
+public class ParserIndexProcessor extends AbstractProcessor {
+	static final String PRODUCES = "gov.cdc.izgw.v2tofhir.annotation.Produces";
+	private static final String COMES_FROM = "gov.cdc.izgw.v2tofhir.annotation.ComesFrom";
+	private static final String COMES_FROM_LIST = COMES_FROM + ".List";
+	private static final String PACKAGE = "gov.cdc.izgw.v2tofhir.segment";
+	private static final String INDEX = "GeneratedParserIndex";
+	private static final String SERVICE = "META-INF/services/" + PACKAGE + ".ParserIndex";
+	private static final String MESSAGE_PARSER = "gov.cdc.izgw.v2tofhir.converter.MessageParser";
+	/** The ComesFrom members in the order of the ComesFromLiteral constructor arguments */
+	private static final String[] MEMBERS = {
+		"path", "also", "source", "field", "component", "comment", "map", "table", "fixed", "fhir", "type", "priority"
+	};
+	/** The modifiers in the order written by Method.toString() */
+	private static final Set<Modifier> METHOD_MODIFIERS = EnumSet.of(
+		Modifier.PUBLIC, Modifier.PROTECTED, Modifier.PRIVATE, Modifier.ABSTRACT, Modifier.STATIC,
+		Modifier.FINAL, Modifier.SYNCHRONIZED, Modifier.NATIVE, Modifier.STRICTFP
+	);
+	private boolean generated = false;
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		TypeElement produces = processingEnv.getElementUtils().getTypeElement(PRODUCES);
+		if (generated || produces == null) {
+			return false;
+		}
+		// Sort parsers by segment name so that the generated source is stable from build to build
+		Map<String, TypeElement> parsers = new TreeMap<>();
+		for (TypeElement type: ElementFilter.typesIn(roundEnv.getElementsAnnotatedWith(produces))) {
+			if (type.getModifiers().contains(Modifier.ABSTRACT) || !type.getModifiers().contains(Modifier.PUBLIC)) {
+				continue;
+			}
+			String segment = (String) getValues(getAnnotation(type, PRODUCES)).get("segment").getValue();
+			TypeElement other = parsers.put(segment, type);
+			if (other != null) {
+				error(type, "Segment " + segment + " is also produced by " + other.getQualifiedName());
+			}
+		}
+		if (parsers.isEmpty()) {
+			return false;
+		}
+		generated = true;
+		try {
+			writeIndex(parsers);
+			writeService();
+		} catch (IOException e) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Cannot write " + INDEX + ": " + e.getMessage());
+		}
+		return false;
+	}
+
+	private void writeIndex(Map<String, TypeElement> parsers) throws IOException {
+		try (PrintWriter w = new PrintWriter(processingEnv.getFiler().createSourceFile(PACKAGE + "." + INDEX,
+				parsers.values().toArray(new Element[0])).openWriter())) {
+			w.println("package " + PACKAGE + ";");
+			w.println();
+			w.println("import java.util.List;");
+			w.println();
+			w.println("import gov.cdc.izgw.v2tofhir.annotation.ComesFromLiteral;");
+			w.println("import " + MESSAGE_PARSER + ";");
+			w.println();
+			w.println("/**");
+			w.println(" * The ParserIndex for the parsers in this library, generated by " + getClass().getSimpleName() + ".");
+			w.println(" */");
+			w.println("@javax.annotation.processing.Generated(\"" + getClass().getName() + "\")");
+			w.println("public final class " + INDEX + " implements ParserIndex {");
+
+			w.println("\t@Override");
+			w.println("\tpublic Class<? extends StructureParser> getParserClass(String name) {");
+			w.println("\t\tswitch (name) {");
+			for (Map.Entry<String, TypeElement> e: parsers.entrySet()) {
+				w.println("\t\tcase " + literal(e.getKey()) + ": return " + e.getValue().getQualifiedName() + ".class;");
+			}
+			w.println("\t\tdefault: return null;");
+			w.println("\t\t}");
+			w.println("\t}");
+			w.println();
+
+			w.println("\t@Override");
+			w.println("\tpublic StructureParser newParser(String name, MessageParser mp) {");
+			w.println("\t\tswitch (name) {");
+			for (Map.Entry<String, TypeElement> e: parsers.entrySet()) {
+				if (hasFactory(e.getValue())) {
+					w.println("\t\tcase " + literal(e.getKey()) + ": return new " + e.getValue().getQualifiedName() + "(mp);");
+				}
+			}
+			w.println("\t\tdefault: return null;");
+			w.println("\t\t}");
+			w.println("\t}");
+			w.println();
+
+			w.println("\t@Override");
+			w.println("\tpublic List<FieldHandler> getFieldHandlers(AbstractStructureParser p) {");
+			w.println("\t\tswitch (p.getClass().getName()) {");
+			for (TypeElement parser: parsers.values()) {
+				w.println("\t\tcase " + literal(binaryName(parser)) + ": return " + handlersMethod(parser) + "(p);");
+			}
+			w.println("\t\tdefault: return null;");
+			w.println("\t\t}");
+			w.println("\t}");
+
+			for (TypeElement parser: parsers.values()) {
+				w.println();
+				writeFieldHandlers(w, parser);
+			}
+			w.println("}");
+		}
+	}
+
+	private void writeFieldHandlers(PrintWriter w, TypeElement parser) {
+		String parserName = parser.getQualifiedName().toString();
+		List<String> handlers = new ArrayList<>();
+		for (ExecutableElement method: ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(parser))) {
+			List<AnnotationMirror> comesFrom = getComesFrom(method);
+			if (comesFrom.isEmpty() || !method.getModifiers().contains(Modifier.PUBLIC)) {
+				continue;
+			}
+			if (method.getParameters().size() != 1 || method.getModifiers().contains(Modifier.STATIC)) {
+				error(method, "@ComesFrom must be on an instance method with one parameter");
+				continue;
+			}
+			String param = processingEnv.getTypeUtils().erasure(method.getParameters().get(0).asType()).toString();
+			String setter = "(o, v) -> ((" + parserName + ") o)." + method.getSimpleName() + "((" + param + ") v)";
+			for (AnnotationMirror from: comesFrom) {
+				handlers.add("new FieldHandler(" + literal(methodToString(method)) + ",\n\t\t\t\t"
+					+ comesFromLiteral(from) + ",\n\t\t\t\t" + param + ".class, " + setter + ", p)");
+			}
+		}
+		w.println("\tprivate static List<FieldHandler> " + handlersMethod(parser) + "(AbstractStructureParser p) {");
+		w.println("\t\treturn List.of(");
+		w.println(handlers.stream().map(h -> "\t\t\t" + h).collect(Collectors.joining(",\n")));
+		w.println("\t\t);");
+		w.println("\t}");
+	}
+
+	private static String handlersMethod(TypeElement parser) {
+		return "get" + parser.getSimpleName() + "Handlers";
+	}
+
+	private void writeService() throws IOException {
+		FileObject service = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", SERVICE);
+		try (Writer w = service.openWriter()) {
+			w.write(PACKAGE + "." + INDEX + "\n");
+		}
+	}
+
+	private boolean hasFactory(TypeElement parser) {
+		for (ExecutableElement c: ElementFilter.constructorsIn(parser.getEnclosedElements())) {
+			if (c.getModifiers().contains(Modifier.PUBLIC) && c.getParameters().size() == 1 &&
+				MESSAGE_PARSER.equals(processingEnv.getTypeUtils().erasure(c.getParameters().get(0).asType()).toString())) {
+				return true;
+			}
+		}
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+			"No public constructor accepting a MessageParser, parser cannot be created from the index", parser);
+		return false;
+	}
+
+	private List<AnnotationMirror> getComesFrom(ExecutableElement method) {
+		List<AnnotationMirror> l = new ArrayList<>();
+		for (AnnotationMirror a: method.getAnnotationMirrors()) {
+			String name = ((TypeElement) a.getAnnotationType().asElement()).getQualifiedName().toString();
+			if (COMES_FROM.equals(name)) {
+				l.add(a);
+			} else if (COMES_FROM_LIST.equals(name)) {
+				for (Object v: (List<?>) getValues(a).get("value").getValue()) {
+					l.add((AnnotationMirror) ((AnnotationValue) v).getValue());
+				}
+			}
+		}
+		return l;
+	}
+
+	private AnnotationMirror getAnnotation(Element e, String annotationName) {
+		for (AnnotationMirror a: e.getAnnotationMirrors()) {
+			if (((TypeElement) a.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotationName)) {
+				return a;
+			}
+		}
+		return null;
+	}
+
+	private Map<String, AnnotationValue> getValues(AnnotationMirror a) {
+		Map<String, AnnotationValue> values = new TreeMap<>();
+		for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e:
+			processingEnv.getElementUtils().getElementValuesWithDefaults(a).entrySet()) {
+			values.put(e.getKey().getSimpleName().toString(), e.getValue());
+		}
+		return values;
+	}
+
+	private String comesFromLiteral(AnnotationMirror from) {
+		Map<String, AnnotationValue> values = getValues(from);
+		StringBuilder b = new StringBuilder("new ComesFromLiteral(");
+		for (String member: MEMBERS) {
+			if (b.charAt(b.length() - 1) != '(') {
+				b.append(", ");
+			}
+			b.append(valueLiteral(values.get(member).getValue()));
+		}
+		return b.append(")").toString();
+	}
+
+	private String valueLiteral(Object value) {
+		if (value instanceof String s) {
+			return literal(s);
+		} else if (value instanceof TypeMirror t) {
+			return processingEnv.getTypeUtils().erasure(t).toString() + ".class";
+		} else if (value instanceof List<?> l) {
+			return l.stream().map(v -> valueLiteral(((AnnotationValue) v).getValue()))
+				.collect(Collectors.joining(", ", "new String[] { ", " }"));
+		}
+		return String.valueOf(value);
+	}
+
+	private String literal(String s) {
+		return processingEnv.getElementUtils().getConstantExpression(s);
+	}
+
+	/**
+	 * Produce the same string as Method.toString() does for the method, so that field handlers
+	 * from the index sort and report errors exactly as those created by reflection.
+	 * @param method	The method
+	 * @return	The string Method.toString() would return
+	 */
+	private String methodToString(ExecutableElement method) {
+		StringBuilder b = new StringBuilder();
+		for (Modifier m: METHOD_MODIFIERS) {
+			if (method.getModifiers().contains(m)) {
+				b.append(m).append(' ');
+			}
+		}
+		b.append(typeName(method.getReturnType())).append(' ')
+			.append(binaryName((TypeElement) method.getEnclosingElement())).append('.')
+			.append(method.getSimpleName())
+			.append(method.getParameters().stream().map(p -> typeName(p.asType())).collect(Collectors.joining(",", "(", ")")));
+		if (!method.getThrownTypes().isEmpty()) {
+			b.append(method.getThrownTypes().stream().map(this::typeName).collect(Collectors.joining(",", " throws ", "")));
+		}
+		return b.toString();
+	}
+
+	/** Equivalent of Class.getTypeName() for the erasure of a type */
+	private String typeName(TypeMirror t) {
+		TypeMirror erased = processingEnv.getTypeUtils().erasure(t);
+		if (erased.getKind() == TypeKind.ARRAY) {
+			return typeName(((ArrayType) erased).getComponentType()) + "[]";
+		} else if (erased.getKind() == TypeKind.DECLARED) {
+			return binaryName((TypeElement) ((DeclaredType) erased).asElement());
+		}
+		return erased.toString();
+	}
+
+	private String binaryName(TypeElement type) {
+		return processingEnv.getElementUtils().getBinaryName(type).toString();
+	}
+
+	private void error(Element e, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, e);
+	}
+}
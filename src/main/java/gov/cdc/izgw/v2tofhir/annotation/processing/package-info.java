@@ -0,0 +1,5 @@
+/**
+ * This package contains the annotation processor that generates the parser index from the
+ * &#64;Produces and &#64;ComesFrom annotations on segment parsers at build time.
+ */
+package gov.cdc.izgw.v2tofhir.annotation.processing;
@@ -0,0 +1,111 @@
+package gov.cdc.izgw.v2tofhir.converter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * BatchConverter converts the messages in an HL7 V2 batch file or stream of messages.
+ *
+ * Messages are read one at a time using a BatchReader, and converted concurrently by a
+ * ConversionService.  At most window messages are in flight at once, so reading stops
+ * while the converter catches up.  Results are delivered to the caller in the same order
+ * as the messages appeared in the input, on the thread calling convert().
+ *
+ * A message which cannot be converted does not stop the batch; its Result has an error
+ * instead of a Bundle.
+ *
+ * @author Audacious Inquiry
+ */
+public class BatchConverter {
+	/**
+	 * The result of converting one message in a batch.
+	 */
+	@Getter
+	@AllArgsConstructor
+	public static class Result {
+		/** The position of the message in the batch, starting at 0 */
+		private final int index;
+		/** The message text */
+		private final String message;
+		/** The converted bundle, or null if there was an error */
+		private final Bundle bundle;
+		/** The error converting the message, or null if there was none */
+		private final Throwable error;
+	}
+
+	private final ConversionService service;
+	private final int window;
+
+	/**
+	 * Create a BatchConverter.
+	 * @param service	The service used to convert messages.
+	 * @param window	The maximum number of messages being converted at once.
+	 */
+	public BatchConverter(ConversionService service, int window) {
+		if (window < 1) {
+			throw new IllegalArgumentException("window must be at least 1");
+		}
+		this.service = service;
+		this.window = window;
+	}
+
+	/**
+	 * Convert all messages in the input stream.
+	 * @param in	The stream containing the messages.
+	 * @param charset	The character set of the stream.
+	 * @param callback	The callback to receive results, in input order.
+	 * @return	The number of messages read.
+	 * @throws IOException	If an error occurred reading the stream.
+	 */
+	public int convert(InputStream in, Charset charset, Consumer<Result> callback) throws IOException {
+		return convert(new InputStreamReader(in, charset), callback);
+	}
+
+	/**
+	 * Convert all messages from the reader.
+	 * @param r	The reader containing the messages.
+	 * @param callback	The callback to receive results, in input order.
+	 * @return	The number of messages read.
+	 * @throws IOException	If an error occurred reading the messages.
+	 */
+	public int convert(Reader r, Consumer<Result> callback) throws IOException {
+		Deque<CompletableFuture<Result>> inFlight = new ArrayDeque<>(window);
+		int count = 0;
+		try (BatchReader reader = new BatchReader(r)) {
+			while (reader.hasNext()) {
+				if (inFlight.size() >= window) {
+					callback.accept(inFlight.removeFirst().join());
+				}
+				inFlight.addLast(submit(count++, reader.next()));
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			// Deliver what was converted, even if reading failed.
+			while (!inFlight.isEmpty()) {
+				callback.accept(inFlight.removeFirst().join());
+			}
+		}
+		return count;
+	}
+
+	private CompletableFuture<Result> submit(int index, String message) {
+		return service.submit(message).handle((bundle, error) ->
+			new Result(index, message, bundle, error instanceof CompletionException ce ? ce.getCause() : error)
+		);
+	}
+}
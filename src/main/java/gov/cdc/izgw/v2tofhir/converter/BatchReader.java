@@ -0,0 +1,109 @@
+package gov.cdc.izgw.v2tofhir.converter;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * BatchReader reads individual HL7 V2 messages from a stream of messages, such as an HL7 V2 batch
+ * file, without reading the whole stream into memory.
+ *
+ * Segments may be terminated by CR, LF or CRLF.  A new message starts at each MSH segment.  Batch
+ * header and trailer segments (FHS, BHS, BTS and FTS) and blank lines are skipped.  Messages are
+ * returned with segments terminated by CR, as expected by the HAPI PipeParser.
+ *
+ * @author Audacious Inquiry
+ */
+public class BatchReader implements Iterator<String>, Closeable {
+	private final BufferedReader reader;
+	private final StringBuilder segment = new StringBuilder();
+	private StringBuilder message = null;
+	private String next = null;
+	private boolean eof = false;
+
+	/**
+	 * Create a BatchReader for the given reader.
+	 * @param reader	The reader containing the messages.
+	 */
+	public BatchReader(Reader reader) {
+		this.reader = reader instanceof BufferedReader b ? b : new BufferedReader(reader);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null && !eof) {
+			try {
+				next = readMessage();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return next != null;
+	}
+
+	@Override
+	public String next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		String result = next;
+		next = null;
+		return result;
+	}
+
+	private String readMessage() throws IOException {
+		String seg;
+		while ((seg = readSegment()) != null) {
+			if (seg.startsWith("MSH")) {
+				StringBuilder previous = message;
+				message = new StringBuilder(seg).append('\r');
+				if (previous != null) {
+					return previous.toString();
+				}
+			} else if (isBatchSegment(seg)) {
+				// Batch headers and trailers end any message in progress.
+				if (message != null) {
+					String result = message.toString();
+					message = null;
+					return result;
+				}
+			} else if (message != null) {
+				message.append(seg).append('\r');
+			}
+			// Anything else before the first MSH is not part of a message, and is ignored.
+		}
+		eof = true;
+		String result = message == null ? null : message.toString();
+		message = null;
+		return result;
+	}
+
+	private static boolean isBatchSegment(String seg) {
+		return seg.startsWith("FHS") || seg.startsWith("BHS") || seg.startsWith("BTS") || seg.startsWith("FTS");
+	}
+
+	private String readSegment() throws IOException {
+		segment.setLength(0);
+		int c;
+		while ((c = reader.read()) >= 0) {
+			if (c == '\r' || c == '\n') {
+				if (!segment.isEmpty()) {
+					return segment.toString();
+				}
+				// Skip blank lines and the LF of CRLF
+			} else {
+				segment.append((char) c);
+			}
+		}
+		return segment.isEmpty() ? null : segment.toString();
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+}
@@ -0,0 +1,37 @@
+package gov.cdc.izgw.v2tofhir.converter;
+
+/**
+ * ContentPolicy controls how the source message is stored in the DocumentReference
+ * created by MessageParser.convert().
+ *
+ * @author Audacious Inquiry
+ */
+public enum ContentPolicy {
+	/** Store the message only as the attachment data */
+	BYTES,
+	/** Store the message only in the originalText extension on the content */
+	TEXT,
+	/** Store the message both as the attachment data and in the originalText extension (the default) */
+	BOTH,
+	/**
+	 * Store the message externally, and only record its URL and size in the attachment.
+	 * @see MessageParser#setContentStore(java.util.function.Function)
+	 */
+	REFERENCE;
+
+	/**
+	 * Returns true if this policy stores the message as attachment data.
+	 * @return true if this policy stores the message as attachment data.
+	 */
+	public boolean hasBytes() {
+		return this == BYTES || this == BOTH;
+	}
+
+	/**
+	 * Returns true if this policy stores the message in the originalText extension.
+	 * @return true if this policy stores the message in the originalText extension.
+	 */
+	public boolean hasText() {
+		return this == TEXT || this == BOTH;
+	}
+}
@@ -28,6 +28,10 @@ public class Context {
 	 * The event that generated the message, used to provide context during parsing.
 	 */
 	private String eventCode;
+	/**
+	 * The message control id (MSH-10) of the message, used to generate deterministic ids.
+	 */
+	private String messageControlId;
 	/**
 	 * The profile identifiers the message adheres to.
 	 */
@@ -39,7 +43,11 @@ public class Context {
 	/**
 	 * Whether or not Provenance resources should be created. 
 	 */
-	private boolean storingProvenance = true;
+	private volatile boolean storingProvenance = true;
+	/**
+	 * How the source message is stored in the DocumentReference for the message.
+	 */
+	private volatile ContentPolicy contentPolicy = ContentPolicy.BOTH;
 	/**
 	 * Other properties associated with this context.
 	 */
@@ -61,8 +69,10 @@ public class Context {
 	 */
 	public void clear() {
 		properties.clear();
+		profileIds.clear();
 		setBundle(null);
 		setEventCode(null);
+		setMessageControlId(null);
 	}
 	
 	void addProfileId(String profileId) {
@@ -0,0 +1,307 @@
+package gov.cdc.izgw.v2tofhir.converter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Property;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import ca.uhn.hl7v2.model.Composite;
+import ca.uhn.hl7v2.model.ExtraComponents;
+import ca.uhn.hl7v2.model.Primitive;
+import ca.uhn.hl7v2.model.Type;
+import ca.uhn.hl7v2.model.Varies;
+import gov.cdc.izgw.v2tofhir.converter.ConverterRegistry.TableConverter;
+import gov.cdc.izgw.v2tofhir.utils.Mapping;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * ConversionCache is an optional, size bounded cache of the results of converting
+ * HL7 V2 datatypes to FHIR datatypes.
+ *
+ * Messages from the same sender tend to repeat the same coded values, identifiers,
+ * facilities and providers. When the cache is enabled, the converters for the cached
+ * FHIR types in ConverterRegistry look up the result by the V2 datatype, the values of its
+ * components, and the HL7 V2 table before converting.  Every result is a deep copy of the cached
+ * value, so callers can modify it freely.  Since Base.copy() does not copy user data, the cache
+ * records the user data of the converted value and its descendants (e.g., Mapping.ORIGINAL_SYSTEM
+ * and Mapping.ORIGINAL_DISPLAY, which Mapping.reset() uses) and restores it in each copy.
+ *
+ * The cache is disabled by default.  Because mapping tables affect the results of conversion,
+ * the key includes the version of the terminology tables in use, so that values computed from
+ * tables which have since been reloaded are not used, and age out of the cache.
+ *
+ * This class is thread safe.
+ *
+ * @author Audacious Inquiry
+ */
+@Slf4j
+public final class ConversionCache {
+	/** The FHIR types cached when no types are given to enable() */
+	public static final Set<Class<? extends IBase>> DEFAULT_TYPES = Set.of(
+		CodeableConcept.class, Coding.class, CodeType.class, Identifier.class, Organization.class, Practitioner.class
+	);
+	/** The cache key: conversions depend on the V2 type and name and the terminology as well as on the value */
+	private record Key(Class<?> fhirType, Class<?> v2Type, String name, String table, String value, long terminology) {}
+	/** Reads Base.userData, or null if it cannot be read, in which case nothing is cached */
+	private static final MethodHandle USER_DATA = findUserData();
+
+	private static volatile Cache<Key, Cached> cache = null;
+	private static volatile Set<Class<? extends IBase>> types = Set.of();
+
+	private ConversionCache() {}
+
+	/**
+	 * Enable the cache, replacing any existing cache.
+	 * Location should not be cached, because its conversion creates references to other Location resources.
+	 * @param maximumSize	The maximum number of converted values to cache
+	 * @param cachedTypes	The FHIR types to cache, or none to cache DEFAULT_TYPES
+	 */
+	@SafeVarargs
+	public static synchronized void enable(long maximumSize, Class<? extends IBase> ... cachedTypes) {
+		types = cachedTypes.length == 0 ? DEFAULT_TYPES : Set.copyOf(Arrays.asList(cachedTypes));
+		cache = Caffeine.newBuilder().maximumSize(maximumSize).recordStats().build();
+		log.info("Caching up to {} conversions to {}", maximumSize, types);
+	}
+
+	/**
+	 * Disable the cache, discarding its contents.
+	 */
+	public static synchronized void disable() {
+		cache = null;
+		types = Set.of();
+	}
+
+	/**
+	 * @return true if the cache is enabled
+	 */
+	public static boolean isEnabled() {
+		return cache != null;
+	}
+
+	/**
+	 * Discard the contents of the cache, e.g., when mapping tables are changed.
+	 */
+	public static void clear() {
+		Cache<Key, Cached> c = cache;
+		if (c != null) {
+			c.invalidateAll();
+		}
+	}
+
+	/**
+	 * Get the hit and miss statistics for the cache.
+	 * @return	The statistics, or CacheStats.empty() if the cache is disabled.
+	 */
+	public static CacheStats getStats() {
+		Cache<Key, Cached> c = cache;
+		return c == null ? CacheStats.empty() : c.stats();
+	}
+
+	/**
+	 * @return The number of lookups that found a cached value
+	 */
+	public static long getHitCount() {
+		return getStats().hitCount();
+	}
+
+	/**
+	 * @return The number of lookups that did not find a cached value
+	 */
+	public static long getMissCount() {
+		return getStats().missCount();
+	}
+
+	/**
+	 * Wrap a converter so that its results are cached while the cache is enabled for the FHIR type.
+	 * @param <F>	The FHIR datatype
+	 * @param clazz	The class of the FHIR datatype
+	 * @param converter	The converter to wrap
+	 * @return	The wrapped converter
+	 */
+	static <F extends IBase> TableConverter<F> wrap(Class<F> clazz, TableConverter<F> converter) {
+		return (t, table) -> convert(clazz, t, table, converter);
+	}
+
+	private static <F extends IBase> F convert(Class<F> clazz, Type t, String table, TableConverter<F> converter) {
+		Cache<Key, Cached> c = cache;
+		if (c == null || t == null || USER_DATA == null || !types.contains(clazz)) {
+			return converter.convert(t, table);
+		}
+		Key key = new Key(clazz, t.getClass(), t.getName(), table, toKey(t), Mapping.getTerminologyVersion());
+		Cached cached = c.getIfPresent(key);
+		if (cached == null) {
+			// Not computed within the cache, since converters may convert components using other converters
+			cached = Cached.of(converter.convert(t, table));
+			c.put(key, cached);
+		}
+		return clazz.cast(cached.copy());
+	}
+
+	/**
+	 * Get the value of a V2 datatype for use in a key, without the cost of encoding it.
+	 * Each primitive value is preceded by its length, so that different values always have
+	 * different keys.
+	 * @param t	The datatype
+	 * @return	The value for the key
+	 */
+	private static String toKey(Type t) {
+		StringBuilder b = new StringBuilder();
+		appendKey(b, t);
+		return b.toString();
+	}
+
+	private static void appendKey(StringBuilder b, Type t) {
+		if (t instanceof Varies v) {
+			t = v.getData();
+		}
+		if (t instanceof Primitive p) {
+			String value = p.getValue();
+			if (value != null) {
+				b.append(value.length()).append(':').append(value);
+			}
+			b.append(';');
+		} else if (t instanceof Composite comp) {
+			b.append('(');
+			for (Type component: comp.getComponents()) {
+				appendKey(b, component);
+			}
+			b.append(')');
+		}
+		ExtraComponents extra = t == null ? null : t.getExtraComponents();
+		if (extra != null && extra.numComponents() != 0) {
+			b.append('[');
+			for (int i = 0; i < extra.numComponents(); i++) {
+				appendKey(b, extra.getComponent(i).getData());
+			}
+			b.append(']');
+		}
+	}
+
+	/**
+	 * Get the user data of a FHIR element, which Base provides no other means to enumerate.
+	 * @param b	The element
+	 * @return	Its user data, or null if it has none
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> getUserData(Base b) {
+		try {
+			return (Map<String, Object>) USER_DATA.invoke(b);
+		} catch (Throwable e) { // NOSONAR invoke() declares Throwable
+			throw new IllegalStateException("Cannot read user data", e);
+		}
+	}
+
+	private static MethodHandle findUserData() {
+		try {
+			return MethodHandles.privateLookupIn(Base.class, MethodHandles.lookup()).findGetter(Base.class, "userData", Map.class);
+		} catch (NoSuchFieldException | IllegalAccessException e) {
+			log.warn("Conversions will not be cached, user data cannot be copied: {}", e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * A user data value at a location within a converted value.
+	 * @param path	Pairs of child property and value indexes, as given by Base.children(), leading to the element
+	 * @param key	The user data key
+	 * @param value	The user data value, which is a Cached value if it is a FHIR element
+	 */
+	private record UserData(int[] path, String key, Object value) {}
+
+	/**
+	 * A converted value, and the user data of it and its descendants, which Base.copy() does not copy.
+	 * @param value	The converted value, which is never modified, or null
+	 * @param userData	The user data to restore in copies of the value
+	 */
+	private record Cached(IBase value, List<UserData> userData) {
+		static Cached of(IBase value) {
+			Cached cached = new Cached(value, new ArrayList<>());
+			if (value instanceof Base b) {
+				Map<Base, Cached> seen = new IdentityHashMap<>();
+				seen.put(b, cached);
+				collect(b, new int[0], cached.userData(), seen);
+			}
+			return cached;
+		}
+
+		private static void collect(Base b, int[] path, List<UserData> userData, Map<Base, Cached> seen) {
+			Map<String, Object> data = getUserData(b);
+			if (data != null) {
+				for (Map.Entry<String, Object> e: data.entrySet()) {
+					Object v = e.getValue();
+					if (v instanceof Base base) {
+						// Copy FHIR elements (e.g., Mapping.ORIGINAL) so that copies do not share them
+						v = seen.get(base);
+						if (v == null) {
+							Cached nested = new Cached(base, new ArrayList<>());
+							seen.put(base, nested);
+							collect(base, new int[0], nested.userData(), seen);
+							v = nested;
+						}
+					}
+					userData.add(new UserData(path, e.getKey(), v));
+				}
+			}
+			List<Property> children = b.children();
+			for (int i = 0; i < children.size(); i++) {
+				List<Base> values = children.get(i).getValues();
+				for (int j = 0; j < values.size(); j++) {
+					if (values.get(j) != null) {
+						int[] childPath = Arrays.copyOf(path, path.length + 2);
+						childPath[path.length] = i;
+						childPath[path.length + 1] = j;
+						collect(values.get(j), childPath, userData, seen);
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return	A deep copy of the value, including its user data
+		 */
+		IBase copy() {
+			return value instanceof Base ? copy(new IdentityHashMap<>()) : value;
+		}
+
+		/**
+		 * Copy the value, using the copies already made of values its user data refers to
+		 * (e.g., a Reference which refers back to the resource).
+		 * @param copies	The copies made so far
+		 * @return	The copy of the value
+		 */
+		private Base copy(Map<Cached, Base> copies) {
+			Base copy = copies.get(this);
+			if (copy != null) {
+				return copy;
+			}
+			copy = ((Base) value).copy();
+			copies.put(this, copy);
+			for (UserData u: userData) {
+				Base target = copy;
+				for (int i = 0; i < u.path().length; i += 2) {
+					target = target.children().get(u.path()[i]).getValues().get(u.path()[i + 1]);
+				}
+				target.setUserData(u.key(), u.value() instanceof Cached nested ? nested.copy(copies) : u.value());
+			}
+			return copy;
+		}
+	}
+}
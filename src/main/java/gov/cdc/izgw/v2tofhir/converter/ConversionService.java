@@ -0,0 +1,168 @@
+package gov.cdc.izgw.v2tofhir.converter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * ConversionService converts HL7 V2 messages into FHIR Bundles concurrently.
+ *
+ * The service runs conversions on an executor, and keeps a pool of MessageParser instances
+ * which are reset and reused between conversions.  A MessageParser is only ever used by one
+ * conversion at a time.
+ *
+ * <pre>
+ * 	try (ConversionService service = new ConversionService(8)) {
+ * 		List&lt;Bundle&gt; bundles = service.convertAll(messages);
+ * 	}
+ * </pre>
+ *
+ * @author Audacious Inquiry
+ */
+@Slf4j
+public class ConversionService implements AutoCloseable {
+	private final ExecutorService executor;
+	private final boolean ownsExecutor;
+	private final Supplier<MessageParser> parserFactory;
+	private final BlockingQueue<MessageParser> pool;
+
+	/**
+	 * Create a ConversionService using a fixed number of threads.
+	 * @param threads	The number of threads to use for conversion.
+	 */
+	public ConversionService(int threads) {
+		this(Executors.newFixedThreadPool(threads, newThreadFactory()), true, threads, MessageParser::new);
+	}
+
+	/**
+	 * Create a ConversionService that runs on the given executor.
+	 *
+	 * The caller remains responsible for shutting down the executor.
+	 *
+	 * @param executor	The executor to run conversions on.
+	 * @param maxParsers	The maximum number of idle MessageParser instances to keep.
+	 * @param parserFactory	Creates and configures new MessageParser instances, or null to use new MessageParser().
+	 */
+	public ConversionService(ExecutorService executor, int maxParsers, Supplier<MessageParser> parserFactory) {
+		this(executor, false, maxParsers, parserFactory == null ? MessageParser::new : parserFactory);
+	}
+
+	private ConversionService(ExecutorService executor, boolean ownsExecutor, int maxParsers, Supplier<MessageParser> parserFactory) {
+		if (maxParsers < 1) {
+			throw new IllegalArgumentException("maxParsers must be at least 1");
+		}
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+		this.parserFactory = parserFactory;
+		this.pool = new LinkedBlockingQueue<>(maxParsers);
+	}
+
+	private static ThreadFactory newThreadFactory() {
+		AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, "v2tofhir-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * Convert an HL7 V2 message asynchronously.
+	 * @param hl7Message	The message text.
+	 * @return	A future which completes with the converted Bundle.
+	 */
+	public CompletableFuture<Bundle> submit(String hl7Message) {
+		return CompletableFuture.supplyAsync(() -> convert(hl7Message), executor);
+	}
+
+	/**
+	 * Convert an HL7 V2 message asynchronously.
+	 *
+	 * The message must not be modified or converted elsewhere until the returned future completes.
+	 *
+	 * @param msg	The message.
+	 * @return	A future which completes with the converted Bundle.
+	 */
+	public CompletableFuture<Bundle> submit(Message msg) {
+		return CompletableFuture.supplyAsync(() -> convert(mp -> mp.convert(msg)), executor);
+	}
+
+	/**
+	 * Convert a batch of HL7 V2 messages concurrently, waiting for all to complete.
+	 *
+	 * @param hl7Messages	The message texts.
+	 * @return	The converted Bundles, in the same order as hl7Messages.
+	 * @throws HL7Exception	If any message could not be parsed.
+	 */
+	public List<Bundle> convertAll(List<String> hl7Messages) throws HL7Exception {
+		List<CompletableFuture<Bundle>> futures = new ArrayList<>(hl7Messages.size());
+		for (String hl7Message: hl7Messages) {
+			futures.add(submit(hl7Message));
+		}
+		List<Bundle> bundles = new ArrayList<>(futures.size());
+		for (CompletableFuture<Bundle> future: futures) {
+			try {
+				bundles.add(future.join());
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof HL7Exception hl7Ex) {
+					throw hl7Ex;
+				}
+				throw e;
+			}
+		}
+		return bundles;
+	}
+
+	private Bundle convert(String hl7Message) {
+		return convert(mp -> {
+			try {
+				return mp.convert(hl7Message);
+			} catch (HL7Exception e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+
+	private Bundle convert(Function<MessageParser, Bundle> conversion) {
+		MessageParser mp = pool.poll();
+		if (mp == null) {
+			mp = parserFactory.get();
+		}
+		try {
+			return conversion.apply(mp);
+		} finally {
+			// Release the Bundle and everything else from this conversion before reuse.
+			mp.reset();
+			if (!pool.offer(mp)) {
+				log.debug("MessageParser pool is full, discarding parser");
+			}
+		}
+	}
+
+	/**
+	 * Shut down the service.  If the service created its own executor, the executor is shut down,
+	 * after completing any conversions already submitted.
+	 */
+	@Override
+	public void close() {
+		if (ownsExecutor) {
+			executor.shutdown();
+		}
+		pool.clear();
+	}
+}
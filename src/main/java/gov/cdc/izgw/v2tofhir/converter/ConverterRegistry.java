@@ -0,0 +1,211 @@
+package gov.cdc.izgw.v2tofhir.converter;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.r4.model.Address;
+
+import ca.uhn.hl7v2.model.Type;
+import gov.cdc.izgw.v2tofhir.converter.DatatypeConverter.Converter;
+
+/**
+ * ConverterRegistry maps FHIR datatype classes to the methods of DatatypeConverter that
+ * convert HAPI V2 datatypes to them.
+ *
+ * The conversion method for a class is resolved once and cached in a ClassValue, so converting
+ * does not need to select the method on each call.  Names of FHIR datatypes (e.g., "Identifier" or
+ * "string") are also resolved once to their classes.  Applications can register converters for
+ * their own datatypes, or replace the converter for a FHIR datatype, using register().
+ * Converted values can be cached by enabling the ConversionCache.
+ *
+ * This class is thread safe.
+ *
+ * @author Audacious Inquiry
+ */
+public final class ConverterRegistry {
+	/**
+	 * A functional interface for FHIR datatype conversion from HAPI V2 datatypes using an
+	 * HL7 V2 table.
+	 *
+	 * @param <F> A FHIR data type to convert to.
+	 */
+	@FunctionalInterface
+	public interface TableConverter<F extends IBase> {
+		/**
+		 * Convert a V2 datatype to a FHIR datatype
+		 * @param type	The V2 datatype to convert
+		 * @param table	The associated HL7 V2 table, or null if there is none
+		 * @return	The converted FHIR datatype
+		 */
+		F convert(Type type, String table);
+	}
+
+	private static final String FHIR_PACKAGE = Address.class.getPackageName() + ".";
+	/** Names of FHIR primitive types which differ from the HAPI FHIR class name */
+	private static final Map<String, String> FHIR_PRIMITIVE_NAMES = Map.ofEntries(
+		Map.entry("base64Binary", "Base64BinaryType"), Map.entry("boolean", "BooleanType"),
+		Map.entry("canonical", "CanonicalType"), Map.entry("code", "CodeType"), Map.entry("date", "DateType"),
+		Map.entry("dateTime", "DateTimeType"), Map.entry("datetime", "DateTimeType"),
+		Map.entry("decimal", "DecimalType"), Map.entry("id", "IdType"), Map.entry("instant", "InstantType"),
+		Map.entry("integer", "IntegerType"), Map.entry("markdown", "MarkdownType"), Map.entry("oid", "OidType"),
+		Map.entry("positiveInt", "PositiveIntType"), Map.entry("string", "StringType"), Map.entry("time", "TimeType"),
+		Map.entry("unsignedInt", "UnsignedIntType"), Map.entry("uri", "UriType"), Map.entry("url", "UrlType"),
+		Map.entry("uuid", "UuidType")
+	);
+	/** Converters registered by the application */
+	private static final Map<Class<?>, TableConverter<?>> registered = new ConcurrentHashMap<>();
+	/** Classes for datatype names, or empty if there is no class for the name */
+	private static final Map<String, Optional<Class<? extends IBase>>> classes = new ConcurrentHashMap<>();
+	/** The resolved converter for each class, or null if the class is not supported */
+	private static final ClassValue<TableConverter<?>> converters = new ClassValue<>() {
+		@Override
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		protected TableConverter<?> computeValue(Class<?> clazz) {
+			TableConverter<?> c = registered.get(clazz);
+			if (c == null) {
+				c = getBuiltInConverter(clazz);
+			}
+			// Results are cached only while ConversionCache is enabled for clazz
+			return c == null ? null : ConversionCache.wrap((Class) clazz, (TableConverter) c);
+		}
+	};
+
+	private ConverterRegistry() {}
+
+	/**
+	 * Register a converter for a datatype, replacing any existing converter for it.
+	 * The datatype can also be found by its simple class name in getDatatype().
+	 *
+	 * Converters returned by getConverter() use the new converter from then on, including those
+	 * already held by parsers.  Fixed values given in @ComesFrom are converted only once, when
+	 * the parser is first created, and so are not affected.
+	 *
+	 * @param <F>	The FHIR datatype
+	 * @param clazz	The class of the datatype
+	 * @param converter	The converter
+	 */
+	public static <F extends IBase> void register(Class<F> clazz, TableConverter<? extends F> converter) {
+		registered.put(clazz, converter);
+		classes.put(clazz.getSimpleName(), Optional.of(clazz));
+		converters.remove(clazz);
+	}
+
+	/**
+	 * Remove the converter registered for a datatype, restoring the built-in converter
+	 * for it, if there is one.
+	 *
+	 * @param clazz	The class of the datatype
+	 */
+	public static void unregister(Class<? extends IBase> clazz) {
+		if (registered.remove(clazz) != null) {
+			classes.remove(clazz.getSimpleName(), Optional.of(clazz));
+			converters.remove(clazz);
+		}
+	}
+
+	/**
+	 * Get the converter for a datatype.
+	 * @param <F>	The FHIR datatype
+	 * @param clazz	The class of the datatype
+	 * @return	The converter, or null if the datatype is not supported
+	 */
+	@SuppressWarnings("unchecked")
+	public static <F extends IBase> TableConverter<F> get(Class<F> clazz) {
+		return (TableConverter<F>) converters.get(clazz);
+	}
+
+	/**
+	 * Get a converter for a datatype and HL7 V2 table.
+	 * @param <F>	The FHIR datatype
+	 * @param clazz	The class of the datatype
+	 * @param table	The associated HL7 V2 table, or null if there is none
+	 * @return	The converter.  If clazz is not supported, the converter throws an IllegalArgumentException when used.
+	 */
+	public static <F extends IBase> Converter<F> getConverter(Class<F> clazz, String table) {
+		// Resolve on each call so that converters registered later are used
+		return t -> {
+			TableConverter<F> c = get(clazz);
+			if (c == null) {
+				throw new IllegalArgumentException(clazz.getName() + " is not a supported FHIR type");
+			}
+			return c.convert(t, table);
+		};
+	}
+
+	/**
+	 * Get the class for the name of a datatype.
+	 * @param name	The name of the datatype, either the name of a FHIR type (e.g., string or Identifier), the
+	 * simple name of its HAPI FHIR class (e.g., StringType), or the simple name of a registered class.
+	 * @return	The class, or null if there is none.
+	 */
+	public static Class<? extends IBase> getDatatype(String name) {
+		return classes.computeIfAbsent(name, ConverterRegistry::loadDatatype).orElse(null);
+	}
+
+	private static Optional<Class<? extends IBase>> loadDatatype(String name) {
+		String className = FHIR_PACKAGE + FHIR_PRIMITIVE_NAMES.getOrDefault(name, name);
+		try {
+			Class<?> clazz = IBase.class.getClassLoader().loadClass(className);
+			return IBase.class.isAssignableFrom(clazz) ? Optional.of(clazz.asSubclass(IBase.class)) : Optional.empty();
+		} catch (ClassNotFoundException e) {
+			return Optional.empty();
+		}
+	}
+
+	private static TableConverter<?> getBuiltInConverter(Class<?> clazz) { // NOSONAR One case per type
+		switch (clazz.getSimpleName()) {
+		case "Address":
+			return (t, table) -> DatatypeConverter.toAddress(t);
+		case "BooleanType":
+			return (t, table) -> DatatypeConverter.toBooleanType(t);
+		case "CodeableConcept":
+			return DatatypeConverter::toCodeableConcept;
+		case "CodeType":
+			return DatatypeConverter::toCodeType;
+		case "Coding":
+			return DatatypeConverter::toCoding;
+		case "ContactPoint":
+			return (t, table) -> DatatypeConverter.toContactPoint(t);
+		case "DateTimeType":
+			return (t, table) -> DatatypeConverter.toDateTimeType(t);
+		case "DateType":
+			return (t, table) -> DatatypeConverter.toDateType(t);
+		case "DecimalType":
+			return (t, table) -> DatatypeConverter.toDecimalType(t);
+		case "HumanName":
+			return (t, table) -> DatatypeConverter.toHumanName(t);
+		case "Identifier":
+			return (t, table) -> DatatypeConverter.toIdentifier(t);
+		case "IdType":
+			return (t, table) -> DatatypeConverter.toIdType(t);
+		case "InstantType":
+			return (t, table) -> DatatypeConverter.toInstantType(t);
+		case "IntegerType":
+			return (t, table) -> DatatypeConverter.toIntegerType(t);
+		case "PositiveIntType":
+			return (t, table) -> DatatypeConverter.toPositiveIntType(t);
+		case "Quantity":
+			return (t, table) -> DatatypeConverter.toQuantity(t);
+		case "StringType":
+			return (t, table) -> DatatypeConverter.toStringType(t);
+		case "TimeType":
+			return (t, table) -> DatatypeConverter.toTimeType(t);
+		case "UnsignedIntType":
+			return (t, table) -> DatatypeConverter.toUnsignedIntType(t);
+		case "UriType":
+			return (t, table) -> DatatypeConverter.toUriType(t);
+		case "Organization":
+			return (t, table) -> DatatypeConverter.toOrganization(t);
+		case "Practitioner":
+			return (t, table) -> DatatypeConverter.toPractitioner(t);
+		case "RelatedPerson":
+			return (t, table) -> DatatypeConverter.toRelatedPerson(t);
+		case "Location":
+			return (t, table) -> DatatypeConverter.toLocation(t);
+		default:
+			return null;
+		}
+	}
+}
@@ -9,7 +9,6 @@ import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.TimeZone;
@@ -54,9 +53,11 @@ import ca.uhn.hl7v2.model.Primitive;
 import ca.uhn.hl7v2.model.Type;
 import ca.uhn.hl7v2.model.Varies;
 import ca.uhn.hl7v2.model.primitive.TSComponentOne;
+import ca.uhn.hl7v2.parser.EncodingCharacters;
 import gov.cdc.izgw.v2tofhir.datatype.AddressParser;
 import gov.cdc.izgw.v2tofhir.datatype.ContactPointParser;
 import gov.cdc.izgw.v2tofhir.datatype.HumanNameParser;
+import gov.cdc.izgw.v2tofhir.utils.Er7Segment;
 import gov.cdc.izgw.v2tofhir.utils.Mapping;
 import gov.cdc.izgw.v2tofhir.utils.ParserUtils;
 import gov.cdc.izgw.v2tofhir.utils.PathUtils;
@@ -151,7 +152,7 @@ public class DatatypeConverter {
 	 * @return The converter
 	 */
 	public static <F extends IBase> Converter<F> getConverter(Class<F> clazz) {
-		return (Type t) -> convert(clazz, t, null);
+		return getConverter(clazz, null);
 	}
 
 	/**
@@ -162,13 +163,15 @@ public class DatatypeConverter {
 	 * @return The converter
 	 */
 	public static <F extends org.hl7.fhir.r4.model.Type> Converter<F> getConverter(String className, String table) {
-		return (Type t) -> convert(className, t, table);
+		@SuppressWarnings("unchecked")
+		Class<F> clazz = (Class<F>) ConverterRegistry.getDatatype(className);
+		if (clazz == null) {
+			return t -> {
+				throw new IllegalArgumentException(className + " is not a supported FHIR type");
+			};
+		}
+		return ConverterRegistry.getConverter(clazz, table);
 	}
-	
-	private static final Set<String> FHIR_PRIMITIVE_NAMES = new LinkedHashSet<>(
-		Arrays.asList("integer", "string", "time", "date", "datetime", "decimal", "boolean", "url",
-					  "code", "integer", "uri", "canonical", "markdown", "id", "oid", "uuid", 
-					  "unsignedInt", "positiveInt"));
 
 	/**
 	 * Get a converter for a FHIR datatype.
@@ -179,18 +182,12 @@ public class DatatypeConverter {
 	 * @return The converter
 	 */
 	public static <F extends IBase> F convert(String className, Type t, String table) {
-		className =  "org.hl7.fhir.r4.model." + className;
-		
-		if (FHIR_PRIMITIVE_NAMES.contains(className)) {
-			className = Character.toUpperCase(className.charAt(0)) + className.substring(1) + "Type";
-		}
-		try {
-			@SuppressWarnings("unchecked")
-			Class<F> clazz = (Class<F>) Type.class.getClassLoader().loadClass(className);
-			return convert(clazz, t, table);
-		} catch (ClassNotFoundException e) {
+		@SuppressWarnings("unchecked")
+		Class<F> clazz = (Class<F>) ConverterRegistry.getDatatype(className);
+		if (clazz == null) {
 			throw new IllegalArgumentException(className + " is not a supported FHIR type");
 		}
+		return convert(clazz, t, table);
 	}
 
 	/**
@@ -203,60 +200,67 @@ public class DatatypeConverter {
 	 * @return	The converted HAPI V2 type
 	 */
 	public static <F extends IBase> F convert(Class<F> clazz, Type t, String table) {
-		switch (clazz.getSimpleName()) {
-		case "Address":
-			return clazz.cast(toAddress(t));
-		case "BooleanType":
-			return clazz.cast(toBooleanType(t));
-		case "CodeableConcept":
-			return clazz.cast(toCodeableConcept(t, table));
-		case "CodeType":
-			return clazz.cast(toCodeType(t, table));
-		case "Coding":
-			return clazz.cast(toCoding(t, table));
-		case "ContactPoint":
-			return clazz.cast(toContactPoint(t));
-		case "DateTimeType":
-			return clazz.cast(toDateTimeType(t));
-		case "DateType":
-			return clazz.cast(toDateType(t));
-		case "DecimalType":
-			return clazz.cast(toDecimalType(t));
-		case "HumanName":
-			return clazz.cast(toHumanName(t));
-		case "Identifier":
-			return clazz.cast(toIdentifier(t));
-		case "IdType":
-			return clazz.cast(toIdType(t));
-		case "InstantType":
-			return clazz.cast(toInstantType(t));
-		case "IntegerType":
-			return clazz.cast(toIntegerType(t));
-		case "PositiveIntType":
-			return clazz.cast(toPositiveIntType(t));
-		case "Quantity":
-			return clazz.cast(toQuantity(t));
-		case "StringType":
-			return clazz.cast(toStringType(t));
-		case "TimeType":
-			return clazz.cast(toTimeType(t));
-		case "UnsignedIntType":
-			return clazz.cast(toUnsignedIntType(t));
-		case "UriType":
-			return clazz.cast(toUriType(t));
-		case "Organization":
-			return clazz.cast(toOrganization(t));
-		case "Practitioner":
-			return clazz.cast(toPractitioner(t));
-		case "RelatedPerson":
-			return clazz.cast(toRelatedPerson(t));
-		case "Location":
-			return clazz.cast(toLocation(t));
-		default:
+		ConverterRegistry.TableConverter<F> c = ConverterRegistry.get(clazz);
+		if (c == null) {
 			throw new IllegalArgumentException(clazz.getName() + " is not a supported FHIR type");
 		}
+		return clazz.cast(c.convert(t, table));
+	}
+	
+	/**
+	 * Read a repetition of a field from the text of a segment into a HAPI V2 datatype, so that 
+	 * it can be converted without parsing the rest of the segment.
+	 * 
+	 * The value of a primitive without separators or escape sequences is set directly.  Other values
+	 * are parsed by the parser of the message the datatype belongs to.  A datatype which already has 
+	 * a value was read before, and is left as is.
+	 * 
+	 * @param segment	The segment to read from
+	 * @param field	The field number
+	 * @param rep	The repetition of the field, starting from 0
+	 * @param t	The HAPI V2 datatype for the field, from the segment being read into
+	 * @return	t
+	 * @throws HL7Exception	If the value cannot be parsed
+	 */
+	public static Type read(Er7Segment segment, int field, int rep, Type t) throws HL7Exception {
+		CharSequence value = segment.get(field, rep);
+		if (value.length() == 0 || !t.isEmpty()) {
+			return t;
+		}
+		if (t instanceof Primitive prim && !hasDelimiters(value, segment.getMessage().getEncodingCharacters())) {
+			prim.setValue(value.toString());
+		} else {
+			t.parse(value.toString());
+		}
+		return t;
+	}
+	
+	private static boolean hasDelimiters(CharSequence value, EncodingCharacters enc) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == enc.getComponentSeparator() || c == enc.getSubcomponentSeparator() || c == enc.getEscapeCharacter()) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Get a converter for a FHIR datatype and HL7 V2 table.
+	 * 
+	 * The converter finds the conversion method in ConverterRegistry each time it is used, which
+	 * is a single ClassValue lookup, so callers converting to the same datatype repeatedly 
+	 * (e.g., FieldHandler) can create it once and still use converters registered later.
+	 * 
+	 * @see ConverterRegistry
+	 * @param <F>	The FHIR datatype
+	 * @param clazz	The class representing the FHIR datatype
+	 * @param table The associated HL7 V2 table
+	 * @return The converter.  If clazz is not supported, the converter throws an IllegalArgumentException when used.
+	 */
+	public static <F extends IBase> Converter<F> getConverter(Class<F> clazz, String table) {
+		return ConverterRegistry.getConverter(clazz, table);
 	}
-
 
 	/**
      * Convert a HAPI V2 datatype to a FHIR Address
@@ -1070,6 +1074,9 @@ public class DatatypeConverter {
 	 * operate differently and have overlapping coverage on their input string
 	 * ranges, so this provides the highest level of compatibility.
 	 * 
+	 * Values in the common V2 DTM and ISO-8601 forms are first scanned by DateTimeScanner,
+	 * which produces the same result without either parser.
+	 * 
 	 * @param value The value to convert
 	 * @return An InstantType set to the precision of the timestamp. NOTE: This is a
 	 *         small abuse of InstantType.
@@ -1084,6 +1091,11 @@ public class DatatypeConverter {
 		if (value.length() == 0) {
 			return null;
 		}
+		// Most values are in a simple form the scanner can handle without allocating
+		InstantType fast = DateTimeScanner.scan(value);
+		if (fast != null) {
+			return fast;
+		}
 		value = removeIsoPunct(value);
 
 		TSComponentOne ts1 = new MyTSComponentOne();
@@ -1116,6 +1128,7 @@ public class DatatypeConverter {
 			value = value + decimal + zone;
 			ts1.setValue(value);
 			Calendar cal = ts1.getValueAsCalendar();
+			fixNegativeSubHourOffset(cal, zone);
 			InstantType t = new InstantType(cal);
 			t.setPrecision(prec);
 			return t;
@@ -1130,6 +1143,25 @@ public class DatatypeConverter {
 		}
 	}
 
+	/**
+	 * The HAPI V2 parser reads negative offsets of less than an hour (e.g., -0030) as
+	 * positive offsets (+0030).  Correct the calendar so that the offset keeps its sign.
+	 * @param cal	The calendar produced by the HAPI V2 parser
+	 * @param zone	The offset in the value parsed, in the form +/-ZZZZ, or empty if there is none
+	 */
+	private static void fixNegativeSubHourOffset(Calendar cal, String zone) {
+		if (zone.length() != 5 || !zone.startsWith("-00") || !StringUtils.isNumeric(zone.substring(3))) {
+			return;
+		}
+		int minutes = Integer.parseInt(zone.substring(3));
+		if (minutes == 0 || cal.getTimeZone().getRawOffset() != minutes * 60 * 1000) {
+			return;
+		}
+		long millis = cal.getTimeInMillis() + 2L * minutes * 60 * 1000;
+		cal.setTimeZone(TimeZone.getTimeZone(String.format("GMT-00:%02d", minutes)));
+		cal.setTimeInMillis(millis);
+	}
+
 	private static InstantType toInstantViaFHIR(String original, Exception e) {
 		try {
 			// We failed to convert, try as FHIR
@@ -0,0 +1,282 @@
+package gov.cdc.izgw.v2tofhir.converter;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneRules;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.r4.model.InstantType;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+
+/**
+ * DateTimeScanner parses the common forms of HL7 V2 DTM and ISO-8601 date/time values in
+ * a single pass, without regular expressions, Calendar, or exceptions.
+ *
+ * Values are accepted only when the result is certain to be identical to that produced by
+ * DatatypeConverter.toInstantType() using the HAPI V2 and FHIR parsers, that is:
+ *
+ * <ul><li>V2: YYYY[MM[DD[HH[MM[SS[.S[S[S[S]]]]]]]]][+/-ZZZZ], with a time zone only when
+ * minutes are present, and fractional seconds only when seconds are present.</li>
+ * <li>ISO-8601: YYYY-MM[-DD[Thh:mm[:ss[.s[s[s[s]]]]][+/-zz:zz]]]</li>
+ * </ul>
+ *
+ * For anything else, including out of range values, scan() returns null and the caller must
+ * use the general parsers, which will also report any errors.  Values without a time zone are
+ * also declined when the offset of the default time zone is not a whole number of minutes (e.g.,
+ * local mean time before 1906 in Asia/Kolkata), or when the time zone data used by Calendar
+ * disagrees with java.time (e.g., Australia/Lord_Howe in 1900).
+ *
+ * Negative offsets of less than an hour (e.g., -00:30) keep their sign, as they do in
+ * DatatypeConverter.toInstantType(), which corrects the HAPI V2 parser's reading of them.
+ *
+ * @author Audacious Inquiry
+ */
+final class DateTimeScanner {
+	private static final int MS_PER_MINUTE = 60 * 1000;
+	private static final long MS_PER_DAY = 24L * 60 * MS_PER_MINUTE;
+	/** Years before this may use the Julian calendar in GregorianCalendar */
+	private static final int MIN_YEAR = 1600;
+	/** Years before this may use local mean time in the default time zone */
+	private static final int MIN_ZONED_YEAR = 1900;
+	/** Time zones for explicit offsets, keyed by offset in minutes */
+	private static final Map<Integer, TimeZone> zones = new ConcurrentHashMap<>();
+
+	private DateTimeScanner() {}
+
+	/**
+	 * Scan a stripped, non-empty date/time value.
+	 * @param value	The value to scan
+	 * @return	The InstantType, set to the precision of the value, or null if value is not in one of the forms
+	 * handled by this scanner.
+	 */
+	static InstantType scan(String value) { // NOSONAR A single pass scanner has many branches
+		int len = value.length();
+		boolean iso = len > 4 && value.charAt(4) == '-';
+		int year = digits(value, 0, 4);
+		int month = 1;
+		int day = 1;
+		int hour = 0;
+		int minute = 0;
+		int second = 0;
+		int fraction = 0;
+		int fractionDigits = 0;
+		int numeric;	// The number of digits in the value without ISO punctuation, before any fraction
+		int pos;
+		if (iso) {
+			month = digits(value, 5, 2);
+			numeric = 6;
+			pos = 7;
+			if (pos < len && value.charAt(pos) == '-') {
+				day = digits(value, 8, 2);
+				numeric = 8;
+				pos = 10;
+				if (pos < len && value.charAt(pos) == 'T') {
+					hour = digits(value, 11, 2);
+					minute = at(value, 13, ':') ? digits(value, 14, 2) : -1;
+					numeric = 12;
+					pos = 16;
+					if (at(value, pos, ':')) {
+						second = digits(value, 17, 2);
+						numeric = 14;
+						pos = 19;
+					}
+				}
+			}
+		} else {
+			numeric = 0;
+			while (numeric < len && numeric < 15 && isDigit(value.charAt(numeric))) {
+				numeric++;
+			}
+			if (numeric < 4 || numeric > 14 || numeric % 2 != 0) {
+				return null;
+			}
+			month = numeric >= 6 ? digits(value, 4, 2) : 1;
+			day = numeric >= 8 ? digits(value, 6, 2) : 1;
+			hour = numeric >= 10 ? digits(value, 8, 2) : 0;
+			minute = numeric >= 12 ? digits(value, 10, 2) : 0;
+			second = numeric >= 14 ? digits(value, 12, 2) : 0;
+			pos = numeric;
+		}
+		if (pos > len || year < MIN_YEAR || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) ||
+			hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+			return null;
+		}
+
+		if (numeric == 14 && at(value, pos, '.')) {
+			pos++;
+			while (pos < len && fractionDigits < 5 && isDigit(value.charAt(pos))) {
+				fraction = fraction * 10 + (value.charAt(pos++) - '0');
+				fractionDigits++;
+			}
+			if (fractionDigits == 0 || fractionDigits > 4 || (fractionDigits == 4 && fraction % 10 == 5)) {
+				// HAPI V2 rounds the fraction as a float, so halves can round either way
+				return null;
+			}
+		}
+
+		int offset = 0;	// in minutes
+		boolean hasZone = false;
+		if (pos < len && numeric >= 12 && (value.charAt(pos) == '+' || value.charAt(pos) == '-')) {
+			int sign = value.charAt(pos) == '-' ? -1 : 1;
+			int zoneHours = digits(value, pos + 1, 2);
+			int zoneMinutes = iso ? (at(value, pos + 3, ':') ? digits(value, pos + 4, 2) : -1) : digits(value, pos + 3, 2);
+			if (zoneHours < 0 || zoneHours > 23 || zoneMinutes < 0 || zoneMinutes > 59) {
+				return null;
+			}
+			offset = sign * (zoneHours * 60 + zoneMinutes);
+			hasZone = true;
+			pos += iso ? 6 : 5;
+		}
+		if (pos != len) {
+			return null;
+		}
+
+		int millis = toMillis(fraction, fractionDigits);
+		if (millis > 999) {
+			// Rounding carried into the next second
+			return null;
+		}
+		long local = daysFromCivil(year, month, day) * MS_PER_DAY + ((hour * 60L + minute) * 60 + second) * 1000 + millis;
+		TimeZone tz;
+		if (hasZone) {
+			tz = zones.computeIfAbsent(offset, DateTimeScanner::newTimeZone);
+		} else {
+			tz = TimeZone.getDefault();
+			Integer defaultOffset = getDefaultOffset(tz, year, month, day, hour, minute, second);
+			if (defaultOffset == null) {
+				return null;
+			}
+			offset = defaultOffset;
+			if (tz.getOffset(local - (long) offset * MS_PER_MINUTE) != offset * MS_PER_MINUTE) {
+				// The legacy time zone data used by Calendar disagrees (e.g., Lord Howe Island in 1900)
+				return null;
+			}
+		}
+		InstantType instant = new InstantType(new Date(local - (long) offset * MS_PER_MINUTE), TemporalPrecisionEnum.MILLI, tz);
+		instant.setPrecision(getPrecision(numeric, fractionDigits));
+		return instant;
+	}
+
+	private static TemporalPrecisionEnum getPrecision(int numeric, int fractionDigits) {
+		if (fractionDigits > 0) {
+			return TemporalPrecisionEnum.MILLI;
+		}
+		switch (numeric) {
+		case 4:
+			return TemporalPrecisionEnum.YEAR;
+		case 6:
+			return TemporalPrecisionEnum.MONTH;
+		case 8:
+			return TemporalPrecisionEnum.DAY;
+		case 10, 12:
+			return TemporalPrecisionEnum.MINUTE;
+		default:
+			return TemporalPrecisionEnum.SECOND;
+		}
+	}
+
+	/**
+	 * Convert fractional seconds to milliseconds, rounding as the HAPI V2 parser does
+	 * @param fraction	The digits of the fraction
+	 * @param fractionDigits	The number of digits in the fraction
+	 * @return	The number of milliseconds
+	 */
+	private static int toMillis(int fraction, int fractionDigits) {
+		switch (fractionDigits) {
+		case 1:
+			return fraction * 100;
+		case 2:
+			return fraction * 10;
+		case 4:
+			return (fraction + 5) / 10;
+		default:
+			return fraction;
+		}
+	}
+
+	/**
+	 * Get the offset of the default time zone for a local time
+	 * @return The offset in minutes, or null if the local time is ambiguous or skipped in the time zone
+	 */
+	private static Integer getDefaultOffset(TimeZone tz, int year, int month, int day, int hour, int minute, int second) { // NOSONAR
+		ZoneRules rules = tz.toZoneId().getRules();
+		if (rules.isFixedOffset()) {
+			return toMinutes(rules.getOffset(Instant.EPOCH));
+		}
+		if (year < MIN_ZONED_YEAR) {
+			return null;
+		}
+		List<ZoneOffset> offsets = rules.getValidOffsets(LocalDateTime.of(year, month, day, hour, minute, second));
+		return offsets.size() == 1 ? toMinutes(offsets.get(0)) : null;
+	}
+
+	/**
+	 * @return The offset in minutes, or null if it is not a whole number of minutes (e.g., local mean time)
+	 */
+	private static Integer toMinutes(ZoneOffset offset) {
+		int seconds = offset.getTotalSeconds();
+		return seconds % 60 == 0 ? seconds / 60 : null;
+	}
+
+	private static TimeZone newTimeZone(int offset) {
+		int abs = Math.abs(offset);
+		return TimeZone.getTimeZone(String.format("GMT%c%02d:%02d", offset < 0 ? '-' : '+', abs / 60, abs % 60));
+	}
+
+	/**
+	 * Days since 1970-01-01 in the proleptic Gregorian calendar
+	 * @see <a href="https://howardhinnant.github.io/date_algorithms.html#days_from_civil">days_from_civil</a>
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		int y = month <= 2 ? year - 1 : year;
+		int era = y / 400;	// year is always positive here
+		int yoe = y - era * 400;
+		int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097L + doe - 719468;
+	}
+
+	private static int daysInMonth(int year, int month) {
+		switch (month) {
+		case 2:
+			return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+		case 4, 6, 9, 11:
+			return 30;
+		default:
+			return 31;
+		}
+	}
+
+	private static boolean at(String value, int pos, char c) {
+		return pos < value.length() && value.charAt(pos) == c;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	 * Read a fixed number of digits
+	 * @return	The value of the digits, or -1 if there are not enough digits
+	 */
+	private static int digits(String value, int pos, int count) {
+		if (pos + count > value.length()) {
+			return -1;
+		}
+		int v = 0;
+		for (int i = pos; i < pos + count; i++) {
+			char c = value.charAt(i);
+			if (!isDigit(c)) {
+				return -1;
+			}
+			v = v * 10 + (c - '0');
+		}
+		return v;
+	}
+}
@@ -0,0 +1,43 @@
+package gov.cdc.izgw.v2tofhir.converter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import io.azam.ulidj.MonotonicULID;
+import io.azam.ulidj.ULID;
+
+/**
+ * Implementations of the built-in IdStrategy instances.
+ *
+ * @author Audacious Inquiry
+ */
+final class IdStrategies {
+	private static final ThreadLocal<MonotonicULID> ULIDS =
+		ThreadLocal.withInitial(() -> new MonotonicULID(ThreadLocalRandom.current()));
+	/** The context property holding the number of ids created for each segment and type */
+	private static final String COUNTS = IdStrategies.class.getName() + ".counts";
+
+	static final IdStrategy MONOTONIC_ULID = (mp, resourceType) -> ULIDS.get().generate();
+	static final IdStrategy RANDOM_ULID = (mp, resourceType) -> ULID.random();
+	static final IdStrategy DETERMINISTIC = IdStrategies::deterministicId;
+
+	private IdStrategies() {}
+
+	private static String deterministicId(MessageParser mp, String resourceType) {
+		Context context = mp.getContext();
+		@SuppressWarnings("unchecked")
+		Map<String, Integer> counts = (Map<String, Integer>) context.getProperty(COUNTS);
+		if (counts == null) {
+			counts = new HashMap<>();
+			context.setProperty(COUNTS, counts);
+		}
+		String name = mp.getSegmentPath() + "/" + resourceType;
+		int count = counts.merge(name, 1, Integer::sum);
+		String controlId = context.getMessageControlId();
+		name = (controlId == null ? "" : controlId) + "|" + name + "/" + count;
+		return UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)).toString();
+	}
+}
@@ -0,0 +1,86 @@
+package gov.cdc.izgw.v2tofhir.converter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * An IdStrategy generates the identifiers for the Bundle and resources created by a MessageParser.
+ *
+ * The built-in strategies are:
+ * <ul>
+ * <li>{@link #monotonicUlid()}: ULIDs which increase monotonically on each thread, generated
+ * using a per-thread random number generator.  This is the default.</li>
+ * <li>{@link #ulid()}: random ULIDs, using the shared secure random number generator of the
+ * ULID library.</li>
+ * <li>{@link #deterministic()}: name based UUIDs computed from the message control id (MSH-10),
+ * the path of the segment being converted, and the resource type, so that converting the same
+ * message again produces the same ids.  This is useful for idempotent updates.</li>
+ * <li>{@link #counter()}: sequential numbers, for testing.</li>
+ * </ul>
+ *
+ * Strategies may be shared by MessageParser instances on different threads, and so must be thread safe.
+ *
+ * @see MessageParser#setIdStrategy(IdStrategy)
+ * @author Audacious Inquiry
+ */
+@FunctionalInterface
+public interface IdStrategy {
+	/**
+	 * Generate a new id.
+	 * @param mp	The MessageParser creating the resource
+	 * @param resourceType	The type of the resource (e.g., Patient or Bundle)
+	 * @return	The new id
+	 */
+	String newId(MessageParser mp, String resourceType);
+
+	/**
+	 * Random ULIDs which increase monotonically on each thread.
+	 *
+	 * Entropy comes from ThreadLocalRandom, so generating an id never waits on a shared or
+	 * blocking SecureRandom.  These ids are unique, but not unpredictable.
+	 *
+	 * @return	The strategy
+	 */
+	static IdStrategy monotonicUlid() {
+		return IdStrategies.MONOTONIC_ULID;
+	}
+
+	/**
+	 * Random ULIDs from the ULID library, using its shared SecureRandom.
+	 * @return	The strategy
+	 */
+	static IdStrategy ulid() {
+		return IdStrategies.RANDOM_ULID;
+	}
+
+	/**
+	 * Name based (version 3) UUIDs computed from the message control id (MSH-10), the path of
+	 * the segment being converted (e.g., RXA[2]), the resource type, and the number of ids of that type
+	 * already created for that segment.
+	 *
+	 * Ids are only unique across messages with different control ids.
+	 *
+	 * @return	The strategy
+	 */
+	static IdStrategy deterministic() {
+		return IdStrategies.DETERMINISTIC;
+	}
+
+	/**
+	 * Sequential numbers starting from 1, counted across all messages converted using the strategy.
+	 * @return	A new strategy
+	 */
+	static IdStrategy counter() {
+		AtomicLong counter = new AtomicLong();
+		return (mp, resourceType) -> Long.toString(counter.incrementAndGet());
+	}
+
+	/**
+	 * Use a supplier to generate ids.
+	 * @param supplier	The supplier of ids
+	 * @return	The strategy
+	 */
+	static IdStrategy of(Supplier<String> supplier) {
+		return (mp, resourceType) -> supplier.get();
+	}
+}
@@ -1,58 +1,50 @@
 package gov.cdc.izgw.v2tofhir.converter;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
-import org.apache.commons.codec.binary.StringUtils;
-import org.hl7.fhir.instance.model.api.IBaseMetaType;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Attachment;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Bundle.BundleType;
-import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.DocumentReference;
 import org.hl7.fhir.r4.model.DomainResource;
-import org.hl7.fhir.r4.model.Endpoint;
 import org.hl7.fhir.r4.model.Enumerations.DocumentReferenceStatus;
-import org.hl7.fhir.r4.model.HumanName;
 import org.hl7.fhir.r4.model.IdType;
-import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.Location;
-import org.hl7.fhir.r4.model.Meta;
-import org.hl7.fhir.r4.model.Organization;
-import org.hl7.fhir.r4.model.Practitioner;
-import org.hl7.fhir.r4.model.PractitionerRole;
 import org.hl7.fhir.r4.model.Provenance;
-import org.hl7.fhir.r4.model.Provenance.ProvenanceEntityRole;
-import org.hl7.fhir.r4.model.Reference;
-import org.hl7.fhir.r4.model.RelatedPerson;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
 
+import ca.uhn.hl7v2.DefaultHapiContext;
 import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.HapiContext;
 import ca.uhn.hl7v2.model.Message;
 import ca.uhn.hl7v2.model.Segment;
 import ca.uhn.hl7v2.model.Structure;
 import ca.uhn.hl7v2.model.Type;
-import ca.uhn.hl7v2.parser.PipeParser;
-import gov.cdc.izgw.v2tofhir.datatype.HumanNameParser;
-import gov.cdc.izgw.v2tofhir.segment.ERRParser;
+import ca.uhn.hl7v2.parser.CanonicalModelClassFactory;
+import ca.uhn.hl7v2.parser.Parser;
+import ca.uhn.hl7v2.validation.impl.ValidationContextFactory;
+import gov.cdc.izgw.v2tofhir.segment.AbstractStructureParser;
 import gov.cdc.izgw.v2tofhir.segment.StructureParser;
-import gov.cdc.izgw.v2tofhir.utils.Codes;
+import gov.cdc.izgw.v2tofhir.utils.Er7Segment;
+import gov.cdc.izgw.v2tofhir.utils.Mapping;
 import gov.cdc.izgw.v2tofhir.utils.ParserUtils;
-import io.azam.ulidj.ULID;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
@@ -62,7 +54,8 @@ import lombok.extern.slf4j.Slf4j;
  * 
  * The methods in any instance this class are not thread safe, but multiple threads can perform conversions
  * on different messages by using different instances of the MessageParser. The MessageParser class is 
- * intentionally cheap to create.
+ * intentionally cheap to create.  ConversionService manages a pool of MessageParser instances for 
+ * concurrent conversion.
  * 
  * Parsers and Converters in this package follow as best as possible the mapping advice provided
  * in the HL7 V2 to FHIR Implementation Guide.
@@ -79,7 +72,12 @@ public class MessageParser {
 	/** The originalText extension */
 	public static final String ORIGINAL_TEXT = "http://hl7.org/fhir/StructureDefinition/originalText";
 
+	/** Default settings for new MessageParser instances, shared by all threads (its settings are volatile) */
 	private static final Context defaultContext = new Context(null);
+	/** The HL7 V2 version messages are parsed into, as used by the CDC IIS Implementation Guide */
+	public static final String V2_VERSION = "2.5.1";
+	/** A V2 parser for each thread, so that HAPI setup is done once per thread rather than per message */ 
+	private static final ThreadLocal<Parser> defaultV2Parser = ThreadLocal.withInitial(MessageParser::newV2Parser);
 	
 	/**
 	 * Enable or disable storing of Provenance information for created resources.
@@ -102,16 +100,45 @@ public class MessageParser {
 	public static boolean isStoringProvenance() {
 		return defaultContext.isStoringProvenance();
 	}
+	
+	/**
+	 * Set the default policy for storing the source message in the DocumentReference 
+	 * created for each converted message.
+	 * 
+	 * @param contentPolicy	The policy to use, or null to restore the default (BOTH).
+	 */
+	public static void setDefaultContentPolicy(ContentPolicy contentPolicy) {
+		defaultContext.setContentPolicy(contentPolicy == null ? ContentPolicy.BOTH : contentPolicy);
+	}
+	
+	/**
+	 * Get the default policy for storing the source message in the DocumentReference 
+	 * created for each converted message.
+	 * @return the default policy for storing the source message
+	 */
+	public static ContentPolicy getDefaultContentPolicy() {
+		return defaultContext.getContentPolicy();
+	}
 	@Getter
 	/** The shared context for parse of this message 
 	 */
 	private final Context context;
 	
 	private final Set<IBaseResource> updated = new LinkedHashSet<>();
-	private final Map<String, Class<StructureParser>> parsers = new LinkedHashMap<>();
+	private final ProvenanceRecorder provenance = new ProvenanceRecorder(this);
+	private final Map<String, StructureParser> parsers = new LinkedHashMap<>();
 	private final Map<Structure, String> processed = new LinkedHashMap<>();
+	private final ResourceRegistry registry = new ResourceRegistry();
 	private StructureParser processor = null;
-	private Supplier<String> idGenerator = ULID::random;
+	private IdStrategy idStrategy = IdStrategy.monotonicUlid();
+	/** The number of structures of each name processed in the current message */
+	private final Map<String, Integer> structureCounts = new HashMap<>();
+	private String segmentPath = "";
+	private Function<String, String> contentStore = null;
+	private Parser v2Parser = null;
+	private boolean parsingText = false;
+	/** The text of segments in the structures being processed which are parsed from their text */
+	private Map<Segment, Er7Segment> texts = Collections.emptyMap();
 			
 	/**
 	 * Construct a new MessageParser.
@@ -120,6 +147,7 @@ public class MessageParser {
 		context = new Context(this);
 		// Copy default values to context on creation.
 		context.setStoringProvenance(defaultContext.isStoringProvenance());
+		context.setContentPolicy(defaultContext.getContentPolicy());
 	}
 	
 	/**
@@ -129,6 +157,10 @@ public class MessageParser {
 		getContext().clear();
 		updated.clear();
 		processed.clear();
+		registry.clear();
+		parsers.clear();
+		structureCounts.clear();
+		segmentPath = "";
 		processor = null;
 	}
 	
@@ -136,18 +168,119 @@ public class MessageParser {
 	 * Set the ID Generator for this MessageParser.
 	 * 
 	 * This is used during testing to get uniform ID Generation during tests
-	 * to enable comparison against a baseline.  If not set, ULID.random() is
-	 * used to generate identifiers for the resources created by this 
-	 * MessageParser. 
+	 * to enable comparison against a baseline.
 	 * 
+	 * @see #setIdStrategy(IdStrategy)
 	 * @param idGenerator	The idGenerator to use, or null to use the standard one.
 	 */
 	public void setIdGenerator(Supplier<String> idGenerator) {
-		if (idGenerator == null) {
-			this.idGenerator = ULID::random;
-		} else {
-			this.idGenerator = idGenerator;
-		}
+		setIdStrategy(idGenerator == null ? null : IdStrategy.of(idGenerator));
+	}
+	
+	/**
+	 * Set the strategy used to generate ids for the Bundle and resources created by this MessageParser.
+	 * If not set, IdStrategy.monotonicUlid() is used.
+	 * 
+	 * @param idStrategy	The strategy to use, or null to use the standard one.
+	 */
+	public void setIdStrategy(IdStrategy idStrategy) {
+		this.idStrategy = idStrategy == null ? IdStrategy.monotonicUlid() : idStrategy;
+	}
+	
+	/**
+	 * Set whether stream() parses segments from their text when their parsers can.
+	 * 
+	 * When set, the HAPI V2 parser is given only the names of these segments (e.g., PID) to 
+	 * keep the structure of the message, and the parser for the segment reads and parses just 
+	 * the fields it uses from the text.  The resources created are the same either way.
+	 * The default is false.
+	 * 
+	 * @see AbstractStructureParser#isParsingText()
+	 * @param parsingText	true to parse segments from their text when possible
+	 */
+	public void setParsingText(boolean parsingText) {
+		this.parsingText = parsingText;
+	}
+	
+	/**
+	 * Returns true if stream() parses segments from their text when their parsers can.
+	 * @see #setParsingText(boolean)
+	 * @return	true if stream() parses segments from their text when their parsers can
+	 */
+	public boolean isParsingText() {
+		return parsingText;
+	}
+	
+	/**
+	 * Returns true if segments with the given name are parsed from their text.
+	 * @param segment	The name of the segment
+	 * @return	true if segments with the given name are parsed from their text.
+	 */
+	boolean isParsingText(String segment) {
+		return parsingText && getParser(segment) instanceof AbstractStructureParser p && p.isParsingText();
+	}
+	
+	/**
+	 * Get the path of the structure being converted, used by IdStrategy.deterministic().
+	 * 
+	 * The path is the name of the structure and its occurrence within the message, starting 
+	 * from 1 (e.g., OBX[3]), or an empty string if no structure is being converted.
+	 * 
+	 * @return	The path of the structure being converted
+	 */
+	public String getSegmentPath() {
+		return segmentPath;
+	}
+	
+	/**
+	 * Set the store used for the source message when the content policy is REFERENCE.
+	 * 
+	 * The store is given the encoded message, and returns the URL at which it can be
+	 * retrieved.  That URL is recorded in the DocumentReference attachment in place
+	 * of the message content.
+	 * 
+	 * @param contentStore	The function storing the message, or null if there is none.
+	 */
+	public void setContentStore(Function<String, String> contentStore) {
+		this.contentStore = contentStore;
+	}
+	
+	/**
+	 * Create a new HL7 V2 parser configured for conversion.
+	 * 
+	 * The parser uses a HapiContext whose model classes are pinned to HL7 V2.5.1 (see
+	 * {@link #V2_VERSION}), regardless of the version in MSH-12, and which does not 
+	 * validate messages.  Conversion works with whatever data is present, so validation
+	 * would only add cost.
+	 *  
+	 * @return A new HL7 V2 parser configured for conversion
+	 */
+	public static Parser newV2Parser() {
+		HapiContext hapiContext = new DefaultHapiContext(new CanonicalModelClassFactory(V2_VERSION));
+		hapiContext.setValidationContext(ValidationContextFactory.noValidation());
+		return hapiContext.getPipeParser();
+	}
+	
+	/**
+	 * Set the HL7 V2 parser used by convert(String).
+	 * 
+	 * HAPI parsers are not thread safe, so the parser should only be shared by 
+	 * MessageParser instances used on the same thread. If not set, a parser created 
+	 * by {@link #newV2Parser()} is shared by all MessageParser instances on the current
+	 * thread.
+	 * 
+	 * @param v2Parser	The parser to use, or null to use the one for the current thread.
+	 */
+	public void setV2Parser(Parser v2Parser) {
+		this.v2Parser = v2Parser;
+	}
+	
+	/**
+	 * Get the HL7 V2 parser used by convert(String).
+	 * @return	The HL7 V2 parser used by convert(String).
+	 */
+	public Parser getV2Parser() {
+		return v2Parser == null ? defaultV2Parser.get() : v2Parser;
 	}
 	
 	/**
@@ -158,7 +291,7 @@ public class MessageParser {
 		Bundle b = getContext().getBundle();
 		if (b == null) {
 			b = new Bundle();
-			b.setId(new IdType(b.fhirType() + "/" + idGenerator.get()));
+			b.setId(new IdType(b.fhirType() + "/" + idStrategy.newId(this, b.fhirType())));
 			b.setType(BundleType.MESSAGE);
 			getContext().setBundle(b);
 		}
@@ -166,13 +299,17 @@ public class MessageParser {
 	}
 	
 	/**
-	 * Convert the hl7Message to a new Message using a PipeParser and then convert it.
+	 * Convert the hl7Message to a new Message using the V2 parser and then convert it.
+	 * 
+	 * The hl7Message text is used as the source message content in the DocumentReference
+	 * as given, rather than re-encoding the parsed message.
+	 * 
 	 * @param hl7Message	The HL7 Message
 	 * @return The converted bundle
 	 * @throws HL7Exception if an error occurred while parsing.
 	 */
 	public Bundle convert(String hl7Message) throws HL7Exception {
-    	return convert(new PipeParser().parse(hl7Message)); 
+    	return convert(getV2Parser().parse(hl7Message), hl7Message); 
 	}
 	
 	/**
@@ -189,44 +326,69 @@ public class MessageParser {
 	 * @return A FHIR Bundle containing the relevant resources. 
 	 */
 	public Bundle convert(Message msg) {
-		reset();
-		try {
-			initContext((Segment) msg.get("MSH"));
-		} catch (HL7Exception e) {
-			warn("Cannot retrieve MSH segment from message");
+		return convert(msg, null);
+	}
+	
+	/**
+	 * Convert an HL7 V2 message into a Bundle of FHIR Resources.
+	 * 
+	 * @param msg The message to convert.
+	 * @param encoded	The encoded form of the message, or null to encode it from msg.
+	 * @return A FHIR Bundle containing the relevant resources. 
+	 */
+	private Bundle convert(Message msg, String encoded) {
+		// Use the same terminology for the whole message, even if it is reloaded during conversion
+		try (Mapping.Pin pin = Mapping.pin()) {
+			reset();
+			try {
+				initContext((Segment) msg.get("MSH"));
+			} catch (HL7Exception e) {
+				warn("Cannot retrieve MSH segment from message");
+			}
+			if (encoded == null) {
+				try {
+					encoded = msg.encode();
+				} catch (HL7Exception e) {
+					warnException("Could not encode the message: {}", e.getMessage(), e);
+				}
+			}
+			DocumentReference dr = createResource(DocumentReference.class);
+			dr.setUserData(SOURCE, MessageParser.class.getName()); // Mark infrastructure created resources
+			dr.setStatus(DocumentReferenceStatus.CURRENT);
+			// See https://confluence.hl7.org/display/V2MG/HL7+locally+registered+V2+Media+Types
+			Attachment att = dr.addContent().getAttachment().setContentType("application/x.hl7v2+er7; charset=utf-8");
+			setContent(dr, att, encoded);
+			return createBundle(msg);
 		}
-		byte[] data;
-		try {
-			data = msg.encode().getBytes(StandardCharsets.UTF_8);
-		} catch (HL7Exception e) {
-			warn("Cannnot get encoded message");
-			data = new byte[0];
+	}
+	
+	private void setContent(DocumentReference dr, Attachment att, String encoded) {
+		ContentPolicy policy = getContext().getContentPolicy();
+		if (policy == ContentPolicy.REFERENCE) {
+			if (contentStore != null) {
+				if (encoded != null) {
+					att.setUrl(contentStore.apply(encoded));
+					att.setSize(encoded.getBytes(StandardCharsets.UTF_8).length);
+				}
+				return;
+			}
+			warn("No content store for REFERENCE content policy, storing message as text");
+			policy = ContentPolicy.TEXT;
 		}
-		String encoded = null;
-		try {
-			encoded = msg.encode();
-		} catch (HL7Exception e) {
-			warnException("Could not encode the message: {}", e.getMessage(), e);
+		if (policy.hasBytes()) {
+			att.setData(encoded == null ? new byte[0] : encoded.getBytes(StandardCharsets.UTF_8));
 		}
-		DocumentReference dr = createResource(DocumentReference.class);
-		dr.setUserData(SOURCE, MessageParser.class.getName()); // Mark infrastructure created resources
-		dr.setStatus(DocumentReferenceStatus.CURRENT);
-		// See https://confluence.hl7.org/display/V2MG/HL7+locally+registered+V2+Media+Types
-		Attachment att = dr.addContent().getAttachment().setContentType("application/x.hl7v2+er7; charset=utf-8");
-		att.setData(data);
-
-		// Add the encoded message as the original text for the content in both the binary
-		// and document reference resources.
-		if (encoded != null) {
-			StringType e = new StringType(encoded);
-			dr.getContentFirstRep().addExtension(ORIGINAL_TEXT, e);
+		// Add the encoded message as the original text for the content 
+		if (policy.hasText() && encoded != null) {
+			dr.getContentFirstRep().addExtension(ORIGINAL_TEXT, new StringType(encoded));
 		}
-
-		return createBundle(msg);
 	}
 	
-	private void initContext(Segment msh) {
+	void initContext(Segment msh) {
 		getContext().clear();
+		if (msh != null) {
+			getContext().setMessageControlId(ParserUtils.toString(msh, 10));
+		}
 		getBundle();
 		if (msh != null) {
 			try {
@@ -261,385 +423,184 @@ public class MessageParser {
 	 * @return	The generated Bundle
 	 */
 	public Bundle createBundle(Iterable<Structure> structures) {
-		Bundle b = getBundle();
-		boolean didWork = false;
-		processed.clear();
-		for (Structure structure: structures) {
-			updated.clear();
-			processor = getParser(structure.getName());
-			if (processor == null && !processed.containsKey(structure)) {
-				if (structure instanceof Segment) {
-					// Unprocessed segments indicate potential data loss, report them.
-					// warn("Cannot parse {} segment", structure.getName(), structure)
-				}
-			} else if (!processed.containsKey(structure)) { // Process any structures that haven't been processed yet
-				didWork = true;	// We did some work. It may have failed, but we did something.
-				try {
-					processor.parse(structure);
-				} catch (Exception e) {
-					warnException("Unexpected {} parsing {}: {}", e.getClass().getSimpleName(), structure.getName(), e.getMessage(), e);
-				} finally {
-					addProcessed(structure);
-				}
-			} else {
-				// Indicate processed structures that were skipped by other processors
-				log.info("{} processed by {}", structure.getName(), processed.get(structure));
-			}
-			if (didWork && getContext().isStoringProvenance() && structure instanceof Segment segment) {
-				// Provenance is updated by segments when we did work and are storing provenance
-				updateProvenance(segment);
-			}
+		try (Mapping.Pin pin = Mapping.pin()) {
+			Bundle b = getBundle();
+			process(structures, false);
+			provenance.finish(b.getEntry());
+			normalizeResources(b);
+			sortProvenance(b);
+			// Normalization and sorting remove and reorder entries, so reindex on next use.
+			registry.clear();
+			return b;
 		}
-		normalizeResources(b);
-		return sortProvenance(b);
 	}
 	
 	/**
-	 * Merge duplicated resources in the bundle.
-	 * 
-	 * In creating resources, V2toFHIR library may create duplicates for resources created from
-	 * names, identifiers, or other V2 datatypes.  This method will combine duplicates and references
-	 * into a single resource that represents the object.
-	 *  
-	 * @param bundle	The bundle to normalize.
+	 * Process structures with their parsers.
+	 * @param structures	The structures to process
+	 * @param didWork	true if work was done on a prior structure
+	 * @return	true if work has been done on these or prior structures
 	 */
-	public static void normalizeResources(Bundle bundle) {
-		// The resources should be normalized in a particular order, so that what references
-		// them is normalized after AFTER the resources that are referenced have been normalized.
-		// Fortunately, the normal alpha order on Endpoint, Location, Organization, Practitioner
-		// PractitionerRole, RelatedPerson works just fine, so we don't need to 
-		// specify any special comparator for the TreeMap.
-		
-		Map<String, List<Resource>> resourcesByType = new TreeMap<>();
-		bundle.getEntry().stream().map(e -> e.getResource()).forEach(r -> 
-			resourcesByType.computeIfAbsent(r.fhirType(), k -> new ArrayList<>()).add(r)
-		);
-		List<Resource> resourcesToRemove = new ArrayList<>(); 
-		for (List<Resource> l : resourcesByType.values()) {
-			for (int i = 0; i < l.size() - 1; i++) {
-				for (int j = i + 1; j < l.size(); j++) {
-					Resource first = l.get(i);
-					Resource later = l.get(j);
-					if (!first.fhirType().equals(later.fhirType())) {
-						// Skip cases where resources aren't of the same type.
-						continue;
-					}
-					Resource toRemove = mergeResources(first, later);
-					if (toRemove != null) {
-						resourcesToRemove.add(toRemove);
-					}
-				}
-			}
-		}
-		
-		Iterator<BundleEntryComponent> it = bundle.getEntry().iterator();
-		while (it.hasNext()) {
-			Resource r = it.next().getResource();
-			if (r != null && resourcesToRemove.remove(r)) {
-				it.remove();
-			}
-		}
-	}
-
-	private static Resource mergeResources(Resource first, Resource later) {
-		Resource toRemove = null;
-		switch (first.fhirType()) {
-		case "Endpoint":
-			toRemove = merge((Endpoint)first, (Endpoint)later);
-			break;
-		case "Location":
-			toRemove = merge((Location)first, (Location)later);
-			break;
-		case "Organization":
-			toRemove = merge((Organization)first, (Organization)later);
-			break;
-		case "Practitioner":
-			toRemove = merge((Practitioner)first, (Practitioner)later);
-			break;
-		case "PractitionerRole":
-			toRemove = merge((PractitionerRole)first, (PractitionerRole)later);
-			break;
-		case "RelatedPerson":
-			toRemove = merge((RelatedPerson)first, (RelatedPerson)later);
-			break;
-		default:
-			break;
+	boolean process(Iterable<Structure> structures, boolean didWork) {
+		processed.clear();
+		for (Structure structure: structures) {
+			didWork = process(structure, didWork);
 		}
-		return toRemove;
+		return didWork;
 	}
 	
 	/**
-	 * Compare two identifiers for compatibility.  If one or the other is null
-	 * they are compatible.
-	 * 
-	 * @param first	The first identifier
-	 * @param later	The later identifier
-	 * @return true if the two values are compatiable
+	 * Process structures with their parsers, parsing some of their segments from text.
+	 * @param structures	The structures to process
+	 * @param texts	The text of segments in structures to parse from their text
+	 * @param didWork	true if work was done on a prior structure
+	 * @return	true if work has been done on these or prior structures
 	 */
-	private static boolean identifiersEqual(Identifier first, Identifier later) {
-		if (first == null || later == null) {
-			// If one asserts an identifier, and the other does not, treat as equal
-			return true;
+	boolean process(Iterable<Structure> structures, Map<Segment, Er7Segment> texts, boolean didWork) {
+		this.texts = texts;
+		try {
+			return process(structures, didWork);
+		} finally {
+			this.texts = Collections.emptyMap();
 		}
-		return first.equalsDeep(later);
 	}
 	
 	/**
-	 * Compare two codes for compatibility.  If one or the other is null
-	 * but not both, they are NOT compatible (unlike identifier).
-	 * 
-	 * @param first	The first code
-	 * @param later	The later code
-	 * @return true if the two values are compatiable
+	 * Process a single structure with its parser.
+	 * @param structure	The structure to process
+	 * @param didWork	true if work was done on a prior structure
+	 * @return	true if work has been done on this or a prior structure
 	 */
-	private static boolean codesEqual(CodeableConcept first, CodeableConcept later) {
-		if (first == null && later == null) {
-			return true;
-		} else if (first == null || later == null) {
-			return false;
+	private boolean process(Structure structure, boolean didWork) {
+		updated.clear();
+		segmentPath = structure.getName() + "[" + structureCounts.merge(structure.getName(), 1, Integer::sum) + "]";
+		processor = getParser(structure.getName());
+		Er7Segment text = texts.get(structure);
+		if (processor == null && !processed.containsKey(structure)) {
+			if (structure instanceof Segment) {
+				// Unprocessed segments indicate potential data loss, report them.
+				// warn("Cannot parse {} segment", structure.getName(), structure)
+			}
+		} else if (!processed.containsKey(structure)) { // Process any structures that haven't been processed yet
+			didWork = true;	// We did some work. It may have failed, but we did something.
+			try {
+				processor.reset();
+				if (text != null && processor instanceof AbstractStructureParser p) {
+					p.parse(text, (Segment) structure);
+				} else {
+					processor.parse(structure);
+				}
+			} catch (Exception e) {
+				warnException("Unexpected {} parsing {}: {}", e.getClass().getSimpleName(), structure.getName(), e.getMessage(), e);
+			} finally {
+				addProcessed(structure);
+			}
+		} else {
+			// Indicate processed structures that were skipped by other processors
+			log.info("{} processed by {}", structure.getName(), processed.get(structure));
 		}
-		return first.equalsDeep(later);
+		if (didWork && getContext().isStoringProvenance() && structure instanceof Segment segment) {
+			// Provenance is updated by segments when we did work and are storing provenance
+			provenance.updated(segment, text, updated);
+		}
+		segmentPath = "";
+		return didWork;
 	}
 	
 	/**
-	 * Compare two human names for compatibility.  If one or the other is null
-	 * but not both, they are NOT compatible (unlike identifier).
+	 * Convert a single HL7 V2 message one segment at a time, without building a HAPI V2 Message
+	 * or Bundle for the whole message. 
+	 * 
+	 * This is intended for very large messages, such as RSP responses containing many
+	 * immunizations.  Segments are grouped into the message header, patient, and order groups
+	 * as they are read, and each group is converted when it is complete.  Resources are sent
+	 * to the sink once they can no longer be changed by later segments: those from an order group
+	 * when the group ends, those from a patient group when the next patient starts, and 
+	 * those from the message header at the end of the message.
+	 * 
+	 * Unlike convert(), duplicate resources are only merged within the resources sent to the sink
+	 * together, and no DocumentReference is created for the message content, since the
+	 * message is not retained.
 	 * 
-	 * @param first	The first name
-	 * @param later	The later name
-	 * @return true if the two values are compatible
+	 * @param reader	The reader containing the message
+	 * @param sink	The consumer of the converted resources
+	 * @throws IOException	If an error occurs reading the message
+	 * @throws HL7Exception	If the message does not begin with an MSH segment, or contains more than one message
 	 */
-	private static boolean namesEqual(HumanName first, HumanName later) {
-		if (first == null && later == null) {
-			return true;
-		} else if (first == null || later == null) {
-			return false;
-		} else if (first.isEmpty() && later.isEmpty()) {
-			// Both names are empty, a pretty degenerate case
-			return true;
-		} else if (first.isEmpty() || later.isEmpty()) {
-			return false;
-		}
-		
-		// Make a copy since we are going to "normalize" the names for comparison
-		HumanName f = first.copy();
-		HumanName l = later.copy();
-		
-		// We remove prefixes since they don't make a different.
-		// Omitting a prefix won't change the identity. They can change over time.
-		f.setPrefix(null);
-		l.setPrefix(null);
-
-		// We don't care about professional suffixes either. Sadly, FHIR doesn't distinguish these,
-		// so we must use some NLP to find them.
-		removeProfessionalSuffix(f);
-		removeProfessionalSuffix(l);
-		
-		// Suffixes do make a difference.  Jr ~= Sr ~= III, et cetera.
-		// But if one doesn't have suffixes and the other does, that's OK, so make them both empty.
-		if (!f.hasSuffix() || f.getSuffix().isEmpty() || !l.hasSuffix() || l.getSuffix().isEmpty()) {
-			f.setSuffix(null);
-			l.setSuffix(null);
-		}
-		
-		// We don't care about use.
-		f.setUse(null);
-		l.setUse(null);
-		
-		// We don't care about the text representation, just the parts.
-		f.setText(null);
-		l.setText(null);
-		
-		return f.equalsShallow(l);
-	}
-	
-	/**
-	 * Merge two names together than have been identified as being the same.
-	 * @param firstName	The name to merge into
-	 * @param laterName	The other name
-	 */
-	private static void mergeNames(HumanName firstName, HumanName laterName) {
-		// Merge suffixes
-		for (StringType suffix: laterName.getSuffix()) {
-			if (!firstName.getSuffix().contains(suffix)) {
-				firstName.getSuffix().add(suffix);
-			}
-		}
-		laterName.setSuffix(firstName.getSuffix());
-		// Merge prefixes
-		for (StringType prefix: laterName.getPrefix()) {
-			if (!firstName.getPrefix().contains(prefix)) {
-				firstName.getPrefix().add(prefix);
-			}
-		}
-		// Ensure both have same use, taken from first if present, otherwise later
-		if (firstName.hasUse()) {
-			laterName.setUse(firstName.getUse());
-		} else if (laterName.hasUse()) {
-			firstName.setUse(laterName.getUse());
-		}
-		
-		// Ensure both have same text, taken from first if present, otherwise later
-		if (firstName.hasText()) {
-			laterName.setText(firstName.getText());
-		} else if (laterName.hasText()) {
-			firstName.setText(laterName.getText());
+	public void stream(Reader reader, Consumer<Resource> sink) throws IOException, HL7Exception {
+		try (Mapping.Pin pin = Mapping.pin()) {
+			reset();
+			new MessageStreamer(this, sink).stream(reader);
+		} finally {
+			registry.clear();
 		}
 	}
-
+	
 	/**
-	 * Remove professional suffixes from a name
-	 * @param f	The name
-	 * @return 
+	 * Remove entries from the end of the bundle, and send their resources to a sink.
+	 * @param from	The index of the first entry to remove
+	 * @param sink	The consumer of the removed resources
 	 */
-	private static List<StringType> removeProfessionalSuffix(HumanName f) {
-		List<StringType> toRemove = new ArrayList<>();
-		for (StringType suffix : f.getSuffix()) {
-			if (HumanNameParser.isDegree(suffix.asStringValue())) {
-				toRemove.add(suffix);
-			}
-		}
-		for (StringType suffix : toRemove) {
-			f.getSuffix().remove(suffix);
+	void emit(int from, Consumer<Resource> sink) {
+		List<BundleEntryComponent> entries = getBundle().getEntry().subList(from, getBundle().getEntry().size());
+		if (entries.isEmpty()) {
+			return;
+		}
+		provenance.finish(entries);
+		entries = getBundle().getEntry().subList(from, getBundle().getEntry().size());
+		Bundle b = new Bundle();
+		b.getEntry().addAll(entries);
+		entries.clear();
+		registry.clear();
+		normalizeResources(b);
+		sortProvenance(b);
+		for (BundleEntryComponent entry: b.getEntry()) {
+			sink.accept(entry.getResource());
 		}
-		return toRemove;
 	}
-
+	
 	/**
-	 * Merge two endpoints if they are equal, and return the endpoint to remove
+	 * Merge duplicated resources in the bundle.
 	 * 
-	 * @param first	The first endpoint (which will be kept if they are merged)
-	 * @param later	The later endpoint (which will be removed if they are merged)
-	 * @return	The endpoint to remove, or null if the two endpoints are different.
+	 * In creating resources, V2toFHIR library may create duplicates for resources created from
+	 * names, identifiers, or other V2 datatypes.  This method will combine duplicates and references
+	 * into a single resource that represents the object.
+	 *  
+	 * @param bundle	The bundle to normalize.
 	 */
-	private static Endpoint merge(Endpoint first, Endpoint later) {
-		if (StringUtils.equals(first.getName(), later.getName()) &&
-			identifiersEqual(first.getIdentifierFirstRep(), later.getIdentifierFirstRep())
-		) {
-			ParserUtils.mergeReferences(first, later);
-			return later;
-		}
-		return null;
-	}
-
-	private static Organization merge(Organization first, Organization later) {
-		if (first == null || later == null) {
-			return null;
-		}
-		// If both have an endpoint, verify the endpoints are the same
-		if (first.hasEndpoint() && later.hasEndpoint()) {
-			Endpoint f = ParserUtils.getResource(Endpoint.class, first.getEndpointFirstRep());
-			Endpoint l = ParserUtils.getResource(Endpoint.class, later.getEndpointFirstRep());
-			if (merge(f, l) == null) {
-				// When endpoints are not the same the organizations need to be dealt with separately.
-				return null;
-			}
-		}
-		
-		if (StringUtils.equals(first.getName(), later.getName()) &&
-			identifiersEqual(first.getIdentifierFirstRep(), later.getIdentifierFirstRep())
-		) {
-			// Ensure both resources reference the same endpoint
-			if (later.hasEndpoint() && !first.hasEndpoint()) {
-				first.setEndpoint(later.getEndpoint());
-			}
-			if (first.hasEndpoint() && !later.hasEndpoint()) {
-				later.setEndpoint(first.getEndpoint());
-			}
-			ParserUtils.mergeReferences(first, later);
-			return later;
-		}
-		return null;
-	}
-	
-	private static Location merge(Location first, Location later) {
-		if (first == null || later == null) {
-			return null;
-		}
-		// Two locations are equal if a) their name, mode and physical types are equal
-
-		if (!Objects.equals(first.getName(), later.getName()) ||
-			!Objects.equals(first.getMode(), later.getMode()) ||
-			!codesEqual(first.getPhysicalType(), later.getPhysicalType())
-		) {
-			return null;
-		}
-		// and b) their partOf values are equal
-		if (merge(
-				ParserUtils.getResource(Location.class, first.getPartOf()),
-				ParserUtils.getResource(Location.class, first.getPartOf())
-			) == null
-		) {
-			return null;
-		}
-		ParserUtils.mergeReferences(first, later);
-		return later;
-	}
-
-	
-	private static RelatedPerson merge(RelatedPerson first, RelatedPerson later) {
-		if (namesEqual(first.getNameFirstRep(), later.getNameFirstRep()) &&
-			identifiersEqual(first.getIdentifierFirstRep(), later.getIdentifierFirstRep())
-		) {
-			ParserUtils.mergeReferences(first, later);
-			return later;
-		}
-		return null;
-	}
-
-	private static Practitioner merge(Practitioner first, Practitioner later) {
-		if (first == null || later == null) {
-			return null;
-		}
-		if (namesEqual(first.getNameFirstRep(), later.getNameFirstRep()) &&
-			identifiersEqual(first.getIdentifierFirstRep(), later.getIdentifierFirstRep())
-		) {
-			mergeNames(first.getNameFirstRep(), later.getNameFirstRep());
-			ParserUtils.mergeReferences(first, later);
-			return later;
-		}
-		return null;
+	public static void normalizeResources(Bundle bundle) {
+		ResourceMerger.normalize(bundle);
 	}
 
-	private static PractitionerRole merge(PractitionerRole first, PractitionerRole later) {
-		if (merge(
-				ParserUtils.getResource(Practitioner.class, first.getPractitioner()),
-				ParserUtils.getResource(Practitioner.class, later.getPractitioner())
-				) == null
-		) {
-			return null;
-		}
-		if (merge(
-			ParserUtils.getResource(Organization.class, first.getOrganization()),
-			ParserUtils.getResource(Organization.class, later.getOrganization())
-			) == null
-		) {
-			return null;
-		}
-		
-		ParserUtils.mergeReferences(first, later);
-		return later;
-	}
-	
 	/**
 	 * This method sorts Provenance resources to the end.
+	 * 
+	 * This is a stable partition done in a single pass over the entries: all other entries
+	 * keep their relative order, followed by the Provenance entries in their original order.
+	 * 
 	 * @param b	The bundle to sort
 	 * @return	The sorted bundle
 	 */
 	public Bundle sortProvenance(Bundle b) {
 		if (getContext().isStoringProvenance()) {
 			List<BundleEntryComponent> list = b.getEntry();
+			List<BundleEntryComponent> provenance = new ArrayList<>();
 			int len = list.size();
+			int kept = 0;
 			for (int i = 0; i < len; ++i) {
 				BundleEntryComponent c = list.get(i);
-				if (c == null || !c.hasResource()) {
-					continue;
+				if (c != null && c.hasResource() && "Provenance".equals(c.getResource().fhirType())) {
+					provenance.add(c);		// Save this provenance for the end
+				} else {
+					list.set(kept++, c);	// Compact everything else toward the front
 				}
-				if ("Provenance".equals(c.getResource().fhirType())) {
-					list.add(c);	// Add this provenance to the end
-					list.remove(i);	// And remove it from the current position
-					--i;			// NOSONAR: Backup a step to reprocess the new resource in this position.
-					--len;			// We don't need to look at entries we just shuffled around to the end
+			}
+			if (!provenance.isEmpty()) {
+				list.subList(kept, len).clear();
+				list.addAll(provenance);
+				if (b == getContext().getBundle()) {
+					// Entries were reordered, so reindex on next use.
+					registry.clear();
 				}
 			}
 		}
@@ -657,47 +618,13 @@ public class MessageParser {
 			processed.put(structure, processor.getClass().getSimpleName());
 		}
 	}
-	private static final Class<StructureParser> NULL_PARSER = StructureParser.class;
-	private void updateProvenance(Segment segment) {
-		for (IBaseResource r: updated) {
-			Provenance p = (Provenance) r.getUserData(Provenance.class.getName());
-			if (p == null) {
-				continue;
-			}
-			Reference what = p.getEntityFirstRep().getWhat();
-			try {
-				StringType whatText = new StringType(segment.encode()); // Was new StringType(context.getHl7DataId()+"#"+PathUtils.getTerserPath(segment))
-				what.addExtension().setUrl(ORIGINAL_TEXT).setValue(whatText);
-				IBaseMetaType meta = r.getMeta();
-				if (meta instanceof Meta m4) {
-					m4.getSourceElement().addExtension().setUrl(ORIGINAL_TEXT).setValue(whatText);
-				} else if (meta instanceof org.hl7.fhir.r4b.model.Meta m4b) {
-					m4b.getSourceElement().addExtension().setUrl(ORIGINAL_TEXT).setValue(whatText);
-				} else if (meta instanceof org.hl7.fhir.r5.model.Meta m5) {
-					m5.getSourceElement().addExtension().setUrl(ORIGINAL_TEXT).setValue(whatText);
-				} else if (meta instanceof org.hl7.fhir.dstu2.model.Meta m2) {
-					m2.addExtension().setUrl(ORIGINAL_TEXT).setValue(whatText);
-				} else if (meta instanceof org.hl7.fhir.dstu3.model.Meta m3) {
-					m3.addExtension().setUrl(ORIGINAL_TEXT).setValue(whatText);
-				}
-			} catch (HL7Exception e) {
-				warn("Unexpected {} updating provenance for {} segment: {}", e.getClass().getSimpleName(), segment.getName(), e.getMessage());
-			}
-		}
-	}
-	
 	/**
 	 * Get the generated resource with the given identifier.
 	 * @param id	The resource id
 	 * @return	The resource that was generated for the bundle with that identifier, or null if no such resource exists.
 	 */
 	public Resource getResource(String id) {
-		for (BundleEntryComponent entry: getContext().getBundle().getEntry()) {
-			if (id.equals(entry.getResource().getIdPart())) {
-				return entry.getResource();
-			}
-		}
-		return null;
+		return getRegistry().get(id);
 	}
 	/**
 	 * Get the generated resource of the specific class and identifier.
@@ -721,28 +648,34 @@ public class MessageParser {
 	 */
 	public <R extends Resource> List<R> getResources(Class<R> clazz) {
 		List<R> resources = new ArrayList<>();
-		for (BundleEntryComponent entry : getBundle().getEntry()) {
-			Resource r = entry.getResource();
-			if (clazz.isInstance(r)) {
-				resources.add(clazz.cast(r));
-			}
+		for (Resource r : getRegistry().get(clazz)) {
+			resources.add(clazz.cast(r));
 		}
 		return resources;
 	}
 	
+	/**
+	 * Get the Provenance of a generated resource.
+	 *
+	 * Provenance resources are normally created when conversion is finished. This method
+	 * creates the Provenance early for parsers which need to modify it.
+	 *
+	 * @param resource	The generated resource
+	 * @return The Provenance of the resource, or null if provenance is not being stored.
+	 */
+	public Provenance getProvenance(IBaseResource resource) {
+		return resource == null ? null : provenance.get(resource);
+	}
+
 	/**
 	 * Get the first generated resource of the specified type.
-	 * 
+	 *
 	 * @param <R>	The type of resource
 	 * @param clazz	The class of the resource
 	 * @return The generated resource or null if not found.
 	 */
 	public <R extends Resource> R getFirstResource(Class<R> clazz) {
-		List<R> resources = getResources(clazz);
-		if (resources.isEmpty()) {
-			return null;
-		}
-		return resources.get(0);
+		return clazz.cast(getRegistry().getFirst(clazz));
 	}
 
 	/**
@@ -753,11 +686,17 @@ public class MessageParser {
 	 * @return The generated resource or null if not found.
 	 */
 	public <R extends Resource> R getLastResource(Class<R> clazz) {
-		List<R> resources = getResources(clazz);
-		if (resources.isEmpty()) {
-			return null;
-		}
-		return resources.get(resources.size() - 1);
+		return clazz.cast(getRegistry().getLast(clazz));
+	}
+	
+	/**
+	 * Get the registry of resources in the bundle being constructed, ensuring that 
+	 * it is in step with the bundle.
+	 * @return	The resource registry
+	 */
+	private ResourceRegistry getRegistry() {
+		registry.sync(getBundle());
+		return registry;
 	}
 
 	/**
@@ -800,36 +739,26 @@ public class MessageParser {
 	 */
 	public <R extends IBaseResource> R addResource(String id, R resource) {
 		// See if it already exists in the bundle
-		if (getContext().getBundle().getEntry().stream()
-				.anyMatch(e -> e.getResource() == resource)) {
+		if (getRegistry().contains(resource)) {
 			// if it does, just return it. Nothing more is necessary.
 			return resource;
 		}
 		if (id == null) {
-			id = idGenerator.get();
+			id = idStrategy.newId(this, resource.fhirType());
 		}
 		IdType theId = new IdType(resource.fhirType(), id);
 		resource.setId(theId);
-		BundleEntryComponent entry = getContext().getBundle().addEntry().setResource((Resource) resource);
+		Bundle b = getContext().getBundle();
+		BundleEntryComponent entry = b.addEntry().setResource((Resource) resource);
+		registry.add(b, entry);
 		resource.setUserData(BundleEntryComponent.class.getName(), entry);
 		if (resource instanceof Provenance) {
 			return resource;
 		}
 		updated.add(resource);
 		if (getContext().isStoringProvenance() && resource instanceof DomainResource dr) { 
-			Provenance p = createResource(Provenance.class);
-			p.setUserData(SOURCE, MessageParser.class.getName());	// Mark infrastructure created resources
-			resource.setUserData(Provenance.class.getName(), p);
-			p.addTarget(ParserUtils.toReference(dr, p, "target"));
-			p.setRecorded(new Date());
-			// Copy constants so that they are not modified.
-			p.setActivity(Codes.CREATE_ACTIVITY.copy());
-			// Copy constants so that they are not modified.
-			p.addAgent().setType(Codes.ASSEMBLER_AGENT.copy());
-			DocumentReference doc = getFirstResource(DocumentReference.class);
-			if (doc != null) {
-				p.addEntity().setRole(ProvenanceEntityRole.QUOTATION).setWhat(ParserUtils.toReference(doc, p, "entity"));
-			}
+			// Provenance is created when conversion is finished
+			provenance.created(dr, idStrategy.newId(this, "Provenance"));
 		}
 		if (resource instanceof Location location && location.hasPartOf()) {
 			// Location resources can be created by the DatatypeConverter
@@ -864,33 +793,17 @@ public class MessageParser {
 	}
 
 	/**
-	 * Load a parser for a specified segment type.
+	 * Get the parser for a specified segment type.
+	 * 
+	 * One parser instance is created per segment type for this MessageParser and reused
+	 * for every structure of that type until reset() is called.  Callers must call
+	 * StructureParser.reset() before reusing the parser to parse another structure.
+	 * 
 	 * @param segment The segment to get a parser for
-	 * @return The parser for that segment.
+	 * @return The parser for that segment, or null if there is none.
 	 */
 	public StructureParser getParser(String segment) {
-		Class<StructureParser> p = parsers.get(segment);
-		if (p == null) {
-			p = loadParser(segment);
-			if (p == null) {
-				// Report inability to load ONCE
-				log.error("Cannot load parser for {}", segment);
-				// Save the fact that there is no parser for this segment
-				parsers.put(segment, NULL_PARSER);
-				return null;
-			}
-			parsers.put(segment, p);
-		}
-		if (p.equals(NULL_PARSER)) {
-			return null;
-		}
-		try {
-			return p.getDeclaredConstructor(MessageParser.class).newInstance(this);
-		} catch (InstantiationException | IllegalAccessException | IllegalArgumentException
-				| InvocationTargetException | NoSuchMethodException | SecurityException e) {
-			log.error("Unexpected {} while creating {} for {}", e.getClass().getSimpleName(), p.getName(), segment, e);
-			return null;
-		}
+		return parsers.computeIfAbsent(segment, s -> ParserRegistry.newParser(s, this));
 	}
 	/**
 	 * Load a parser for the specified segment or group
@@ -898,15 +811,7 @@ public class MessageParser {
 	 * @return	A StructureParser for the segment or group, or null if none found. 
 	 */
 	public Class<StructureParser> loadParser(String name) {
-		String packageName = ERRParser.class.getPackageName();
-		ClassLoader loader = MessageParser.class.getClassLoader();
-		try {
-			@SuppressWarnings("unchecked")
-			Class<StructureParser> clazz = (Class<StructureParser>) loader.loadClass(packageName + "." + name + "Parser");
-			return clazz;
-		} catch (ClassNotFoundException ex) {
-			return null;
-		} 
+		return ParserRegistry.getParserClass(name);
 	}
 	private static void warn(String msg, Object ...args) {
 		log.warn(msg, args);
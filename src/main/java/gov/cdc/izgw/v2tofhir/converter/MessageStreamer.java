@@ -0,0 +1,206 @@
+package gov.cdc.izgw.v2tofhir.converter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Resource;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.Segment;
+import ca.uhn.hl7v2.model.Structure;
+import gov.cdc.izgw.v2tofhir.utils.Er7Message;
+import gov.cdc.izgw.v2tofhir.utils.Er7Segment;
+import gov.cdc.izgw.v2tofhir.utils.ParserUtils;
+
+/**
+ * MessageStreamer converts a message for MessageParser.stream() one group of segments at a time.
+ *
+ * A small state machine tracks the group each segment belongs to using only the segment names:
+ * the message header (MSH and the segments before the first patient or order), a patient
+ * (PID and the segments following it), or an order (ORC or RXA and the segments following it).
+ * When a group ends, its segments are parsed by the HAPI V2 parser as a message containing only
+ * the MSH and the group, so that the parsers see the same group structure they would see in the
+ * whole message.  Only one group is held in memory at a time.
+ *
+ * When MessageParser.isParsingText() is set, segments whose parsers can parse them from their 
+ * text are given to the HAPI V2 parser as just their names, and are read by their parsers from 
+ * an Er7Message over the text of the group.
+ *
+ * @author Audacious Inquiry
+ */
+final class MessageStreamer {
+	private enum Scope { HEADER, PATIENT, ORDER }
+
+	private final MessageParser mp;
+	private final Consumer<Resource> sink;
+	private final StringBuilder group = new StringBuilder();
+	private String msh = null;
+	private Scope scope = Scope.HEADER;
+	private boolean groupHasRXA = false;
+	private boolean didWork = false;
+	/** The number of bundle entries created for the message header */
+	private int headerEnd = -1;
+	/** The number of bundle entries created before the current order group */
+	private int patientEnd = 0;
+
+	MessageStreamer(MessageParser mp, Consumer<Resource> sink) {
+		this.mp = mp;
+		this.sink = sink;
+	}
+
+	void stream(Reader reader) throws IOException, HL7Exception {
+		BufferedReader r = reader instanceof BufferedReader br ? br : new BufferedReader(reader);
+		String line;
+		while ((line = r.readLine()) != null) {
+			if (StringUtils.isBlank(line)) {
+				continue;
+			}
+			add(line);
+		}
+		if (msh == null) {
+			throw new HL7Exception("The message does not contain an MSH segment");
+		}
+		endGroup(Scope.HEADER);
+		mp.emit(0, sink);
+	}
+
+	private void add(String segment) throws HL7Exception {
+		String name = StringUtils.substring(segment, 0, 3);
+		if (msh == null) {
+			if (!"MSH".equals(name)) {
+				throw new HL7Exception("The message must begin with an MSH segment");
+			}
+			msh = segment;
+			return;
+		}
+		switch (name) {
+		case "MSH":
+			throw new HL7Exception("MessageParser.stream() converts a single message");
+		case "PID":
+			endGroup(Scope.PATIENT);
+			break;
+		case "ORC":
+			endGroup(Scope.ORDER);
+			break;
+		case "RXA":
+			if (scope != Scope.ORDER || groupHasRXA) {
+				// An RXA without an ORC starts a new order
+				endGroup(Scope.ORDER);
+			}
+			groupHasRXA = true;
+			break;
+		default:
+			break;
+		}
+		group.append(segment).append('\r');
+	}
+
+	/**
+	 * Convert the current group, send any completed resources to the sink, and start a new group.
+	 * @param next	The scope of the new group
+	 */
+	private void endGroup(Scope next) throws HL7Exception {
+		boolean first = headerEnd < 0;
+		if (group.length() != 0 || first) {
+			String text = msh + "\r" + group;
+			List<Er7Segment> texts = new ArrayList<>();
+			if (mp.isParsingText()) {
+				text = removeParsedText(text, texts);
+			}
+			Message msg = mp.getV2Parser().parse(text);
+			Set<Structure> structures = new LinkedHashSet<>();
+			ParserUtils.iterateStructures(msg, structures);
+			if (first) {
+				mp.initContext((Segment) msg.get("MSH"));
+			}
+			List<Structure> toProcess = new ArrayList<>(structures);
+			if (!first) {
+				// The MSH was processed with the header.
+				toProcess.remove(msg.get("MSH"));
+			}
+			didWork = mp.process(toProcess, matchTexts(structures, texts), didWork);
+		}
+		int size = mp.getBundle().getEntry().size();
+		switch (scope) {
+		case HEADER:
+			headerEnd = size;
+			patientEnd = size;
+			break;
+		case PATIENT:
+			patientEnd = size;
+			break;
+		case ORDER:
+			// Nothing in a later group changes the resources of an order
+			mp.emit(patientEnd, sink);
+			break;
+		}
+		if (next == Scope.PATIENT && headerEnd < patientEnd) {
+			// A new patient starts, so the prior patient is complete
+			mp.emit(headerEnd, sink);
+			patientEnd = headerEnd;
+		}
+		scope = next;
+		groupHasRXA = false;
+		group.setLength(0);
+	}
+
+	/**
+	 * Replace the segments of a group which are parsed from their text with just their names, 
+	 * so that HAPI V2 parses the structure of the group without parsing their fields.
+	 * @param text	The text of the MSH and the group
+	 * @param texts	The list to add the text of the replaced segments to, in order
+	 * @return	The text to be parsed by HAPI V2
+	 */
+	private String removeParsedText(String text, List<Er7Segment> texts) {
+		Er7Message er7 = new Er7Message(text);
+		StringBuilder b = new StringBuilder(text.length()).append(msh);
+		for (int i = 1; i < er7.size(); i++) {
+			Er7Segment seg = er7.get(i);
+			b.append('\r');
+			if (mp.isParsingText(seg.getName())) {
+				texts.add(seg);
+				b.append(seg.getName());
+			} else {
+				b.append(seg.getText());
+			}
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Match the segments HAPI V2 parsed from just their names to their text
+	 * @param structures	The structures in the group in order
+	 * @param texts	The text of the segments in order
+	 * @return	A map from each segment to its text
+	 */
+	private static Map<Segment, Er7Segment> matchTexts(Set<Structure> structures, List<Er7Segment> texts) {
+		if (texts.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Map<Segment, Er7Segment> matched = new IdentityHashMap<>();
+		Iterator<Er7Segment> it = texts.iterator();
+		Er7Segment text = it.next();
+		for (Structure structure: structures) {
+			if (structure instanceof Segment segment && segment.getName().equals(text.getName())) {
+				matched.put(segment, text);
+				if (!it.hasNext()) {
+					break;
+				}
+				text = it.next();
+			}
+		}
+		return matched;
+	}
+}
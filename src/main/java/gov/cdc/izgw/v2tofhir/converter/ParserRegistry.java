@@ -0,0 +1,132 @@
+package gov.cdc.izgw.v2tofhir.converter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import gov.cdc.izgw.v2tofhir.segment.ERRParser;
+import gov.cdc.izgw.v2tofhir.segment.ParserIndex;
+import gov.cdc.izgw.v2tofhir.segment.StructureParser;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * ParserRegistry resolves the StructureParser for a segment or group name once per JVM.
+ *
+ * Parsers are found first in the ParserIndex generated at build time, which creates them without
+ * reflection.  Otherwise parser classes are found by name in the segment package (e.g., PIDParser 
+ * for PID), and their MessageParser constructor is resolved to a MethodHandle that is cached along 
+ * with the class, so that creating a parser does not need a class lookup or reflective construction.
+ * Names for which there is no parser are also cached, and reported only once.
+ *
+ * @author Audacious Inquiry
+ */
+@Slf4j
+final class ParserRegistry {
+	private static final MethodType CONSTRUCTOR = MethodType.methodType(void.class, MessageParser.class);
+	private static final MethodType FACTORY = MethodType.methodType(StructureParser.class, MessageParser.class);
+	/** Marks names for which there is no parser */
+	private static final Entry NO_PARSER = new Entry(null, null);
+	private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	private static final class Entry {
+		private final Class<StructureParser> parserClass;
+		private final Function<MessageParser, StructureParser> factory;
+		private Entry(Class<StructureParser> parserClass, Function<MessageParser, StructureParser> factory) {
+			this.parserClass = parserClass;
+			this.factory = factory;
+		}
+	}
+
+	private ParserRegistry() {}
+
+	/**
+	 * Get the parser class for the specified segment or group
+	 * @param name	The name of the segment or group to find a parser for
+	 * @return	The StructureParser class for the segment or group, or null if none found.
+	 */
+	static Class<StructureParser> getParserClass(String name) {
+		return getEntry(name).parserClass;
+	}
+
+	/**
+	 * Create a new parser for the specified segment or group
+	 * @param name	The name of the segment or group to create a parser for
+	 * @param mp	The MessageParser that the new parser will work for
+	 * @return	A new StructureParser for the segment or group, or null if none found.
+	 */
+	static StructureParser newParser(String name, MessageParser mp) {
+		Entry entry = getEntry(name);
+		if (entry.factory == null) {
+			return null;
+		}
+		try {
+			return entry.factory.apply(mp);
+		} catch (RuntimeException e) {
+			log.error("Unexpected {} while creating {} for {}", e.getClass().getSimpleName(), entry.parserClass.getName(), name, e);
+			return null;
+		}
+	}
+
+	private static Entry getEntry(String name) {
+		return name == null ? NO_PARSER : entries.computeIfAbsent(name, ParserRegistry::resolve);
+	}
+
+	private static Entry resolve(String name) {
+		for (ParserIndex index: ParserIndex.INDEXES) {
+			@SuppressWarnings("unchecked")
+			Class<StructureParser> clazz = (Class<StructureParser>) index.getParserClass(name);
+			if (clazz != null) {
+				return new Entry(clazz, mp -> index.newParser(name, mp));
+			}
+		}
+		Class<StructureParser> clazz = loadParser(name);
+		if (clazz == null) {
+			// Report inability to load ONCE
+			log.error("Cannot load parser for {}", name);
+			return NO_PARSER;
+		}
+		try {
+			MethodHandle factory = MethodHandles.publicLookup()
+				.findConstructor(clazz, CONSTRUCTOR)
+				.asType(FACTORY);
+			return new Entry(clazz, mp -> newInstance(factory, mp));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			log.error("Unexpected {} while resolving constructor of {} for {}", e.getClass().getSimpleName(), clazz.getName(), name, e);
+			return new Entry(clazz, null);
+		}
+	}
+
+	private static StructureParser newInstance(MethodHandle factory, MessageParser mp) {
+		try {
+			return (StructureParser) factory.invokeExact(mp);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) { // NOSONAR invokeExact can throw anything the constructor does
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Load a parser for the specified segment or group
+	 * @param name	The name of the segment or group to find a parser for
+	 * @return	A StructureParser for the segment or group, or null if none found.
+	 */
+	private static Class<StructureParser> loadParser(String name) {
+		String packageName = ERRParser.class.getPackageName();
+		ClassLoader loader = MessageParser.class.getClassLoader();
+		try {
+			Class<?> clazz = loader.loadClass(packageName + "." + name + "Parser");
+			if (!StructureParser.class.isAssignableFrom(clazz)) {
+				return null;
+			}
+			@SuppressWarnings("unchecked")
+			Class<StructureParser> parserClass = (Class<StructureParser>) clazz;
+			return parserClass;
+		} catch (ClassNotFoundException ex) {
+			return null;
+		}
+	}
+}
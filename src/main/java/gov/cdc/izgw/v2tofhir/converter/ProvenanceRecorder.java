@@ -0,0 +1,240 @@
+package gov.cdc.izgw.v2tofhir.converter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseMetaType;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Meta;
+import org.hl7.fhir.r4.model.Provenance;
+import org.hl7.fhir.r4.model.Provenance.ProvenanceEntityRole;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Segment;
+import ca.uhn.hl7v2.parser.EncodingCharacters;
+import gov.cdc.izgw.v2tofhir.utils.Codes;
+import gov.cdc.izgw.v2tofhir.utils.Er7Segment;
+import gov.cdc.izgw.v2tofhir.utils.ParserUtils;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * ProvenanceRecorder defers the creation of Provenance resources for a MessageParser.
+ *
+ * While a message is converted, only the id of the Provenance for each created resource
+ * and the text of the segments which updated it are recorded.  The Provenance resources
+ * are built and added to the bundle in a single pass when conversion is finished, or when
+ * MessageParser.stream() emits the resources.  A segment is encoded once, when it first updates
+ * a resource, and its text is shared by all the resources it updated.  Nothing refers to the
+ * segment after that, so the text is only held until the provenance of those resources is built.
+ *
+ * Parsers which need to modify the Provenance of a resource during conversion (e.g., EVN) use
+ * get(), which builds it early.  It is still added to the bundle when conversion is finished.
+ *
+ * @author Audacious Inquiry
+ */
+@Slf4j
+final class ProvenanceRecorder {
+	/** The userData key for the pending provenance of a resource */
+	private static final String PENDING = ProvenanceRecorder.class.getName();
+	private static final String[] NO_TEXTS = {};
+
+	private final MessageParser mp;
+
+	/** The provenance of a resource which has not yet been added to the bundle */
+	private static final class Pending {
+		private final DomainResource target;
+		private final String id;
+		private Provenance provenance = null;
+		/** The text of the segments which updated the target */
+		private String[] texts = NO_TEXTS;
+		private int count = 0;
+
+		private Pending(DomainResource target, String id) {
+			this.target = target;
+			this.id = id;
+		}
+
+		private void add(String text) {
+			if (count == texts.length) {
+				texts = Arrays.copyOf(texts, Math.max(4, count * 2));
+			}
+			texts[count++] = text;
+		}
+	}
+
+	ProvenanceRecorder(MessageParser mp) {
+		this.mp = mp;
+	}
+
+	/**
+	 * Record that a resource was created.
+	 * The id of its Provenance is assigned now, so that ids are generated in creation order.
+	 * @param resource	The created resource
+	 * @param id	The id for its Provenance
+	 */
+	void created(DomainResource resource, String id) {
+		resource.setUserData(PENDING, new Pending(resource, id));
+	}
+
+	/**
+	 * Record that a segment created or updated resources.
+	 * @param segment	The segment
+	 * @param text	The text the segment was parsed from, or null if HAPI V2 parsed it
+	 * @param updated	The resources it created or updated
+	 */
+	void updated(Segment segment, Er7Segment text, Collection<IBaseResource> updated) {
+		String encoded = null;
+		for (IBaseResource r: updated) {
+			if (r.getUserData(PENDING) instanceof Pending p) {
+				if (encoded == null) {
+					encoded = text == null ? encode(segment) : encode(segment, text);
+					if (encoded == null) {
+						return;
+					}
+				}
+				p.add(encoded);
+			}
+		}
+	}
+
+	private static String encode(Segment segment) {
+		try {
+			return segment.encode();
+		} catch (HL7Exception e) {
+			log.warn("Unexpected {} updating provenance for {} segment: {}", e.getClass().getSimpleName(), segment.getName(), e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Encode a segment parsed from its text as HAPI V2 would have encoded it.
+	 * 
+	 * Only the fields that were read have been parsed into segment, so the text is encoded instead.
+	 * HAPI V2 removes leading whitespace from text values (e.g., ST) when it parses them, so the rest of
+	 * the fields of a segment with values starting with whitespace are read into it, and it is encoded
+	 * by HAPI V2.
+	 * 
+	 * @param segment	The segment
+	 * @param text	The text it was parsed from
+	 * @return	The encoded segment
+	 */
+	private static String encode(Segment segment, Er7Segment text) {
+		if (!hasLeadingWhitespace(text)) {
+			return text.encode();
+		}
+		try {
+			int fields = Math.min(text.getFieldCount(), segment.numFields());
+			for (int field = 1; field <= fields; field++) {
+				for (int rep = 0; rep < text.getRepetitionCount(field); rep++) {
+					DatatypeConverter.read(text, field, rep, segment.getField(field, rep));
+				}
+			}
+			return segment.encode();
+		} catch (HL7Exception e) {
+			log.warn("Unexpected {} encoding {} segment: {}", e.getClass().getSimpleName(), segment.getName(), e.getMessage());
+			return text.encode();
+		}
+	}
+
+	private static boolean hasLeadingWhitespace(Er7Segment text) {
+		EncodingCharacters enc = text.getMessage().getEncodingCharacters();
+		CharSequence chars = text.getText();
+		for (int i = 1; i < chars.length(); i++) {
+			char prev = chars.charAt(i - 1);
+			if (Character.isWhitespace(chars.charAt(i)) && (
+				prev == enc.getFieldSeparator() || prev == enc.getRepetitionSeparator() || 
+				prev == enc.getComponentSeparator() || prev == enc.getSubcomponentSeparator())
+			) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the Provenance for a resource, building it if necessary.
+	 * @param resource	The resource
+	 * @return	The provenance of the resource, or null if it has none.
+	 */
+	Provenance get(IBaseResource resource) {
+		if (resource.getUserData(PENDING) instanceof Pending p) {
+			return build(p, new Date(), mp.getFirstResource(DocumentReference.class));
+		}
+		return (Provenance) resource.getUserData(Provenance.class.getName());
+	}
+
+	/**
+	 * Build the Provenance for resources in entries and add it to the bundle.
+	 * @param entries	The entries to build provenance for
+	 */
+	void finish(List<BundleEntryComponent> entries) {
+		// Copy the resources because adding Provenance to the bundle may modify entries
+		List<IBaseResource> resources = new ArrayList<>(entries.size());
+		for (BundleEntryComponent entry: entries) {
+			if (entry.hasResource() && entry.getResource().getUserData(PENDING) != null) {
+				resources.add(entry.getResource());
+			}
+		}
+		if (resources.isEmpty()) {
+			return;
+		}
+		Date recorded = new Date();
+		DocumentReference doc = mp.getFirstResource(DocumentReference.class);
+		for (IBaseResource r: resources) {
+			Pending p = (Pending) r.getUserData(PENDING);
+			r.setUserData(PENDING, null);
+			Provenance provenance = build(p, recorded, doc);
+			if (p.count != 0) {
+				Reference what = provenance.getEntityFirstRep().getWhat();
+				for (int i = 0; i < p.count; i++) {
+					addOriginalText(r, what, p.texts[i]);
+				}
+			}
+			mp.addResource(p.id, provenance);
+		}
+	}
+
+	private Provenance build(Pending p, Date recorded, DocumentReference doc) {
+		if (p.provenance != null) {
+			return p.provenance;
+		}
+		Provenance provenance = new Provenance();
+		p.provenance = provenance;
+		provenance.setUserData(MessageParser.SOURCE, MessageParser.class.getName());	// Mark infrastructure created resources
+		p.target.setUserData(Provenance.class.getName(), provenance);
+		provenance.addTarget(ParserUtils.toReference(p.target, provenance, "target"));
+		provenance.setRecorded(new Date(recorded.getTime()));
+		// Copy constants so that they are not modified.
+		provenance.setActivity(Codes.CREATE_ACTIVITY.copy());
+		provenance.addAgent().setType(Codes.ASSEMBLER_AGENT.copy());
+		if (doc != null) {
+			provenance.addEntity().setRole(ProvenanceEntityRole.QUOTATION).setWhat(ParserUtils.toReference(doc, provenance, "entity"));
+		}
+		return provenance;
+	}
+
+	private void addOriginalText(IBaseResource r, Reference what, String text) {
+		StringType whatText = new StringType(text);
+		what.addExtension().setUrl(MessageParser.ORIGINAL_TEXT).setValue(whatText);
+		IBaseMetaType meta = r.getMeta();
+		if (meta instanceof Meta m4) {
+			m4.getSourceElement().addExtension().setUrl(MessageParser.ORIGINAL_TEXT).setValue(whatText);
+		} else if (meta instanceof org.hl7.fhir.r4b.model.Meta m4b) {
+			m4b.getSourceElement().addExtension().setUrl(MessageParser.ORIGINAL_TEXT).setValue(whatText);
+		} else if (meta instanceof org.hl7.fhir.r5.model.Meta m5) {
+			m5.getSourceElement().addExtension().setUrl(MessageParser.ORIGINAL_TEXT).setValue(whatText);
+		} else if (meta instanceof org.hl7.fhir.dstu2.model.Meta m2) {
+			m2.addExtension().setUrl(MessageParser.ORIGINAL_TEXT).setValue(whatText);
+		} else if (meta instanceof org.hl7.fhir.dstu3.model.Meta m3) {
+			m3.addExtension().setUrl(MessageParser.ORIGINAL_TEXT).setValue(whatText);
+		}
+	}
+}
@@ -0,0 +1,457 @@
+package gov.cdc.izgw.v2tofhir.converter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.binary.StringUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Endpoint;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.PractitionerRole;
+import org.hl7.fhir.r4.model.RelatedPerson;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+
+import gov.cdc.izgw.v2tofhir.datatype.HumanNameParser;
+import gov.cdc.izgw.v2tofhir.utils.ParserUtils;
+
+/**
+ * ResourceMerger combines duplicate resources created during conversion of a message.
+ * 
+ * Resources that can be merged (Endpoint, Location, Organization, Practitioner, PractitionerRole
+ * and RelatedPerson) are first grouped into buckets by a key computed from the values that must
+ * be equal for two resources to be merged (e.g., identifier system and value, and name).  Resources
+ * are only compared against other resources in the same bucket, and resources which are merged 
+ * into an earlier one are removed from the bundle in a single pass at the end.
+ * 
+ * @author Audacious Inquiry
+ */
+class ResourceMerger {
+	/** Separates parts of a bucket key */
+	private static final char SEP = '\u001f';
+	
+	private ResourceMerger() {}
+	
+	/**
+	 * Merge duplicated resources in the bundle.
+	 * 
+	 * @see MessageParser#normalizeResources(Bundle)
+	 * @param bundle	The bundle to normalize.
+	 */
+	static void normalize(Bundle bundle) {
+		// The resources should be normalized in a particular order, so that what references
+		// them is normalized after AFTER the resources that are referenced have been normalized.
+		// Fortunately, the normal alpha order on Endpoint, Location, Organization, Practitioner
+		// PractitionerRole, RelatedPerson works just fine, so we don't need to 
+		// specify any special comparator for the TreeMap.
+		Map<String, Map<String, List<Resource>>> bucketsByType = new TreeMap<>();
+		for (BundleEntryComponent entry: bundle.getEntry()) {
+			Resource r = entry.getResource();
+			String key = r == null ? null : getKey(r);
+			if (key != null) {
+				bucketsByType
+					.computeIfAbsent(r.fhirType(), k -> new LinkedHashMap<>())
+					.computeIfAbsent(key, k -> new ArrayList<>())
+					.add(r);
+			}
+		}
+		
+		Set<Resource> resourcesToRemove = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (Map<String, List<Resource>> buckets: bucketsByType.values()) {
+			for (List<Resource> l: buckets.values()) {
+				mergeBucket(l, resourcesToRemove);
+			}
+		}
+		if (!resourcesToRemove.isEmpty()) {
+			bundle.getEntry().removeIf(e -> e.getResource() != null && resourcesToRemove.contains(e.getResource()));
+		}
+	}
+
+	private static void mergeBucket(List<Resource> l, Set<Resource> resourcesToRemove) {
+		for (int i = 0; i < l.size() - 1; i++) {
+			Resource first = l.get(i);
+			for (int j = i + 1; j < l.size(); j++) {
+				Resource later = l.get(j);
+				if (resourcesToRemove.contains(later)) {
+					// Already merged into an earlier resource, and its references 
+					// already point there.
+					continue;
+				}
+				Resource toRemove = mergeResources(first, later);
+				if (toRemove != null) {
+					resourcesToRemove.add(toRemove);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Compute the bucket key for a resource.  Two resources of the same type can only be 
+	 * merged if they have the same key, but having the same key does not imply that they 
+	 * will be merged.
+	 * 
+	 * @param r	The resource
+	 * @return	The bucket key, or null if the resource can never be merged.
+	 */
+	private static String getKey(Resource r) {
+		switch (r.fhirType()) {
+		case "Endpoint":
+			Endpoint endpoint = (Endpoint) r;
+			return endpoint.getName() + SEP + getIdentifierKey(endpoint.getIdentifier());
+		case "Location":
+			Location location = (Location) r;
+			return location.getName() + SEP + location.getMode();
+		case "Organization":
+			return getKey((Organization) r);
+		case "Practitioner":
+			return getKey((Practitioner) r);
+		case "PractitionerRole":
+			PractitionerRole role = (PractitionerRole) r;
+			Practitioner pract = ParserUtils.getResource(Practitioner.class, role.getPractitioner());
+			Organization org = ParserUtils.getResource(Organization.class, role.getOrganization());
+			if (pract == null || org == null) {
+				// Roles are only merged when both practitioner and organization can be merged
+				return null;
+			}
+			return getKey(pract) + SEP + getKey(org);
+		case "RelatedPerson":
+			RelatedPerson person = (RelatedPerson) r;
+			return getNameKey(person.getName()) + SEP + getIdentifierKey(person.getIdentifier());
+		default:
+			return null;
+		}
+	}
+	
+	private static String getKey(Organization org) {
+		return org.getName() + SEP + getIdentifierKey(org.getIdentifier());
+	}
+	
+	private static String getKey(Practitioner pract) {
+		return getNameKey(pract.getName()) + SEP + getIdentifierKey(pract.getIdentifier());
+	}
+	
+	/**
+	 * Key on the system and value of the first identifier. 
+	 * @param identifiers	The identifiers
+	 * @return	The key
+	 */
+	private static String getIdentifierKey(List<Identifier> identifiers) {
+		if (identifiers.isEmpty()) {
+			return String.valueOf(SEP);
+		}
+		Identifier ident = identifiers.get(0);
+		return Objects.toString(ident.getSystem(), "") + SEP + Objects.toString(ident.getValue(), "");
+	}
+	
+	/**
+	 * Key on the family and given parts of the first name, which are the 
+	 * parts that namesEqual() requires to match.
+	 * @param names	The names
+	 * @return	The key
+	 */
+	private static String getNameKey(List<HumanName> names) {
+		if (names.isEmpty()) {
+			return "";
+		}
+		HumanName name = names.get(0);
+		StringBuilder b = new StringBuilder();
+		b.append(Objects.toString(name.getFamily(), ""));
+		for (StringType given: name.getGiven()) {
+			b.append(SEP).append(Objects.toString(given.getValue(), ""));
+		}
+		return b.toString();
+	}
+
+	static Resource mergeResources(Resource first, Resource later) {
+		Resource toRemove = null;
+		switch (first.fhirType()) {
+		case "Endpoint":
+			toRemove = merge((Endpoint)first, (Endpoint)later);
+			break;
+		case "Location":
+			toRemove = merge((Location)first, (Location)later);
+			break;
+		case "Organization":
+			toRemove = merge((Organization)first, (Organization)later);
+			break;
+		case "Practitioner":
+			toRemove = merge((Practitioner)first, (Practitioner)later);
+			break;
+		case "PractitionerRole":
+			toRemove = merge((PractitionerRole)first, (PractitionerRole)later);
+			break;
+		case "RelatedPerson":
+			toRemove = merge((RelatedPerson)first, (RelatedPerson)later);
+			break;
+		default:
+			break;
+		}
+		return toRemove;
+	}
+	
+	/**
+	 * Compare two identifiers for compatibility.  If one or the other is null
+	 * they are compatible.
+	 * 
+	 * @param first	The first identifier
+	 * @param later	The later identifier
+	 * @return true if the two values are compatiable
+	 */
+	private static boolean identifiersEqual(Identifier first, Identifier later) {
+		if (first == null || later == null) {
+			// If one asserts an identifier, and the other does not, treat as equal
+			return true;
+		}
+		return first.equalsDeep(later);
+	}
+	
+	/**
+	 * Compare two codes for compatibility.  If one or the other is null
+	 * but not both, they are NOT compatible (unlike identifier).
+	 * 
+	 * @param first	The first code
+	 * @param later	The later code
+	 * @return true if the two values are compatiable
+	 */
+	private static boolean codesEqual(CodeableConcept first, CodeableConcept later) {
+		if (first == null && later == null) {
+			return true;
+		} else if (first == null || later == null) {
+			return false;
+		}
+		return first.equalsDeep(later);
+	}
+	
+	/**
+	 * Compare two human names for compatibility.  If one or the other is null
+	 * but not both, they are NOT compatible (unlike identifier).
+	 * 
+	 * @param first	The first name
+	 * @param later	The later name
+	 * @return true if the two values are compatible
+	 */
+	private static boolean namesEqual(HumanName first, HumanName later) {
+		if (first == null && later == null) {
+			return true;
+		} else if (first == null || later == null) {
+			return false;
+		} else if (first.isEmpty() && later.isEmpty()) {
+			// Both names are empty, a pretty degenerate case
+			return true;
+		} else if (first.isEmpty() || later.isEmpty()) {
+			return false;
+		}
+		
+		// Make a copy since we are going to "normalize" the names for comparison
+		HumanName f = first.copy();
+		HumanName l = later.copy();
+		
+		// We remove prefixes since they don't make a different.
+		// Omitting a prefix won't change the identity. They can change over time.
+		f.setPrefix(null);
+		l.setPrefix(null);
+
+		// We don't care about professional suffixes either. Sadly, FHIR doesn't distinguish these,
+		// so we must use some NLP to find them.
+		removeProfessionalSuffix(f);
+		removeProfessionalSuffix(l);
+		
+		// Suffixes do make a difference.  Jr ~= Sr ~= III, et cetera.
+		// But if one doesn't have suffixes and the other does, that's OK, so make them both empty.
+		if (!f.hasSuffix() || f.getSuffix().isEmpty() || !l.hasSuffix() || l.getSuffix().isEmpty()) {
+			f.setSuffix(null);
+			l.setSuffix(null);
+		}
+		
+		// We don't care about use.
+		f.setUse(null);
+		l.setUse(null);
+		
+		// We don't care about the text representation, just the parts.
+		f.setText(null);
+		l.setText(null);
+		
+		return f.equalsShallow(l);
+	}
+	
+	/**
+	 * Merge two names together than have been identified as being the same.
+	 * @param firstName	The name to merge into
+	 * @param laterName	The other name
+	 */
+	private static void mergeNames(HumanName firstName, HumanName laterName) {
+		// Merge suffixes
+		for (StringType suffix: laterName.getSuffix()) {
+			if (!firstName.getSuffix().contains(suffix)) {
+				firstName.getSuffix().add(suffix);
+			}
+		}
+		laterName.setSuffix(firstName.getSuffix());
+		// Merge prefixes
+		for (StringType prefix: laterName.getPrefix()) {
+			if (!firstName.getPrefix().contains(prefix)) {
+				firstName.getPrefix().add(prefix);
+			}
+		}
+		// Ensure both have same use, taken from first if present, otherwise later
+		if (firstName.hasUse()) {
+			laterName.setUse(firstName.getUse());
+		} else if (laterName.hasUse()) {
+			firstName.setUse(laterName.getUse());
+		}
+		
+		// Ensure both have same text, taken from first if present, otherwise later
+		if (firstName.hasText()) {
+			laterName.setText(firstName.getText());
+		} else if (laterName.hasText()) {
+			firstName.setText(laterName.getText());
+		}
+	}
+
+	/**
+	 * Remove professional suffixes from a name
+	 * @param f	The name
+	 * @return 
+	 */
+	private static List<StringType> removeProfessionalSuffix(HumanName f) {
+		List<StringType> toRemove = new ArrayList<>();
+		for (StringType suffix : f.getSuffix()) {
+			if (HumanNameParser.isDegree(suffix.asStringValue())) {
+				toRemove.add(suffix);
+			}
+		}
+		for (StringType suffix : toRemove) {
+			f.getSuffix().remove(suffix);
+		}
+		return toRemove;
+	}
+
+	/**
+	 * Merge two endpoints if they are equal, and return the endpoint to remove
+	 * 
+	 * @param first	The first endpoint (which will be kept if they are merged)
+	 * @param later	The later endpoint (which will be removed if they are merged)
+	 * @return	The endpoint to remove, or null if the two endpoints are different.
+	 */
+	private static Endpoint merge(Endpoint first, Endpoint later) {
+		if (StringUtils.equals(first.getName(), later.getName()) &&
+			identifiersEqual(first.getIdentifierFirstRep(), later.getIdentifierFirstRep())
+		) {
+			ParserUtils.mergeReferences(first, later);
+			return later;
+		}
+		return null;
+	}
+
+	private static Organization merge(Organization first, Organization later) {
+		if (first == null || later == null) {
+			return null;
+		}
+		// If both have an endpoint, verify the endpoints are the same
+		if (first.hasEndpoint() && later.hasEndpoint()) {
+			Endpoint f = ParserUtils.getResource(Endpoint.class, first.getEndpointFirstRep());
+			Endpoint l = ParserUtils.getResource(Endpoint.class, later.getEndpointFirstRep());
+			if (merge(f, l) == null) {
+				// When endpoints are not the same the organizations need to be dealt with separately.
+				return null;
+			}
+		}
+		
+		if (StringUtils.equals(first.getName(), later.getName()) &&
+			identifiersEqual(first.getIdentifierFirstRep(), later.getIdentifierFirstRep())
+		) {
+			// Ensure both resources reference the same endpoint
+			if (later.hasEndpoint() && !first.hasEndpoint()) {
+				first.setEndpoint(later.getEndpoint());
+			}
+			if (first.hasEndpoint() && !later.hasEndpoint()) {
+				later.setEndpoint(first.getEndpoint());
+			}
+			ParserUtils.mergeReferences(first, later);
+			return later;
+		}
+		return null;
+	}
+	
+	private static Location merge(Location first, Location later) {
+		if (first == null || later == null) {
+			return null;
+		}
+		// Two locations are equal if a) their name, mode and physical types are equal
+
+		if (!Objects.equals(first.getName(), later.getName()) ||
+			!Objects.equals(first.getMode(), later.getMode()) ||
+			!codesEqual(first.getPhysicalType(), later.getPhysicalType())
+		) {
+			return null;
+		}
+		// and b) their partOf values are equal
+		if (merge(
+				ParserUtils.getResource(Location.class, first.getPartOf()),
+				ParserUtils.getResource(Location.class, first.getPartOf())
+			) == null
+		) {
+			return null;
+		}
+		ParserUtils.mergeReferences(first, later);
+		return later;
+	}
+
+	
+	private static RelatedPerson merge(RelatedPerson first, RelatedPerson later) {
+		if (namesEqual(first.getNameFirstRep(), later.getNameFirstRep()) &&
+			identifiersEqual(first.getIdentifierFirstRep(), later.getIdentifierFirstRep())
+		) {
+			ParserUtils.mergeReferences(first, later);
+			return later;
+		}
+		return null;
+	}
+
+	private static Practitioner merge(Practitioner first, Practitioner later) {
+		if (first == null || later == null) {
+			return null;
+		}
+		if (namesEqual(first.getNameFirstRep(), later.getNameFirstRep()) &&
+			identifiersEqual(first.getIdentifierFirstRep(), later.getIdentifierFirstRep())
+		) {
+			mergeNames(first.getNameFirstRep(), later.getNameFirstRep());
+			ParserUtils.mergeReferences(first, later);
+			return later;
+		}
+		return null;
+	}
+
+	private static PractitionerRole merge(PractitionerRole first, PractitionerRole later) {
+		if (merge(
+				ParserUtils.getResource(Practitioner.class, first.getPractitioner()),
+				ParserUtils.getResource(Practitioner.class, later.getPractitioner())
+				) == null
+		) {
+			return null;
+		}
+		if (merge(
+			ParserUtils.getResource(Organization.class, first.getOrganization()),
+			ParserUtils.getResource(Organization.class, later.getOrganization())
+			) == null
+		) {
+			return null;
+		}
+		
+		ParserUtils.mergeReferences(first, later);
+		return later;
+	}
+}
@@ -0,0 +1,163 @@
+package gov.cdc.izgw.v2tofhir.converter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * ResourceRegistry indexes the resources in the Bundle being created by a MessageParser
+ * so that lookups by identity, id and resource type do not need to scan the Bundle.
+ *
+ * The registry is kept in step with the bundle by MessageParser, which adds each resource
+ * it creates through add(), and clears the registry whenever it removes or reorders entries in
+ * the bundle (e.g., when duplicate resources are merged, Provenance is sorted to the end, or
+ * resources are emitted while streaming).  A cleared registry, or one for a bundle which has
+ * been replaced, is rebuilt from the bundle on the next lookup.  Entries added directly to the
+ * bundle are also detected by the change in the number of entries, but entries removed or
+ * replaced other than by MessageParser are not.
+ *
+ * Lists by resource type are built lazily the first time a given class is requested, and
+ * are maintained as resources are added afterwards.  This preserves the isInstance semantics
+ * of the lookup (e.g., a request for DomainResource finds Patient resources).
+ *
+ * @author Audacious Inquiry
+ */
+class ResourceRegistry {
+	private final Map<IBaseResource, BundleEntryComponent> byIdentity = new IdentityHashMap<>();
+	private final Map<String, Resource> byId = new LinkedHashMap<>();
+	private final Map<Class<?>, List<Resource>> byClass = new LinkedHashMap<>();
+	private Bundle bundle = null;
+	/** The number of entries indexed, used to detect entries added directly to the bundle */
+	private int size = 0;
+
+	/**
+	 * Clear the registry.  This must be called after removing or reordering entries in the bundle.
+	 */
+	void clear() {
+		byIdentity.clear();
+		byId.clear();
+		byClass.clear();
+		bundle = null;
+		size = 0;
+	}
+
+	/**
+	 * Ensure the registry is in step with the given bundle, rebuilding it if necessary.
+	 * @param b	The bundle being constructed
+	 */
+	void sync(Bundle b) {
+		if (b == bundle && (b == null || b.getEntry().size() == size)) {
+			return;
+		}
+		clear();
+		bundle = b;
+		if (b == null) {
+			return;
+		}
+		for (BundleEntryComponent entry: b.getEntry()) {
+			index(entry);
+		}
+	}
+
+	/**
+	 * Add a new bundle entry to the registry.
+	 * @param b	The bundle the entry was added to
+	 * @param entry	The entry
+	 */
+	void add(Bundle b, BundleEntryComponent entry) {
+		if (b != bundle || b.getEntry().size() != size + 1) {
+			// Something changed the bundle behind our back.
+			sync(b);
+			return;
+		}
+		index(entry);
+		Resource r = entry.getResource();
+		for (Map.Entry<Class<?>, List<Resource>> e: byClass.entrySet()) {
+			if (e.getKey().isInstance(r)) {
+				e.getValue().add(r);
+			}
+		}
+	}
+
+	private void index(BundleEntryComponent entry) {
+		size++;
+		Resource r = entry.getResource();
+		if (r == null) {
+			return;
+		}
+		byIdentity.put(r, entry);
+		String id = r.getIdPart();
+		if (id != null) {
+			byId.putIfAbsent(id, r);
+		}
+	}
+
+	/**
+	 * Returns true if the resource is already in the bundle.
+	 * @param r	The resource to check
+	 * @return	true if the resource is already in the bundle.
+	 */
+	boolean contains(IBaseResource r) {
+		return byIdentity.containsKey(r);
+	}
+
+	/**
+	 * Get the first resource with the given id
+	 * @param id	The id of the resource
+	 * @return	The resource, or null if not found.
+	 */
+	Resource get(String id) {
+		return id == null ? null : byId.get(id);
+	}
+
+	/**
+	 * Get an unmodifiable view of all resources of the given class in bundle order.
+	 * @param clazz	The class of resource
+	 * @return	An unmodifiable view of all resources of the given class
+	 */
+	List<Resource> get(Class<?> clazz) {
+		return Collections.unmodifiableList(list(clazz));
+	}
+
+	/**
+	 * Get the first resource of the given class.
+	 * @param clazz	The class of resource
+	 * @return	The first resource, or null if there are none
+	 */
+	Resource getFirst(Class<?> clazz) {
+		List<Resource> l = list(clazz);
+		return l.isEmpty() ? null : l.get(0);
+	}
+
+	/**
+	 * Get the last resource of the given class.
+	 * @param clazz	The class of resource
+	 * @return	The last resource, or null if there are none
+	 */
+	Resource getLast(Class<?> clazz) {
+		List<Resource> l = list(clazz);
+		return l.isEmpty() ? null : l.get(l.size() - 1);
+	}
+
+	private List<Resource> list(Class<?> clazz) {
+		return byClass.computeIfAbsent(clazz, k -> {
+			List<Resource> l = new ArrayList<>();
+			if (bundle != null) {
+				for (BundleEntryComponent entry: bundle.getEntry()) {
+					if (k.isInstance(entry.getResource())) {
+						l.add(entry.getResource());
+					}
+				}
+			}
+			return l;
+		});
+	}
+}
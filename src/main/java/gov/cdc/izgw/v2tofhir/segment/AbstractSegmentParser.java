@@ -6,6 +6,7 @@ import ca.uhn.hl7v2.HL7Exception;
 import ca.uhn.hl7v2.model.Segment;
 import ca.uhn.hl7v2.model.Structure;
 import gov.cdc.izgw.v2tofhir.converter.MessageParser;
+import gov.cdc.izgw.v2tofhir.utils.Er7Segment;
 import lombok.extern.slf4j.Slf4j;
 
 
@@ -45,6 +46,16 @@ public abstract class AbstractSegmentParser extends AbstractStructureParser {
 		}
 		super.parse(segment);
 	}
+	
+	@Override
+	public void parse(Er7Segment text, Segment segment) {
+		if (getProduces() == null) {
+			throw new ServiceConfigurationError(
+				"Missing @Produces on " + this.getClass().getSimpleName()
+			);
+		}
+		super.parse(text, segment);
+	}
 
 	/**
 	 * Warn about a specific problem found while parsing.
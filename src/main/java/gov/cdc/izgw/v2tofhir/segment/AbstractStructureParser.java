@@ -12,6 +12,7 @@ import ca.uhn.hl7v2.model.Segment;
 import gov.cdc.izgw.v2tofhir.annotation.Produces;
 import gov.cdc.izgw.v2tofhir.converter.Context;
 import gov.cdc.izgw.v2tofhir.converter.MessageParser;
+import gov.cdc.izgw.v2tofhir.utils.Er7Segment;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -65,6 +66,11 @@ public abstract class AbstractStructureParser implements StructureParser {
 		return structureName;
 	}
 	
+	@Override
+	public void reset() {
+		segment = null;
+	}
+	
 	/**
 	 * Return the message parser
 	 * @return the message parser
@@ -243,6 +249,45 @@ public abstract class AbstractStructureParser implements StructureParser {
 		}
 	}
 	
+	/**
+	 * Annotation driven parsing of a segment read from the text of the message.
+	 * 
+	 * This works as parse(Segment) does, except that segment starts out empty, and the 
+	 * field handlers parse only the fields they read from text into it.  It is used by 
+	 * MessageParser for parsers which return true from isParsingText().
+	 * 
+	 * @param text	The text of the segment to be parsed
+	 * @param segment	The segment the text was read from, which holds the fields that were read
+	 */
+	public void parse(Er7Segment text, Segment segment) {
+		if (text.isEmpty()) {
+			return;
+		}
+
+		this.segment = segment;
+		IBaseResource r = setup();
+		if (r == null) {
+			// setup() returned nothing, there must be nothing to do
+			return;
+		}
+		List<FieldHandler> handlers = getFieldHandlers();
+		for (FieldHandler fieldHandler : handlers) {
+			fieldHandler.handle(this, text, segment, r);
+		}
+	}
+
+	/**
+	 * Returns true if this parser can parse a segment from its text.
+	 * 
+	 * A parser can do so when it reads the segment only through its ComesFrom annotations, 
+	 * so that the fields it reads are all that need to be parsed.
+	 * 
+	 * @return	true if this parser can parse a segment from its text, false by default
+	 */
+	public boolean isParsingText() {
+		return false;
+	}
+	
 	/** 
 	 * Set up any resources that field handlers will use.  Used during
 	 * initialization of field handlers as well as during a normal 
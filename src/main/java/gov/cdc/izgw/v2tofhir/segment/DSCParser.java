@@ -34,9 +34,13 @@ public class DSCParser extends AbstractSegmentParser {
 	 */
 	public DSCParser(MessageParser messageParser) {
 		super(messageParser, "DSC");
-		if (fieldHandlers.isEmpty()) {
-			FieldHandler.initFieldHandlers(this, fieldHandlers);
-		}
+		FieldHandler.initFieldHandlers(this, fieldHandlers);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		params = null;
 	}
 	
 	@Override
@@ -81,9 +81,13 @@ public class ERRParser extends AbstractSegmentParser {
 	 */
 	public ERRParser(MessageParser messageParser) {
 		super(messageParser, "ERR");
-		if (fieldHandlers.isEmpty()) {
-			FieldHandler.initFieldHandlers(this, fieldHandlers);
-		}
+		FieldHandler.initFieldHandlers(this, fieldHandlers);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		issue = null;
 	}
 	
 	@Override
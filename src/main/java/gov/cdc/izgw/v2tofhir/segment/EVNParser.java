@@ -42,9 +42,13 @@ public class EVNParser extends AbstractSegmentParser {
 	 */
 	public EVNParser(MessageParser messageParser) {
 		super(messageParser, "EVN");
-		if (fieldHandlers.isEmpty()) {
-			FieldHandler.initFieldHandlers(this, fieldHandlers);
-		}
+		FieldHandler.initFieldHandlers(this, fieldHandlers);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		provenance = null;
 	}
 
 	@Override
@@ -55,7 +59,7 @@ public class EVNParser extends AbstractSegmentParser {
 	public IBaseResource setup() {
 		MessageHeader mh = getFirstResource(MessageHeader.class);
 		if (mh != null) {
-			provenance = (Provenance) mh.getUserData(Provenance.class.getName());
+			provenance = getMessageParser().getProvenance(mh);
 		} else {
 			// Create a standalone provenance resource for segment testing
 			provenance = createResource(Provenance.class);
@@ -1,5 +1,10 @@
 package gov.cdc.izgw.v2tofhir.segment;
 
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
@@ -8,14 +13,17 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.ServiceConfigurationError;
+import java.util.function.BiConsumer;
 
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Base;
 
 import com.ainq.fhir.utils.PathUtils;
 import com.ainq.fhir.utils.Property;
 
+import ca.uhn.hl7v2.HL7Exception;
 import ca.uhn.hl7v2.model.Composite;
 import ca.uhn.hl7v2.model.DataTypeException;
 import ca.uhn.hl7v2.model.Segment;
@@ -24,6 +32,8 @@ import ca.uhn.hl7v2.model.v251.datatype.ST;
 import gov.cdc.izgw.v2tofhir.annotation.ComesFrom;
 import gov.cdc.izgw.v2tofhir.annotation.Produces;
 import gov.cdc.izgw.v2tofhir.converter.DatatypeConverter;
+import gov.cdc.izgw.v2tofhir.converter.DatatypeConverter.Converter;
+import gov.cdc.izgw.v2tofhir.utils.Er7Segment;
 import gov.cdc.izgw.v2tofhir.utils.ParserUtils;
 import lombok.extern.slf4j.Slf4j;
 
@@ -40,18 +50,38 @@ public class FieldHandler implements Comparable<FieldHandler> {
 	private static final boolean GET_PROPERTY = false;
 	private final ComesFrom from;
 	private final Produces produces;
-	private final Method method;
+	/** The method to which the ComesFrom annotation applies, as written by Method.toString() */
+	private final String method;
 	@SuppressWarnings("unused")
 	private final Property prop;
 	private final Class<? extends IBase> theClass;
 	private final Class<? extends Type> theType;
+	/** The converter for theClass and from.table(), bound at initialization */
+	private final Converter<? extends IBase> converter;
+	/** Calls method on the parser, compiled at initialization */
+	private final BiConsumer<Object, Object> setter;
+	/** The converted value of from.fixed(), which is copied for each use */
+	private final IBase fixedValue;
 	/**
 	 * @param method	The method to which the ComesFrom annotation applies.
 	 * @param from		The annotation
 	 * @param p	The class for the parser
 	 */
 	public FieldHandler(Method method, ComesFrom from, AbstractStructureParser p) {
+		this(method.toString(), from, method.getParameterTypes()[0], compile(method), p);
+	}
+	
+	/**
+	 * Create a FieldHandler without reflection, as done by the generated ParserIndex
+	 * @param method	The method to which the ComesFrom annotation applies, as written by Method.toString()
+	 * @param from		The annotation
+	 * @param param		The type of the method's parameter
+	 * @param setter	Calls the method on a parser
+	 * @param p	The class for the parser
+	 */
+	FieldHandler(String method, ComesFrom from, Class<?> param, BiConsumer<Object, Object> setter, AbstractStructureParser p) {
 		this.method = method;
+		this.setter = setter;
 		this.from = from;
 		this.produces = p.getProduces();
 		
@@ -73,23 +103,20 @@ public class FieldHandler implements Comparable<FieldHandler> {
 			prop = null;
 		}
 		
-		Class<?>[] params = method.getParameterTypes();
-
-		if (IBase.class.isAssignableFrom(params[0])) {
-			@SuppressWarnings("unchecked")
-			Class<? extends IBase> param = (Class<? extends IBase>) params[0];
-			theClass = param;
+		if (IBase.class.isAssignableFrom(param)) {
+			theClass = param.asSubclass(IBase.class);
 			theType = null;
-		} else if (Type.class.isAssignableFrom(params[0])) {
-			@SuppressWarnings("unchecked")
+		} else if (Type.class.isAssignableFrom(param)) {
 			// Direct handling of type in Parser (e.g., for OBX Segments where Type of OBX-5 is not known
 			// until OBX-2 is parsed.
-			Class<? extends Type> param = (Class<? extends Type>) params[0];
 			theClass = null;
-			theType = param;
+			theType = param.asSubclass(Type.class);
 		} else {
 			throw new ServiceConfigurationError("Method does not accept a FHIR type: " + method);
 		}
+		converter = theClass == null ? null : DatatypeConverter.getConverter(theClass, from.table());
+		// Fixed values are constant, so convert them once.
+		fixedValue = converter == null || from.fixed().length() == 0 ? null : converter.convert(getFixedType());
 		
 		// Verify setValue works at initialization on a dummy
 		if (VERIFY_METHODS) {
@@ -105,6 +132,38 @@ public class FieldHandler implements Comparable<FieldHandler> {
 		}
 	}
 
+	/**
+	 * Compile the method into a BiConsumer accepting the parser and the value so that it
+	 * can be called directly instead of through reflection.
+	 * @param method	The method to compile
+	 * @return	A BiConsumer which calls the method
+	 */
+	@SuppressWarnings("unchecked")
+	private static BiConsumer<Object, Object> compile(Method method) {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			MethodHandle target = lookup.unreflect(method);
+			CallSite site = LambdaMetafactory.metafactory(lookup, "accept", 
+				MethodType.methodType(BiConsumer.class), 
+				MethodType.methodType(void.class, Object.class, Object.class),
+				target, 
+				MethodType.methodType(void.class, method.getDeclaringClass(), method.getParameterTypes()[0])
+			);
+			return (BiConsumer<Object, Object>) site.getTarget().invokeExact();
+		} catch (Throwable e) { // NOSONAR invokeExact can throw anything, and we can always fall back to reflection
+			log.warn("Cannot compile {}, using reflection: {}", method, e.getMessage());
+			return (p, value) -> {
+				try {
+					method.invoke(p, value);
+				} catch (IllegalAccessException ex) {
+					throw new IllegalArgumentException(ex);
+				} catch (InvocationTargetException ex) {
+					throw ex.getCause() instanceof RuntimeException rex ? rex : new IllegalStateException(ex.getCause()); 
+				}
+			};
+		}
+	}
+
 	private Class<? extends IBaseResource> getResourceClass(Produces produces, String path, StructureParser p) {
 		Class<? extends IBaseResource> resourceClass = produces.resource();
 		String resourceName = StringUtils.substringBefore(path, ".");
@@ -145,19 +204,68 @@ public class FieldHandler implements Comparable<FieldHandler> {
 		}
 	}
 
+	/**
+	 * Convert fields within the text of a segment to components in a resource.
+	 * 
+	 * Only the fields this handler reads are parsed, into the matching fields of segment.
+	 * 
+	 * @param p	The structure parser to do the handling for
+	 * @param text	The text of the segment to process
+	 * @param segment	The segment to read fields into
+	 * @param r	The resource to update
+	 */
+	public void handle(StructureParser p, Er7Segment text, Segment segment, IBaseResource r) {
+		if (from.fixed().length() != 0) {
+			setFixedValue(p);
+		} else if (from.field() != 0) {
+			setFromFieldAndComponent(p, getFields(text, segment));
+		} else {
+			log.error("ComesFrom missing fixed or field value");
+		}
+	}
+
+	private Type[] getFields(Er7Segment text, Segment segment) {
+		int field = from.field();
+		int reps = text.getRepetitionCount(field);
+		if (reps == 0 || field > segment.numFields()) {
+			return new Type[0];
+		}
+		Type[] f = new Type[reps];
+		try {
+			for (int rep = 0; rep < reps; rep++) {
+				f[rep] = DatatypeConverter.read(text, field, rep, segment.getField(field, rep));
+			}
+		} catch (HL7Exception e) {
+			log.warn("Cannot read {}-{}: {}", segment.getName(), field, e.getMessage());
+			return new Type[0];
+		}
+		return f;
+	}
+
 	private void setFixedValue(StructureParser p) {
+		if (theType != null) {
+			setValue(p, getFixedType());
+		} else {
+			// Copy the value since the parser may attach it to a resource and change it
+			setValue(p, fixedValue instanceof Base b ? b.copy() : fixedValue);
+		}
+	}
+
+	private ST getFixedType() {
 		ST st = new ST(null);
 		try {
 			st.setValue(from.fixed());
-			IBase value = DatatypeConverter.convert(theClass, st, from.table()); 
-			setValue(p, value);
 		} catch (DataTypeException e) {
 			// This will never happen.
 		}
+		return st;
 	}
 
 	private void setFromFieldAndComponent(StructureParser p, Segment segment) {
-		Type[] f = ParserUtils.getFields(segment, from.field());
+		setFromFieldAndComponent(p, ParserUtils.getFields(segment, from.field()));
+	}
+
+	private void setFromFieldAndComponent(StructureParser p, Type[] f) {
 		if (f.length == 0) {
 			return;
 		}
@@ -167,7 +275,7 @@ public class FieldHandler implements Comparable<FieldHandler> {
 				continue;
 			}
 			if (theClass != null) {
-				IBase value = DatatypeConverter.convert(theClass, t, from.table());
+				IBase value = converter.convert(t);
 				if (value != null) {
 					setValue(p, value);
 				}
@@ -197,8 +305,8 @@ public class FieldHandler implements Comparable<FieldHandler> {
 
 	private IBase setValue(StructureParser p, IBase object) {
 		try {
-			method.invoke(p, object);
-		} catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+			setter.accept(p, object);
+		} catch (RuntimeException e) {
 			// This is checked during initialization, so failure happens early if it is going to
 			// happen at all, so it's OK to throw an error here.
 			log.error("Cannot invoke {}: {}", method, e.getMessage(), e);
@@ -209,20 +317,20 @@ public class FieldHandler implements Comparable<FieldHandler> {
 	
 	private Type setValue(StructureParser p, Type object) {
 		try {
-			method.invoke(p, object);
-		} catch (IllegalAccessException | IllegalArgumentException e) {
+			setter.accept(p, object);
+		} catch (ClassCastException | IllegalArgumentException e) {
 			// This is checked during initialization, so failure happens early if it is going to
 			// happen at all, so it's OK to throw an error here.
 			log.error("Cannot invoke {}: {}", method, e.getMessage(), e);
 			throw new ServiceConfigurationError("Cannot invoke " + method, e);
-		} catch (InvocationTargetException ex) {
-			throw new ServiceConfigurationError("Exception executing " + method, ex.getCause());
+		} catch (RuntimeException ex) {
+			throw new ServiceConfigurationError("Exception executing " + method, ex);
 		}
 		return object;
 	}
 	
 	public String toString() {
-		return toString(from) + method.toString() ;
+		return toString(from) + method;
 	}
 	
 	private String toString(ComesFrom from) {
@@ -287,7 +395,7 @@ public class FieldHandler implements Comparable<FieldHandler> {
 		comp = fh1.toString().compareTo(fh2.toString());
 		if (comp != 0) 
 			return comp;
-		return fh1.method.toString().compareTo(fh2.toString());
+		return fh1.method.compareTo(fh2.toString());
 	}
 
 	@Override
@@ -318,7 +426,9 @@ public class FieldHandler implements Comparable<FieldHandler> {
 	protected static void initFieldHandlers(AbstractStructureParser p, List<FieldHandler> fieldHandlers) {
 		// Synchronize on the list in case two callers are trying to to initialize it at the 
 		// same time.  This avoids one thread from trying to use fieldHandlers while another 
-		// potentially overwrites it.
+		// potentially overwrites it.  Callers must not check fieldHandlers.isEmpty() before
+		// calling this method, as only acquiring the lock guarantees they will see the 
+		// completely initialized list.
 		synchronized (fieldHandlers) { // NOSONAR This use of a parameter for synchronization is OK
 			// We got the lock, recheck the entry condition.
 			if (!fieldHandlers.isEmpty()) {
@@ -326,7 +436,18 @@ public class FieldHandler implements Comparable<FieldHandler> {
 				return;
 			}
 			/*
-			 * Go through and find all methods with a ComesFrom annotation.
+			 * Use the handlers generated at build time if the parser was indexed.
+			 */
+			for (ParserIndex index: ParserIndex.INDEXES) {
+				List<FieldHandler> indexed = index.getFieldHandlers(p);
+				if (indexed != null) {
+					fieldHandlers.addAll(indexed);
+					Collections.sort(fieldHandlers);
+					return;
+				}
+			}
+			/*
+			 * Otherwise go through and find all methods with a ComesFrom annotation.
 			 */
 			for (Method method: p.getClass().getMethods()) {
 				for (ComesFrom from: method.getAnnotationsByType(ComesFrom.class)) {
@@ -43,9 +43,15 @@ public class MRGParser extends AbstractSegmentParser {
 	 */
 	public MRGParser(MessageParser messageParser) {
 		super(messageParser, "MRG");
-		if (fieldHandlers.isEmpty()) {
-			FieldHandler.initFieldHandlers(this, fieldHandlers);
-		}
+		FieldHandler.initFieldHandlers(this, fieldHandlers);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		patient = null;
+		account = null;
+		encounter = null;
 	}
 
 	
@@ -45,9 +45,15 @@ public class MSAParser extends AbstractSegmentParser {
 	 */
 	public MSAParser(MessageParser messageParser) {
 		super(messageParser, "MSA");
-		if (fieldHandlers.isEmpty()) {
-			FieldHandler.initFieldHandlers(this, fieldHandlers);
-		}
+		FieldHandler.initFieldHandlers(this, fieldHandlers);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		mh = null;
+		response = null;
+		issue = null;
 	}
 	
 	@Override
@@ -51,9 +51,13 @@ public class MSHParser extends AbstractSegmentParser {
 	 */
 	public MSHParser(MessageParser messageParser) {
 		super(messageParser, "MSG");
-		if (fieldHandlers.isEmpty()) {
-			FieldHandler.initFieldHandlers(this, fieldHandlers);
-		}
+		FieldHandler.initFieldHandlers(this, fieldHandlers);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		mh = null;
 	}
 	
 	public List<FieldHandler> getFieldHandlers() {
@@ -64,7 +68,7 @@ public class MSHParser extends AbstractSegmentParser {
 	public IBaseResource setup() {
 		Provenance provenance;
 		mh = createResource(MessageHeader.class);
-		provenance = (Provenance) mh.getUserData(Provenance.class.getName());
+		provenance = getMessageParser().getProvenance(mh);
 		if (provenance != null) {
 			provenance.getActivity().addCoding(new Coding(null, "v2-FHIR transformation", "HL7 V2 to FHIR transformation"));
 		}
@@ -52,9 +52,13 @@ public class NK1Parser extends AbstractSegmentParser {
 	 */
 	public NK1Parser(MessageParser messageParser) {
 		super(messageParser, "NK1");
-		if (fieldHandlers.isEmpty()) {
-			FieldHandler.initFieldHandlers(this, fieldHandlers);
-		}
+		FieldHandler.initFieldHandlers(this, fieldHandlers);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		relatedPerson = null;
 	}
 
 	@Override
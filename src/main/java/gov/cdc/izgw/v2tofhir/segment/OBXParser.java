@@ -72,9 +72,18 @@ public class OBXParser extends AbstractSegmentParser {
 	 */
 	public OBXParser(MessageParser p) {
 		super(p, "OBX");
-		if (fieldHandlers.isEmpty()) {
-			FieldHandler.initFieldHandlers(this, fieldHandlers);
-		}
+		FieldHandler.initFieldHandlers(this, fieldHandlers);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		izDetail = null;
+		redirect = null;
+		recommendation = null;
+		type = null;
+		observation = null;
+		performer = null;
 	}
 
 	@Override
@@ -54,9 +54,16 @@ public class ORCParser extends AbstractSegmentParser {
 	 */
 	public ORCParser(MessageParser p) {
 		super(p, "ORC");
-		if (fieldHandlers.isEmpty()) {
-			FieldHandler.initFieldHandlers(this, fieldHandlers);
-		}
+		FieldHandler.initFieldHandlers(this, fieldHandlers);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		order = null;
+		requester = null;
+		requesterRef = null;
+		izDetail = null;
 	}
 
 	@Override
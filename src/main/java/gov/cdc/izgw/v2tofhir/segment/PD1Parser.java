@@ -41,9 +41,13 @@ public class PD1Parser extends AbstractSegmentParser {
 	 */
 	public PD1Parser(MessageParser messageParser) {
 		super(messageParser, "PD1");
-		if (fieldHandlers.isEmpty()) {
-			FieldHandler.initFieldHandlers(this, fieldHandlers);
-		}
+		FieldHandler.initFieldHandlers(this, fieldHandlers);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		patient = null;
 	}
 
 	@Override
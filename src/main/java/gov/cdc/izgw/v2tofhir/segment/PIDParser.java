@@ -82,9 +82,13 @@ public class PIDParser extends AbstractSegmentParser {
 	 */
 	public PIDParser(MessageParser p) {
 		super(p, "PID");
-		if (fieldHandlers.isEmpty()) {
-			FieldHandler.initFieldHandlers(this, fieldHandlers);
-		}
+		FieldHandler.initFieldHandlers(this, fieldHandlers);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		patient = null;
 	}
 	
 	@Override
@@ -92,6 +96,12 @@ public class PIDParser extends AbstractSegmentParser {
 		return fieldHandlers;
 	}
 
+	@Override
+	public boolean isParsingText() {
+		// PID is parsed entirely through its ComesFrom annotations
+		return true;
+	}
+
 	@Override 
 	public IBaseResource setup() {
 		patient = this.createResource(Patient.class);
@@ -763,7 +773,7 @@ public class PIDParser extends AbstractSegmentParser {
 	 * @param ident	The last updated facility identifier
 	 */
 	public void addLastUpdatedFacility(Identifier ident) {
-		Provenance p = (Provenance) patient.getUserData(Provenance.class.getName());
+		Provenance p = getMessageParser().getProvenance(patient);
 		if (p == null) {
 			return;
 		}
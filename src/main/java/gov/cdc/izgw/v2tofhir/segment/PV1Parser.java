@@ -65,9 +65,16 @@ public class PV1Parser extends AbstractSegmentParser {
 	 */
 	public PV1Parser(MessageParser messageParser) {
 		super(messageParser, "PV1");
-		if (fieldHandlers.isEmpty()) {
-			FieldHandler.initFieldHandlers(this, fieldHandlers);
-		}
+		FieldHandler.initFieldHandlers(this, fieldHandlers);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		encounter = null;
+		account = null;
+		patient = null;
+		location = null;
 	}
 
 	@Override
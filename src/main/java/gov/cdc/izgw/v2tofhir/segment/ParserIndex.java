@@ -0,0 +1,45 @@
+package gov.cdc.izgw.v2tofhir.segment;
+
+import java.util.List;
+import java.util.ServiceLoader;
+
+import gov.cdc.izgw.v2tofhir.converter.MessageParser;
+
+/**
+ * A ParserIndex maps segment names to parsers, and parsers to their field handlers,
+ * without using reflection.
+ *
+ * An index for the parsers in this library is generated at build time by
+ * ParserIndexProcessor from the &#64;Produces and &#64;ComesFrom annotations, and registered
+ * as a service.  Parsers which are not in any index are found using reflection as before.
+ *
+ * @see gov.cdc.izgw.v2tofhir.annotation.processing.ParserIndexProcessor
+ * @author Audacious Inquiry
+ */
+public interface ParserIndex {
+	/** The indexes registered as services, loaded once */
+	List<ParserIndex> INDEXES = ServiceLoader.load(ParserIndex.class, ParserIndex.class.getClassLoader())
+		.stream().map(ServiceLoader.Provider::get).toList();
+
+	/**
+	 * Get the parser class for a segment
+	 * @param name	The name of the segment
+	 * @return	The parser class, or null if this index has no parser for the segment
+	 */
+	Class<? extends StructureParser> getParserClass(String name);
+
+	/**
+	 * Create a new parser for a segment
+	 * @param name	The name of the segment
+	 * @param mp	The MessageParser that the new parser will work for
+	 * @return	The new parser, or null if this index has no parser for the segment
+	 */
+	StructureParser newParser(String name, MessageParser mp);
+
+	/**
+	 * Create the field handlers for a parser
+	 * @param p	The parser
+	 * @return	The field handlers for the parser, or null if this index does not contain the parser's class
+	 */
+	List<FieldHandler> getFieldHandlers(AbstractStructureParser p);
+}
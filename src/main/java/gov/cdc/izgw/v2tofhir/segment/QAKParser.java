@@ -44,9 +44,13 @@ public class QAKParser extends AbstractSegmentParser {
 	 */
 	public QAKParser(MessageParser messageParser) {
 		super(messageParser, "QAK");
-		if (fieldHandlers.isEmpty()) {
-			FieldHandler.initFieldHandlers(this, fieldHandlers);
-		}
+		FieldHandler.initFieldHandlers(this, fieldHandlers);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		oo = null;
 	}
 
 	
@@ -35,9 +35,13 @@ public class QIDParser extends AbstractSegmentParser {
 	 */
 	public QIDParser(MessageParser messageParser) {
 		super(messageParser, "QID");
-		if (fieldHandlers.isEmpty()) {
-			FieldHandler.initFieldHandlers(this, fieldHandlers);
-		}
+		FieldHandler.initFieldHandlers(this, fieldHandlers);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		params = null;
 	}
 	
 	@Override
@@ -73,9 +73,14 @@ public class QPDParser extends AbstractSegmentParser {
 	 */
 	public QPDParser(MessageParser messageParser) {
 		super(messageParser, "QPD");
-		if (fieldHandlers.isEmpty()) {
-			FieldHandler.initFieldHandlers(this, fieldHandlers);
-		}
+		FieldHandler.initFieldHandlers(this, fieldHandlers);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		params = null;
+		mh = null;
 	}
 	
 	@Override
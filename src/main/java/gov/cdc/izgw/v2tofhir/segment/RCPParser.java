@@ -38,9 +38,13 @@ public class RCPParser extends AbstractSegmentParser {
 	 */
 	public RCPParser(MessageParser messageParser) {
 		super(messageParser, "RCP");
-		if (fieldHandlers.isEmpty()) {
-			FieldHandler.initFieldHandlers(this, fieldHandlers);
-		}
+		FieldHandler.initFieldHandlers(this, fieldHandlers);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		params = null;
 	}
 	
 	@Override
@@ -53,9 +53,14 @@ public class RXAParser extends AbstractSegmentParser {
 	 */
 	public RXAParser(MessageParser p) {
 		super(p, "RXA");
-		if (fieldHandlers.isEmpty()) {
-			FieldHandler.initFieldHandlers(this, fieldHandlers);
-		}
+		FieldHandler.initFieldHandlers(this, fieldHandlers);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		izDetail = null;
+		recommendation = null;
 	}
 
 	@Override
@@ -30,9 +30,13 @@ public class RXRParser extends AbstractSegmentParser {
 	 */
 	public RXRParser(MessageParser p) {
 		super(p, "RXR");
-		if (fieldHandlers.isEmpty()) {
-			FieldHandler.initFieldHandlers(this, fieldHandlers);
-		}
+		FieldHandler.initFieldHandlers(this, fieldHandlers);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		izDetail = null;
 	}
 
 	@Override
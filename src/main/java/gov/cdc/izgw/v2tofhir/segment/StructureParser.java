@@ -29,6 +29,17 @@ public interface StructureParser {
 	 */
 	void parse(Structure structure) throws HL7Exception;
 	
+	/**
+	 * Reset any state retained from parsing a prior structure.
+	 * 
+	 * The MessageParser reuses one parser instance for every structure of a given type 
+	 * during a conversion, and calls this method before each call to parse().  Parsers
+	 * which hold state in member variables must clear it here.
+	 */
+	default void reset() {
+		// Parsers without state have nothing to do.
+	}
+	
 	/**
 	 * Returns true if the structure is empty or cannot be parsed
 	 * @param structure The structure to check.
@@ -0,0 +1,182 @@
+package gov.cdc.izgw.v2tofhir.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import ca.uhn.hl7v2.parser.EncodingCharacters;
+
+/**
+ * Er7Message is a lightweight index over the text of an HL7 V2 message in ER7 (pipe and hat) encoding.
+ *
+ * Construction makes a single pass over the text to find the segment boundaries and the encoding characters.
+ * Nothing is copied: segments are views over the original text, and each segment indexes its own
+ * fields the first time they are accessed.  Values are returned as slices of the original text,
+ * and are only converted to strings (and unescaped) when requested.
+ *
+ * This is intended for high volume processing which reads only a few fields from each message, where
+ * building the HAPI V2 object model (Message, Group, Segment, Type) for the whole message is not needed.
+ *
+ * Segments may be terminated by CR, LF or CRLF.  The encoding characters are taken from the first MSH, BHS
+ * or FHS segment, or are the HL7 defaults if there is none.
+ *
+ * This class is not thread safe.
+ *
+ * @author Audacious Inquiry
+ */
+public final class Er7Message {
+	private static final String[] HEADERS = { "MSH", "BHS", "FHS" };
+	private final CharSequence text;
+	private final EncodingCharacters encoding;
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private int count = 0;
+	private Er7Segment[] segments;
+
+	/**
+	 * Index the text of an HL7 V2 message.
+	 * @param text	The text of the message
+	 */
+	public Er7Message(CharSequence text) {
+		this.text = text;
+		int len = text.length();
+		int start = 0;
+		for (int i = 0; i <= len; i++) {
+			char c = i < len ? text.charAt(i) : '\r';
+			if (c == '\r' || c == '\n') {
+				if (i > start) {
+					add(start, i);
+				}
+				start = i + 1;
+			}
+		}
+		segments = new Er7Segment[count];
+		encoding = findEncoding();
+	}
+
+	private void add(int start, int end) {
+		if (count == starts.length) {
+			starts = Arrays.copyOf(starts, count * 2);
+			ends = Arrays.copyOf(ends, count * 2);
+		}
+		starts[count] = start;
+		ends[count++] = end;
+	}
+
+	private EncodingCharacters findEncoding() {
+		for (int i = 0; i < count; i++) {
+			int start = starts[i];
+			// A header is the name, the field separator, and at least the component separator
+			if (ends[i] - start > 4 && isHeader(start)) {
+				char[] chars = "|^~\\&".toCharArray();
+				chars[0] = text.charAt(start + 3);
+				for (int j = 1; j < chars.length && start + 3 + j < ends[i]; j++) {
+					char c = text.charAt(start + 3 + j);
+					if (c == chars[0]) {
+						break;
+					}
+					chars[j] = c;
+				}
+				return new EncodingCharacters(chars[0], chars[1], chars[2], chars[3], chars[4]);
+			}
+		}
+		return EncodingCharacters.defaultInstance();
+	}
+
+	private boolean isHeader(int start) {
+		for (String header: HEADERS) {
+			if (regionMatches(start, header)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean regionMatches(int start, String name) {
+		for (int i = 0; i < name.length(); i++) {
+			if (text.charAt(start + i) != name.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return	The text of the message
+	 */
+	public CharSequence getText() {
+		return text;
+	}
+
+	/**
+	 * @return	The encoding characters used by the message
+	 */
+	public EncodingCharacters getEncodingCharacters() {
+		return encoding;
+	}
+
+	/**
+	 * @return	The number of segments in the message
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Get a segment by position
+	 * @param index	The position of the segment, starting from 0
+	 * @return	The segment
+	 * @throws IndexOutOfBoundsException if there is no segment at index
+	 */
+	public Er7Segment get(int index) {
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException(index);
+		}
+		Er7Segment seg = segments[index];
+		if (seg == null) {
+			seg = new Er7Segment(this, index, starts[index], ends[index]);
+			segments[index] = seg;
+		}
+		return seg;
+	}
+
+	/**
+	 * Get the first segment with a given name
+	 * @param name	The name of the segment (e.g., PID)
+	 * @return	The segment, or null if there is no such segment
+	 */
+	public Er7Segment getSegment(String name) {
+		for (int i = 0; i < count; i++) {
+			if (isNamed(i, name)) {
+				return get(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get all segments with a given name
+	 * @param name	The name of the segment (e.g., OBX)
+	 * @return	The segments in the order they appear in the message
+	 */
+	public List<Er7Segment> getSegments(String name) {
+		List<Er7Segment> l = null;
+		for (int i = 0; i < count; i++) {
+			if (isNamed(i, name)) {
+				if (l == null) {
+					l = new ArrayList<>();
+				}
+				l.add(get(i));
+			}
+		}
+		return l == null ? Collections.emptyList() : l;
+	}
+
+	private boolean isNamed(int index, String name) {
+		int start = starts[index];
+		int len = name.length();
+		return ends[index] - start >= len && regionMatches(start, name) &&
+			(ends[index] - start == len || text.charAt(start + len) == encoding.getFieldSeparator());
+	}
+}
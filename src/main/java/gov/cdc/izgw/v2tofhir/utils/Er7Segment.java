@@ -0,0 +1,407 @@
+package gov.cdc.izgw.v2tofhir.utils;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+import ca.uhn.hl7v2.parser.EncodingCharacters;
+import ca.uhn.hl7v2.parser.Escape;
+
+/**
+ * Er7Segment is a view of a single segment within an Er7Message.
+ *
+ * The offsets of the fields in the segment are indexed the first time a field is accessed. Repetitions,
+ * components and subcomponents are located by scanning only the field that contains them. Values
+ * are returned as slices of the message text, which are not copied until converted to a String.
+ *
+ * Fields and components are numbered from 1, and repetitions from 0, as in the HAPI V2 API. In header
+ * segments (MSH, BHS and FHS), field 1 is the field separator, and field 2 holds the remaining encoding
+ * characters, as in HL7 V2.
+ *
+ * @author Audacious Inquiry
+ */
+public final class Er7Segment {
+	private static final CharSequence EMPTY = CharBuffer.wrap("");
+	private final Er7Message message;
+	private final CharSequence text;
+	private final int index;
+	private final int start;
+	private final int end;
+	private final char fieldSep;
+	private final char repSep;
+	private final char compSep;
+	private final char subSep;
+	private final char escape;
+	/** The positions of the field separators, the first of which ends the segment name */
+	private int[] seps = null;
+	private int sepCount = 0;
+	private boolean header;
+	private String name;
+
+	Er7Segment(Er7Message message, int index, int start, int end) {
+		this.message = message;
+		this.text = message.getText();
+		this.index = index;
+		this.start = start;
+		this.end = end;
+		EncodingCharacters enc = message.getEncodingCharacters();
+		fieldSep = enc.getFieldSeparator();
+		repSep = enc.getRepetitionSeparator();
+		compSep = enc.getComponentSeparator();
+		subSep = enc.getSubcomponentSeparator();
+		escape = enc.getEscapeCharacter();
+	}
+
+	private void index() {
+		if (seps != null) {
+			return;
+		}
+		seps = new int[16];
+		for (int i = start; i < end; i++) {
+			if (text.charAt(i) == fieldSep) {
+				if (sepCount == seps.length) {
+					seps = Arrays.copyOf(seps, sepCount * 2);
+				}
+				seps[sepCount++] = i;
+			}
+		}
+		int nameEnd = sepCount == 0 ? end : seps[0];
+		name = text.subSequence(start, nameEnd).toString();
+		header = "MSH".equals(name) || "BHS".equals(name) || "FHS".equals(name);
+	}
+
+	/**
+	 * @return	The message containing this segment
+	 */
+	public Er7Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return	The position of this segment in the message, starting from 0
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return	The name of the segment (e.g., PID)
+	 */
+	public String getName() {
+		index();
+		return name;
+	}
+
+	/**
+	 * @return	The text of the segment, without the segment terminator
+	 */
+	public CharSequence getText() {
+		return slice(start, end);
+	}
+
+	/**
+	 * @return	The number of the last field present in the segment, or 0 if there are no fields
+	 */
+	public int getFieldCount() {
+		index();
+		return header ? sepCount + 1 : sepCount;
+	}
+
+	/**
+	 * Get a field, including all of its repetitions
+	 * @param field	The field number
+	 * @return	The text of the field, or an empty sequence if it is not present
+	 */
+	public CharSequence get(int field) {
+		long span = fieldSpan(field);
+		return span < 0 ? EMPTY : slice(span);
+	}
+
+	/**
+	 * Get a repetition of a field
+	 * @param field	The field number
+	 * @param rep	The repetition, starting from 0
+	 * @return	The text of the repetition, or an empty sequence if it is not present
+	 */
+	public CharSequence get(int field, int rep) {
+		return get(field, rep, 0, 0);
+	}
+
+	/**
+	 * Get a component of a repetition of a field
+	 * @param field	The field number
+	 * @param rep	The repetition, starting from 0
+	 * @param component	The component number, or 0 for the whole repetition
+	 * @return	The text of the component, or an empty sequence if it is not present
+	 */
+	public CharSequence get(int field, int rep, int component) {
+		return get(field, rep, component, 0);
+	}
+
+	/**
+	 * Get a subcomponent of a component of a repetition of a field
+	 * @param field	The field number
+	 * @param rep	The repetition, starting from 0
+	 * @param component	The component number, or 0 for the whole repetition
+	 * @param subcomponent	The subcomponent number, or 0 for the whole component
+	 * @return	The text of the subcomponent, or an empty sequence if it is not present
+	 */
+	public CharSequence get(int field, int rep, int component, int subcomponent) {
+		long span = span(field, rep, component, subcomponent);
+		return span < 0 ? EMPTY : slice(span);
+	}
+
+	/**
+	 * Get the number of repetitions of a field.  As in the HAPI V2 parser, a repetition separator
+	 * at the end of the field does not start another repetition.
+	 * @param field	The field number
+	 * @return	The number of repetitions present, or 0 if the field is empty
+	 */
+	public int getRepetitionCount(int field) {
+		long span = fieldSpan(field);
+		if (span < 0 || from(span) == to(span)) {
+			return 0;
+		}
+		if (isEncodingField(field)) {
+			return 1;
+		}
+		int reps = text.charAt(to(span) - 1) == repSep ? 0 : 1;
+		for (int i = from(span); i < to(span); i++) {
+			if (text.charAt(i) == repSep) {
+				reps++;
+			}
+		}
+		return reps;
+	}
+
+	/**
+	 * Get the value of a subcomponent of a component of a repetition of a field, with any
+	 * escape sequences translated.
+	 *
+	 * @param field	The field number
+	 * @param rep	The repetition, starting from 0
+	 * @param component	The component number, or 0 for the whole repetition
+	 * @param subcomponent	The subcomponent number, or 0 for the whole component
+	 * @return	The value, or null if it is not present or empty
+	 */
+	public String getValue(int field, int rep, int component, int subcomponent) {
+		long span = span(field, rep, component, subcomponent);
+		if (span < 0 || from(span) == to(span)) {
+			return null;
+		}
+		String value = text.subSequence(from(span), to(span)).toString();
+		if (!isEncodingField(field) && value.indexOf(escape) >= 0) {
+			value = Escape.unescape(value, message.getEncodingCharacters());
+		}
+		return value;
+	}
+
+	/**
+	 * Get the value of the first component of the first repetition of a field, with any escape
+	 * sequences translated.  This is the value of the field if it is a primitive.
+	 *
+	 * @param field	The field number
+	 * @return	The value, or null if it is not present or empty
+	 */
+	public String getValue(int field) {
+		return isEncodingField(field) ? getValue(field, 0, 0, 0) : getValue(field, 0, 1, 1);
+	}
+
+	/**
+	 * Get the value of a component of the first repetition of a field, with any escape
+	 * sequences translated.
+	 *
+	 * @param field	The field number
+	 * @param component	The component number
+	 * @return	The value, or null if it is not present or empty
+	 */
+	public String getValue(int field, int component) {
+		return getValue(field, 0, component, 1);
+	}
+
+	/**
+	 * @param field	The field number
+	 * @return	true if the field is not present or is empty
+	 */
+	public boolean isEmpty(int field) {
+		long span = fieldSpan(field);
+		return span < 0 || from(span) == to(span);
+	}
+
+	/**
+	 * @return	true if none of the fields in the segment has a value
+	 */
+	public boolean isEmpty() {
+		index();
+		if (header) {
+			return false;
+		}
+		for (int i = sepCount == 0 ? end : seps[0]; i < end; i++) {
+			char c = text.charAt(i);
+			if (c != fieldSep && c != repSep && c != compSep && c != subSep) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Encode the segment as the HAPI V2 PipeParser encodes it after parsing the text.
+	 *
+	 * Empty fields, repetitions, components and subcomponents at the end of the segment, field,
+	 * repetition or component that contains them are removed, and values with escape sequences 
+	 * are escaped again after they are unescaped.  Unlike HAPI V2, which removes leading whitespace from
+	 * text values (e.g., ST) when it parses them, leading whitespace is kept.
+	 *
+	 * @return	The encoded segment
+	 */
+	public String encode() {
+		index();
+		if (header) {
+			// The encoding characters are not split
+			return getText().toString();
+		}
+		StringBuilder b = new StringBuilder(end - start);
+		b.append(name);
+		int mark = b.length();
+		for (int field = 1; field <= sepCount; field++) {
+			b.append(fieldSep);
+			long span = fieldSpan(field);
+			int before = b.length();
+			encode(b, from(span), to(span), 0);
+			if (b.length() > before) {
+				mark = b.length();
+			}
+		}
+		b.setLength(mark);
+		return b.toString();
+	}
+
+	/**
+	 * Append the text from start to end, without empty parts at the end of each level.
+	 * @param level	0 for repetitions, 1 for components, 2 for subcomponents, 3 for values
+	 */
+	private void encode(StringBuilder b, int from, int to, int level) {
+		if (level == 3) {
+			if (indexOf(escape, from, to) < 0) {
+				b.append(text, from, to);
+			} else {
+				// HAPI V2 escapes the unescaped value, which does not keep unknown escape sequences
+				EncodingCharacters enc = message.getEncodingCharacters();
+				b.append(Escape.escape(Escape.unescape(text.subSequence(from, to).toString(), enc), enc));
+			}
+			return;
+		}
+		char sep = level == 0 ? repSep : level == 1 ? compSep : subSep;
+		int mark = b.length();
+		int partStart = from;
+		for (int i = from; i <= to; i++) {
+			if (i == to || text.charAt(i) == sep) {
+				if (partStart != from) {
+					b.append(sep);
+				}
+				int before = b.length();
+				encode(b, partStart, i, level + 1);
+				if (b.length() > before) {
+					mark = b.length();
+				}
+				partStart = i + 1;
+			}
+		}
+		b.setLength(mark);
+	}
+
+	@Override
+	public String toString() {
+		return getText().toString();
+	}
+
+	private boolean isEncodingField(int field) {
+		index();
+		return header && field <= 2;
+	}
+
+	/**
+	 * Locate a field
+	 * @param field	The field number
+	 * @return	The start and end of the field, or -1 if it is not present
+	 */
+	private long fieldSpan(int field) {
+		index();
+		if (field < 1) {
+			return -1;
+		}
+		if (header) {
+			if (field == 1) {
+				return sepCount == 0 ? -1 : span(seps[0], seps[0] + 1);
+			}
+			field--;
+		}
+		if (field > sepCount) {
+			return -1;
+		}
+		return span(seps[field - 1] + 1, field < sepCount ? seps[field] : end);
+	}
+
+	private long span(int field, int rep, int component, int subcomponent) {
+		long span = fieldSpan(field);
+		if (span < 0 || isEncodingField(field)) {
+			// The encoding characters are not split
+			return rep == 0 && component < 2 && subcomponent < 2 ? span : -1;
+		}
+		span = part(span, repSep, rep + 1);
+		if (span >= 0 && component > 0) {
+			span = part(span, compSep, component);
+			if (span >= 0 && subcomponent > 0) {
+				span = part(span, subSep, subcomponent);
+			}
+		}
+		return span;
+	}
+
+	/**
+	 * Find the nth part of a span separated by sep
+	 * @return The start and end of the part, or -1 if it is not present
+	 */
+	private long part(long span, char sep, int n) {
+		int from = from(span);
+		int to = to(span);
+		for (int i = from; i < to; i++) {
+			if (text.charAt(i) == sep) {
+				if (--n == 0) {
+					return span(from, i);
+				}
+				from = i + 1;
+			}
+		}
+		return n == 1 ? span(from, to) : -1;
+	}
+
+	private int indexOf(char c, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (text.charAt(i) == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private CharSequence slice(long span) {
+		return slice(from(span), to(span));
+	}
+
+	private CharSequence slice(int from, int to) {
+		return CharBuffer.wrap(text, from, to);
+	}
+
+	private static long span(int from, int to) {
+		return ((long) from << 32) | to;
+	}
+
+	private static int from(long span) {
+		return (int) (span >>> 32);
+	}
+
+	private static int to(long span) {
+		return (int) span;
+	}
+}
@@ -1,12 +1,13 @@
 package gov.cdc.izgw.v2tofhir.utils;
 
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.ServiceConfigurationError;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.r4.model.CodeSystem;
 import org.hl7.fhir.r4.model.CodeSystem.CodeSystemContentMode;
@@ -25,13 +26,9 @@ import org.hl7.fhir.r4.model.NamingSystem;
 import org.hl7.fhir.r4.model.NamingSystem.NamingSystemType;
 import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.Type;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
 
-import com.opencsv.CSVParserBuilder;
-import com.opencsv.CSVReader;
-import com.opencsv.CSVReaderBuilder;
-import com.opencsv.enums.CSVReaderNullFieldIndicator;
+import gov.cdc.izgw.v2tofhir.utils.TerminologySnapshot.CodeSystemTable;
+import gov.cdc.izgw.v2tofhir.utils.TerminologySnapshot.ConceptMapTable;
 
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
@@ -39,11 +36,16 @@ import lombok.extern.slf4j.Slf4j;
 /**
  * This utility class supports mapping between coded values and system names in V2 and FHIR
  * 
+ * The terminology tables are immutable once published, so lookups by concurrent conversions
+ * neither lock nor race with each other.  Updates publish new tables.
+ * 
+ * Updated terminology can be loaded while the converter is running using {@link #reload(TerminologyProvider)}.
+ * A conversion which {@link #pin() pins} the tables keeps using the tables it started with until it completes.
+ * 
  * @author Audacious Inquiry
  */
 @Slf4j
 public class Mapping {
-	private static final String UNEXPECTED_ERROR_READING = "Unexpected {} reading {}({}): {}";
 	/** constant used to store the original system in Type.userData for types with a System */
 	public static final String ORIGINAL_SYSTEM = "originalSystem";
 	/** constant used to store the original display name in Type.userData for types with a display name */
@@ -57,14 +59,110 @@ public class Mapping {
 
 	public static final String V2_TABLE_PREFIX = "http://terminology.hl7.org/CodeSystem/v2-";
 
-	private static final PathMatchingResourcePatternResolver resolver = new PathMatchingResourcePatternResolver();
-	private static final Map<String, String> v2TablesUsed = new LinkedHashMap<>();
-	private static final Map<String, Mapping> codeMaps = new LinkedHashMap<>();
-	private static final Map<String, ConceptMap> conceptMaps = new LinkedHashMap<>();
-	private static final Map<String, Map<String, Coding>> codingMaps = new LinkedHashMap<>();
-	static {
-		initConceptMaps();
-		initVocabulary();
+	/** The most V2 table names recorded in the negative lookup cache of a Tables */
+	private static final int MAX_UNKNOWN_TABLES = 10_000;
+	/** The system URLs for numbered V2 tables, so that the same string is shared by all codings */
+	private static final Map<String, String> v2TablesUsed = new ConcurrentHashMap<>();
+
+	/**
+	 * The lookup tables built from a TerminologySnapshot.
+	 * 
+	 * The tables are never modified after they are published in {@link Mapping#tables}, so concurrent 
+	 * conversions read them without locking.  Changes build new tables and publish them. The caches
+	 * belong to the tables they were computed from, so publishing new tables also discards them.
+	 */
+	private static final class Tables {
+		/** The version of the tables, which increases each time tables are published */
+		private final long version;
+		private final Map<String, Mapping> mappings;
+		/** Codings by system and code, also indexed by the V2 table names used in concept maps */
+		private final Map<String, Map<String, Coding>> codings;
+		private final Map<String, CodeSystemTable> codeSystemTables;
+		/** CodeSystem resources, created on request */
+		private final Map<String, CodeSystem> codeSystems = new ConcurrentHashMap<>();
+		/** Table names which are not known, so that they are neither resolved nor reported again */
+		private final Set<String> unknownTables = ConcurrentHashMap.newKeySet();
+
+		private Tables(long version, Map<String, Mapping> mappings, Map<String, Map<String, Coding>> codings, Map<String, CodeSystemTable> codeSystemTables) {
+			this.version = version;
+			this.mappings = mappings;
+			this.codings = codings;
+			this.codeSystemTables = codeSystemTables;
+		}
+	}
+	private static volatile Tables tables = build(1, TerminologySnapshot.load());
+	/** The tables pinned by conversions in progress on each thread */
+	private static final ThreadLocal<Tables> pinned = new ThreadLocal<>();
+	/** Returned by pin() when the tables are already pinned */
+	private static final Pin NOT_PINNED = () -> { };
+
+	/**
+	 * A Pin keeps the terminology tables in use on a thread until it is closed.
+	 */
+	public interface Pin extends AutoCloseable {
+		/** Release the tables */
+		@Override
+		void close();
+	}
+
+	/**
+	 * Use the current terminology tables for all lookups on this thread until the returned Pin is closed,
+	 * so that the results of a conversion are not affected by a reload while it is in progress.
+	 * 
+	 * Pins may be nested. Only the outermost pin selects and releases the tables.
+	 * <pre>
+	 * try (Mapping.Pin pin = Mapping.pin()) {
+	 *     // convert the message
+	 * }
+	 * </pre>
+	 * @return	The pin
+	 */
+	public static Pin pin() {
+		if (pinned.get() != null) {
+			return NOT_PINNED;
+		}
+		pinned.set(tables);
+		return pinned::remove;
+	}
+
+	/**
+	 * @return the tables pinned on this thread, or the current tables if none are pinned
+	 */
+	private static Tables tables() {
+		Tables t = pinned.get();
+		return t == null ? tables : t;
+	}
+
+	/**
+	 * Get the version of the terminology tables in use on this thread.
+	 * The version increases each time the tables are reloaded or updated, so it
+	 * can be used to invalidate values computed from them.
+	 * @return	The version of the terminology tables
+	 */
+	public static long getTerminologyVersion() {
+		return tables().version;
+	}
+
+	/**
+	 * Replace the terminology tables with tables loaded from a provider.
+	 * 
+	 * The new tables are built completely on the calling thread before they are published, so
+	 * conversions are not paused, and do not pay to warm up the new tables.  Conversions which
+	 * have pinned the tables finish with the tables they started with; those which start
+	 * after this method returns use the new tables.  Updates made using {@link #updateCodeLookup(Coding)}
+	 * are replaced, and must be made again if needed.
+	 * 
+	 * If the tables cannot be loaded, the current tables remain in use.
+	 * 
+	 * @param provider	The provider of the terminology tables
+	 * @return	The version of the new tables
+	 * @throws IOException	If the provider cannot load the tables
+	 */
+	public static synchronized long reload(TerminologyProvider provider) throws IOException {
+		Tables t = build(tables.version + 1, provider.load());
+		tables = t;
+		log.info("Loaded terminology version {}: {} mappings, {} code systems", t.version, t.mappings.size(), t.codeSystemTables.size());
+		return t.version;
 	}
 	
 	/**
@@ -73,12 +171,13 @@ public class Mapping {
 	 * @return	The specified mapping or null if it was not found.
 	 */
 	public static Mapping getMapping(String name) {
-		return codeMaps.get(name);
+		return tables().mappings.get(name);
 	}
 
 	@Getter
 	private final String name;
 	private Map<String, Coding> mappingLookup = new LinkedHashMap<>();
+	private ConceptMap conceptMap = null;
 
 	/**
 	 * Construct a new mapping with the given name
@@ -89,11 +188,15 @@ public class Mapping {
 	}
 	
 	/**
-	 * Return the mapping as a concept map
+	 * Return the mapping as a concept map.
+	 * The concept map is created on the first call.
 	 * @return	The concept map.
 	 */
-	public ConceptMap asConceptMap() {
-		ConceptMap m = conceptMaps.computeIfAbsent(name, k -> new ConceptMap().setName(name));
+	public synchronized ConceptMap asConceptMap() {
+		if (conceptMap != null) {
+			return conceptMap;
+		}
+		ConceptMap m = new ConceptMap().setName(name);
 		Map<String, ConceptMap.ConceptMapGroupComponent> groups = new LinkedHashMap<>();
 		for (Map.Entry<String, Coding> e: mappingLookup.entrySet()) {
 			Coding coding = e.getValue();
@@ -117,9 +220,22 @@ public class Mapping {
 						.setEquivalence(ConceptMapEquivalence.RELATEDTO); // we don't know any more than this.
 			}
 		}
+		conceptMap = m;
 		return m;
 	}
 	
+	/**
+	 * Get a code system known to the converter (e.g., CVX or MVX).
+	 * The CodeSystem resource is created on the first call for the system.
+	 * @param system	The url of the code system
+	 * @return	The code system, or null if it is not known.
+	 */
+	public static CodeSystem getCodeSystem(String system) {
+		Tables current = tables();
+		CodeSystemTable t = system == null ? null : current.codeSystemTables.get(system);
+		return t == null ? null : current.codeSystems.computeIfAbsent(system, k -> toCodeSystem(t));
+	}
+	
 	/**
 	 * Map a string using the to Coding map.
 	 * @param text	The string to map
@@ -221,127 +337,91 @@ public class Mapping {
 	}
 
 	/**
-	 * Initialize concept maps from V2-to-fhir CSV tables.
+	 * Build the lookup tables from a snapshot of the terminology
+	 * @param version	The version of the tables
+	 * @param snapshot	The snapshot
+	 * @return	The lookup tables
 	 */
-	private static void initConceptMaps() {
-		Resource[] conceptFiles;
-		Resource[] codeSystemFiles;
-		try {
-			conceptFiles = resolver.getResources("coding/HL7 Concept*.csv");
-			codeSystemFiles = resolver.getResources("coding/HL7 CodeSystem*.csv");
-		} catch (IOException e) {
-			log.error("Cannot load coding resources");
-			throw new ServiceConfigurationError("Cannot load coding resources", e);
-		}
-		int fileno = 0;
-		for (Resource file : conceptFiles) {
-			fileno++;
-			Mapping m = loadConceptFile(fileno, file);
+	private static Tables build(long version, TerminologySnapshot snapshot) {
+		Map<String, Mapping> mappings = new HashMap<>();
+		Map<String, Map<String, Coding>> codings = new HashMap<>();
+		Map<String, CodeSystemTable> codeSystemTables = new HashMap<>();
+		// Initialize concept maps from V2-to-fhir tables.
+		for (ConceptMapTable t: snapshot.getConceptMaps()) {
+			Mapping m = new Mapping(t.name());
+			mappings.put(t.name(), m);
+			String[] values = t.values();
+			for (int i = 0; i < values.length; i += TerminologySnapshot.CONCEPT_MAP_COLUMNS) {
+				addMapping(codings, m, values, i);
+			}
 			m.lock();
 		}
-		for (Resource file : codeSystemFiles) {
-			fileno++;
-			loadCodeSystemFile(fileno, file);
-		}
-	}
-
-	private static Mapping loadConceptFile(int fileno, Resource file) {
-		String name = file.getFilename().split("_ ")[1].split(" ")[0];
-		Mapping m = new Mapping(name);
-		codeMaps.put(name, m);
-		int line = 0;
-		try (InputStreamReader sr = new InputStreamReader(file.getInputStream());
-				CSVReader reader = new CSVReader(sr);) {
-			reader.readNext(); // Skip first line header
-			line++;
-			String[] headers = reader.readNext();
-			int[] indices = getHeaderIndices(headers);
-			line++;
-			String[] fields = null;
-
-			while ((fields = reader.readNext()) != null) {
-				addMapping(name, m, ++line, indices, fields);
+		// Initialize code systems, and the display names of their codes
+		for (CodeSystemTable t: snapshot.getCodeSystems()) {
+			if (t.mappingName() != null) {
+				// Code systems loaded from V2-to-FHIR tables have an empty mapping
+				Mapping m = new Mapping(t.mappingName());
+				mappings.put(t.mappingName(), m);
+				m.lock();
 			}
-			log.debug("{}: Loaded {} lines from {}", fileno, line, name);
-
-		} catch (Exception e) {
-			warnException(UNEXPECTED_ERROR_READING, e.getClass().getSimpleName(), file.getFilename(), line,
-					e.getMessage(), e);
-		}
-		return m;
-	}
-	
-	private static void loadCodeSystemFile(int fileno, Resource file) {
-		String name = file.getFilename().split("_ ")[1].split(" ")[0];
-		Mapping m = new Mapping(name);
-		codeMaps.put(name, m);
-		int line = 0;
-		try (InputStreamReader sr = new InputStreamReader(file.getInputStream());
-				CSVReader reader = new CSVReader(sr);) {
-			String[] metadata = reader.readNext(); // Skip first line header
-			
-			CodeSystem cs = new CodeSystem();
-			cs.setName(metadata.length > 2 ? metadata[2] : null);
-			cs.setUrl(metadata.length > 0 ? metadata[0] : null);
-			cs.setContent(CodeSystemContentMode.COMPLETE);
-			cs.setCaseSensitive(false);
-			cs.setLanguage("en-US");
-			cs.setStatus(PublicationStatus.ACTIVE);
-			
-			createNamingSystem(cs);
-			
-			String[] headers = reader.readNext();
-			getHeaderIndices(headers);
-			String[] fields = null;
-
-			line = 2;
-			while ((fields = reader.readNext()) != null) {
-				++line;
-				addCodes(cs, fields);
-				cs.setCount(cs.getCount()+1);
+			if (t.url() == null) {
+				continue;
+			}
+			codeSystemTables.put(t.url(), t);
+			String[] values = t.values();
+			for (int i = 0; i < values.length; i += t.columns()) {
+				addCodeLookup(codings, new Coding(t.url(), values[i], values[i + 1]));
 			}
-			log.debug("{}: Loaded {} lines from {}", fileno, line, name);
-
-		} catch (Exception e) {
-			warnException(UNEXPECTED_ERROR_READING, e.getClass().getSimpleName(), file.getFilename(), line,
-					e.getMessage(), e);
 		}
+		// Tables share the map for a system with its V2 table names, so lock each map once
+		Map<Map<String, Coding>, Map<String, Coding>> locked = new IdentityHashMap<>();
+		codings.replaceAll((k, v) -> locked.computeIfAbsent(v, Collections::unmodifiableMap));
+		return new Tables(version, Collections.unmodifiableMap(mappings), Collections.unmodifiableMap(codings), 
+			Collections.unmodifiableMap(codeSystemTables));
 	}
 
 	/**
-	 * Add the codes in fields to the specified CodeSystem
+	 * Create a CodeSystem resource from a table
 	 * 
-	 * Field data is expected to appear in this order:
-	 * Code,Display,Definition,V2 Concept Comment,V2 Concept Comment As Published,HL7 Concept Usage Notes
-	 * 
-	 * @param cs	The code System
-	 * @param lineNumber		The line number
-	 * @param indices Header indices (not used)
-	 * @param fields	The field data
+	 * @param t	The table
+	 * @return	The CodeSystem 
 	 */
-	private static void addCodes(CodeSystem cs, String[] fields) {
-		if (fields == null) {
-			return;
-		}
-		ConceptDefinitionComponent concept = cs.addConcept();
-		if (fields.length > 0 && StringUtils.isNotEmpty(fields[0])) {
-			concept.setCode(fields[0]);
-		}
-		if (fields.length > 1 && StringUtils.isNotEmpty(fields[1])) {
-			concept.setDisplay(fields[1]);
-		}
-		if (fields.length > 2 && StringUtils.isNotEmpty(fields[2])) {
-			concept.setDefinition(fields[2]);
-		}
-		if (fields.length > 3 && StringUtils.isNotEmpty(fields[3])) {
-			concept.addProperty(new ConceptPropertyComponent(new CodeType("v2-concComment"), new StringType(fields[3])));
-		}
-		if (fields.length > 4 && StringUtils.isNotEmpty(fields[4])) {
-			concept.addProperty(new ConceptPropertyComponent(new CodeType("v2-concCommentAsPub"), new StringType(fields[4])));
+	private static CodeSystem toCodeSystem(CodeSystemTable t) {
+		CodeSystem cs = new CodeSystem();
+		cs.setUrl(t.url());
+		cs.setName(t.name());
+		cs.setTitle(t.title());
+		if (t.oid() != null) {
+			cs.addIdentifier().setSystem(Systems.IETF).setValue("urn:oid:" + t.oid());
+		}
+		cs.setContent(CodeSystemContentMode.COMPLETE);
+		cs.setCaseSensitive(false);
+		cs.setLanguage("en-US");
+		cs.setStatus(PublicationStatus.ACTIVE);
+		createNamingSystem(cs);
+		
+		String[] values = t.values();
+		String[] properties = t.properties();
+		for (int i = 0; i < values.length; i += t.columns()) {
+			ConceptDefinitionComponent concept = cs.addConcept();
+			concept.setCode(values[i]);
+			concept.setDisplay(values[i + 1]);
+			concept.setDefinition(values[i + 2]);
+			for (int j = 0; j < properties.length; j++) {
+				String value = values[i + 3 + j];
+				if (StringUtils.isNotEmpty(value)) {
+					concept.addProperty(new ConceptPropertyComponent(new CodeType(properties[j]), new StringType(value)));
+				}
+			}
 		}
-		if (fields.length > 5 && StringUtils.isNotEmpty(fields[5])) {
-			concept.addProperty(new ConceptPropertyComponent(new CodeType("HL7usageNotes"), new StringType(fields[5])));
+		cs.setCount(t.size());
+		
+		// Link the NamingSystem known to Systems for this code system to it
+		NamingSystem known = Systems.getNamingSystem(cs.getUrl());
+		if (known != null) {
+			known.setUserData(cs.getClass().getName(), cs);
 		}
+		return cs;
 	}
 
 	private static NamingSystem createNamingSystem(CodeSystem cs) {
@@ -363,165 +443,91 @@ public class Mapping {
 
 	/**
 	 * Update mapping tables to go from here to there
+	 * @param codings	The codings by system being built
 	 * @param m	The mapping table to update
 	 * @param here	The code to go from
 	 * @param there	The code to code to
 	 * @param altLookupName	An alternative name for this mapping table.
 	 */
-	private static void updateMaps(Mapping m, Coding here, Coding there, String altLookupName) {
+	private static void updateMaps(Map<String, Map<String, Coding>> codings, Mapping m, Coding here, Coding there, String altLookupName) {
 		if (here != null && here.hasCode()) {
 			m.mappingLookup.put(here.getCode(), there);
 			if (here.hasSystem()) {
 				// Enable lookup of any from codes by system and code
-				Map<String, Coding> cm = updateCodeLookup(here); 
+				Map<String, Coding> cm = addCodeLookup(codings, here); 
 				// Enable lookup also by HL7 table number.
-				codingMaps.computeIfAbsent(altLookupName, k -> cm);
+				if (altLookupName != null) {
+					codings.computeIfAbsent(altLookupName, k -> cm);
+				}
 			}
 		}
 	}
 	
+	private static Map<String, Coding> addCodeLookup(Map<String, Map<String, Coding>> codings, Coding coding) {
+		Map<String, Coding> cm = codings.computeIfAbsent(coding.getSystem(), k -> new HashMap<>());
+		if (coding.getCode() != null) {
+			cm.put(coding.getCode(), coding);
+		}
+		return cm;
+	}
+	
 	/**
 	 * Updates display name resolution table for a coding.
+	 * 
+	 * This copies and republishes the lookup tables for the coding's system, so it is
+	 * intended for use during setup rather than during conversion.
+	 * 
 	 * @param coding	A coding with code, display and system all populated
-	 * @return	The updated code lookup map where the given coding is stored.
+	 * @return	The updated code lookup map where the given coding is stored. This map cannot be modified.
 	 */
-	public static Map<String, Coding> updateCodeLookup(Coding coding) {
-		Map<String, Coding> cm = codingMaps.computeIfAbsent(coding.getSystem(), k -> new LinkedHashMap<>());
-		cm.put(coding.getCode(), coding);
-		return cm;
+	public static synchronized Map<String, Coding> updateCodeLookup(Coding coding) {
+		Tables current = tables;
+		Map<String, Map<String, Coding>> codings = new HashMap<>(current.codings);
+		Map<String, Coding> old = codings.get(coding.getSystem());
+		Map<String, Coding> cm = old == null ? new HashMap<>() : new HashMap<>(old);
+		if (coding.getCode() != null) {
+			cm.put(coding.getCode(), coding);
+		}
+		Map<String, Coding> updated = Collections.unmodifiableMap(cm);
+		if (old != null) {
+			// Also update the V2 table names for the system
+			codings.replaceAll((k, v) -> v == old ? updated : v);
+		}
+		codings.put(coding.getSystem(), updated);
+		tables = new Tables(current.version + 1, current.mappings, Collections.unmodifiableMap(codings), current.codeSystemTables);
+		return updated;
 	}
 
-	private static void addMapping(String name, Mapping m, int line, int[] indices, String[] fields) {
-		String table = get(fields, indices[2]);
-		if (table == null) {
-			log.trace("Missing table reading {}({}): {}", name, line, Arrays.asList(fields));
-		}
-		Coding from = new Coding(toFhirUri(table), get(fields, indices[0]), get(fields, indices[1]));
+	/**
+	 * Add a row of a concept map table to a mapping
+	 * @param codings	The codings by system being built
+	 * @param m	The mapping
+	 * @param values	The values of the table
+	 * @param row	The offset of the row in values
+	 */
+	private static void addMapping(Map<String, Map<String, Coding>> codings, Mapping m, String[] values, int row) {
+		String table = values[row + 2];
+		Coding from = new Coding(toFhirUri(table), values[row], values[row + 1]);
 		if (from.isEmpty()) {
 			from = null;
 		}
-		Coding to = new Coding(get(fields, indices[5]), get(fields, indices[3]), get(fields, indices[4]));
+		Coding to = new Coding(values[row + 5], values[row + 3], values[row + 4]);
 		if (to.isEmpty()) {
 			to = null;
 		}
 
 		if (from != null) {
-			from.setUserData(MAPPED_SYSTEM, get(fields, indices[5]));
-			from.setUserData(MAPPED_DISPLAY, get(fields, indices[4]));
+			from.setUserData(MAPPED_SYSTEM, values[row + 5]);
+			from.setUserData(MAPPED_DISPLAY, values[row + 4]);
 		}
 		if (to != null) {
 			to.setUserData(MAPPED_SYSTEM, toFhirUri(table));
-			to.setUserData(MAPPED_DISPLAY, get(fields, indices[1]));
-		}
-
-		updateMaps(m, from, to, table);
-	}
-
-	private static void checkAllHeadersPresent(String[] headers, String[] headerStrings, int[] headerIndices)
-			throws IOException {
-		for (int i = 0; i < headerIndices.length - 1; i++) {
-			if (headerIndices[i] >= headerIndices[i + 1]) {
-				log.error("Missing headers, expcected {} but found {}", Arrays.asList(headerStrings),
-						Arrays.asList(headers));
-				throw new IOException("Missing Headers");
-			}
+			to.setUserData(MAPPED_DISPLAY, values[row + 1]);
 		}
-	}
 
-	private static String get(String[] fields, int i) {
-		if (i < fields.length && StringUtils.isNotBlank(fields[i])) {
-			return fields[i].trim();
-		}
-		return null;
+		updateMaps(codings, m, from, to, table);
 	}
 
-	private static int[] getHeaderIndices(String[] headers) throws IOException {
-		String[] headerStrings = { "Code", "Text", "Code System", "Code", "Display", "Code System" };
-		int[] headerIndices = new int[headerStrings.length];
-		int startLoc = 0;
-		for (int i = 0; i < headerStrings.length; i++) {
-			for (int j = startLoc; j < headers.length; j++) {
-				if (headerStrings[i].equalsIgnoreCase(headers[j])) {
-					headerIndices[i] = j;
-					startLoc = j + 1;
-					break;
-				}
-			}
-		}
-		checkAllHeadersPresent(headers, headerStrings, headerIndices);
-		return headerIndices;
-	}
-
-	private static void initVocabulary() {
-		initCVX();
-		initMVX();
-	}
-	private static void initCVX() {
-		CodeSystem cs = new CodeSystem();
-		cs.setUrl("http://hl7.org/fhir/sid/cvx");
-		cs.setTitle("Vaccines Administered");
-		cs.setName("CVX");
-		Identifier identifier = new Identifier();
-		identifier.setSystem(Systems.IETF);
-		identifier.setValue("urn:oid:2.16.840.1.113883.12.292");
-		cs.addIdentifier(identifier);
-		createNamingSystem(cs);
-		loadData(resolver.getResource("/coding/cvx.txt"), cs, true);
-	}
-
-	private static void initMVX() {
-		CodeSystem cs = new CodeSystem();
-		cs.setUrl("http://hl7.org/fhir/sid/mvx");
-		cs.setTitle("Manufacturers of Vaccines");
-		cs.setName("MVX");
-		Identifier identifier = new Identifier();
-		identifier.setSystem(Systems.IETF);
-		identifier.setValue("urn:oid:2.16.840.1.113883.12.227");
-		cs.addIdentifier(identifier);
-		createNamingSystem(cs);
-		loadData(resolver.getResource("/coding/mvx.txt"), cs, false);
-	}
-
-	private static void loadData(Resource file, CodeSystem cs, boolean hasComment) {
-		int line = 0;
-		try (InputStreamReader sr = new InputStreamReader(file.getInputStream());
-			 CSVReader reader = new CSVReaderBuilder(sr).withCSVParser(
-					new CSVParserBuilder()
-						.withSeparator('|')
-						.withFieldAsNull(CSVReaderNullFieldIndicator.EMPTY_SEPARATORS)
-						.withIgnoreQuotations(false).build()).build();
-		) {
-			String[] fields = null;
-			int expectedLength = hasComment ? 5 : 4;
-			while ((fields = reader.readNext()) != null) {
-				if (fields.length < expectedLength) {
-					fields = Arrays.copyOf(fields, expectedLength);
-				}
-				line++;
-				ConceptDefinitionComponent concept = cs.addConcept();
-				concept.setCode(StringUtils.trim(fields[0]));
-				concept.setDisplay(StringUtils.trim(fields[1]));
-				concept.setDefinition(StringUtils.trim(fields[2]));
-				ConceptPropertyComponent property = concept.addProperty();
-				property.setCode("Active");
-				property.setValue(new StringType(StringUtils.trim(fields[3])));
-				if (hasComment) {
-					property.setCode("Comment");
-					property.setValue(new StringType(StringUtils.trim(fields[4])));
-				}
-				Coding coding = new Coding(cs.getUrl(), concept.getCode(), concept.getDisplay());
-				concept.setUserData(coding.getClass().getName(), coding);
-				updateCodeLookup(coding);
-			}
-		} catch (Exception e) {
-			warnException(UNEXPECTED_ERROR_READING, e.getClass().getSimpleName(), file.getFilename(), line,
-					e.getMessage(), e);
-		}
-		
-		Systems.getNamingSystem(cs.getUrl()).setUserData(cs.getClass().getName(), cs);
-	}
-	
-
 	private static String toFhirUri(String string) {
 		if (StringUtils.isEmpty(string)) {
 			return null;
@@ -571,27 +577,44 @@ public class Mapping {
 			return Systems.idTypeToDisplayMap.get(code);
 		}
 		
+		Coding coding = getKnownCoding(code, table);
+		return coding != null ? coding.getDisplay() : null;
+	}
+	
+	/**
+	 * Get the Coding held by the terminology tables for a code and table or system name.
+	 * 
+	 * The result is shared by all conversions, and must not be modified or added to a resource.
+	 * 
+	 * @param code The code to search for.
+	 * @param table The HL7 V2 table or FHIR System uri to look for.
+	 * @return The shared Coding for this code and table, or null if not found.
+	 */
+	private static Coding getKnownCoding(String code, String table) {
+		Tables current = tables();
+		if (current.unknownTables.contains(table)) {
+			return null;
+		}
+		String name = table;
 		table = Mapping.mapTableNameToSystem(table);
 		if (table == null) {
 			return null;
 		}
 		
-		Coding coding = null;
 		if (Systems.UCUM.equals(table)) {
-			coding = Units.toUcum(code);
+			return Units.getUcum(code);
 		} else {
 			String system = Mapping.mapTableNameToSystem(table.trim());
-			Map<String, Coding> cm = codingMaps.get(system);
+			Map<String, Coding> cm = system == null ? null : current.codings.get(system);
 			if (cm == null) {
-				if (!codingMaps.containsKey(system)) {
+				// Stop recording unknown tables at a fixed size, since they come from message content
+				if (system != null && current.unknownTables.size() < MAX_UNKNOWN_TABLES && current.unknownTables.add(name)) {
 					log.debug("Unknown code system: {}", table);
-					codingMaps.put(system, null);
 				}
 				return null;
 			}
-			coding = cm.get(code);
+			return code == null ? null : cm.get(code);
 		}
-		return coding != null ? coding.getDisplay() : null;
 	}
 
 	/**
@@ -603,13 +626,42 @@ public class Mapping {
 	 *               display name can be provided before making this call.
 	 */
 	public static void setDisplay(Coding coding) {
-		String display = getDisplay(coding);
+		String system = coding.getSystem();
+		String display;
+		if (StringUtils.isBlank(system) || Systems.UNIVERSAL_ID_TYPE.equals(system)) {
+			display = getDisplay(coding);
+		} else {
+			Coding known = getKnownCoding(coding.getCode(), system);
+			display = known != null ? known.getDisplay() : null;
+			if (known != null) {
+				share(coding, known);
+			}
+		}
 		if (display != null) {
 			coding.setUserData(ORIGINAL_DISPLAY, coding.getDisplay());
 			coding.setDisplay(display);
 		}
 	}
 	
+	/**
+	 * Replace the code and system strings of a coding with the equal strings held by the terminology tables.
+	 * 
+	 * Codes parsed from messages are new strings for each message, which are retained by the bundle
+	 * after the message is discarded.  Using the strings from the tables instead means that codings for 
+	 * the same code in every bundle share the same strings, as they already do for display names.
+	 * 
+	 * @param coding	The coding to update
+	 * @param known	The coding for the same code held by the terminology tables
+	 */
+	private static void share(Coding coding, Coding known) {
+		if (known.hasCode() && known.getCode().equals(coding.getCode())) {
+			coding.getCodeElement().setValue(known.getCode());
+		}
+		if (known.hasSystem() && known.getSystem().equals(coding.getSystem())) {
+			coding.getSystemElement().setValue(known.getSystem());
+		}
+	}
+	
 	/**
 	 * The converter adds some extra data that it knows about codes
 	 * for better interoperability, e.g., display names, code system URLs
@@ -670,9 +722,6 @@ public class Mapping {
 	private static void warn(String msg, Object ...args) {
 		log.warn(msg, args);
 	}
-	private static void warnException(String msg, Object ...args) {
-		log.warn(msg, args);
-	}
 
 	/**
 	 * Map the V2 system value found in coding.system to the system URI expected in FHIR.
@@ -741,41 +790,17 @@ public class Mapping {
 	 * @return The preferred name as a URL.
 	 */
 	public static String mapTableNameToSystem(String value) {
-		String system = Mapping.getPreferredIdSystem(value);
-		if (system == null) {
+		if (StringUtils.isBlank(value)) {
 			return null;
 		}
-		
-		// Handle mapping for HL7 V2 tables
-		if ("HL7".equalsIgnoreCase(system)) {
-			return "http://terminology.hl7.org/CodeSystem/v2-0003";
-		} else if (system.startsWith("HL7") || system.startsWith("hl7")) {
-			system = system.substring(3);
-			if (system.startsWith("-")) {
-				system = system.substring(1);
-			}
-			return v2Table(system);
-		} else if (StringUtils.isNumeric(system)) {
-			return v2Table(system);
-		}
-		return system;
+		return SystemResolver.resolve(value).codeSystem();
 	}
 
 	private static String getPreferredIdSystem(String value) {
 		if (StringUtils.isBlank(value)) {
 			return null;
 		}
-		NamingSystem ns = Systems.getNamingSystem(value);
-		if (ns != null) {
-			return ns.getUrl();
-		}
-		
-		if (value.startsWith("urn:oid:")) {
-			return value.substring(8);
-		} else if (value.startsWith("urn:uuid:")) {
-			return value.substring(9);
-		} 
-		return value;
+		return SystemResolver.resolve(value).idSystem();
 	}
 
 	/** 
@@ -791,6 +816,15 @@ public class Mapping {
 			table = table.substring(1);
 		}
 		String key = StringUtils.right("000" + table, 4);
-		return v2TablesUsed.computeIfAbsent(key, k -> Mapping.V2_TABLE_PREFIX + key);
+		String system = v2TablesUsed.get(key);
+		if (system == null) {
+			system = Mapping.V2_TABLE_PREFIX + key;
+			// Only numbered tables are shared, so that message content cannot grow the map without bound
+			if (StringUtils.isNumeric(key)) {
+				String prior = v2TablesUsed.putIfAbsent(key, system);
+				system = prior == null ? system : prior;
+			}
+		}
+		return system;
 	}
 }
\ No newline at end of file
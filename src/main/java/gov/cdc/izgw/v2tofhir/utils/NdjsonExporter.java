@@ -0,0 +1,218 @@
+package gov.cdc.izgw.v2tofhir.utils;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * NdjsonExporter writes the resources in converted Bundles to NDJSON files, one set of files per
+ * resource type, as used by the FHIR Bulk Data $import operation.
+ *
+ * Resources are encoded directly to buffered file writers, so no intermediate JSON string is created
+ * for a Bundle or resource.  When a file reaches the maximum file size, it is closed and writing continues
+ * in a new file for that resource type.  Files are named &lt;ResourceType&gt;.&lt;n&gt;.ndjson, where n starts at 1.
+ *
+ * This class is not thread safe.
+ *
+ * @author Audacious Inquiry
+ */
+@Slf4j
+public class NdjsonExporter implements Closeable {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private final FhirContext context;
+	private final IParser parser;
+	private final Path directory;
+	private final long maxFileSize;
+	private final Map<String, TypeWriter> writers = new LinkedHashMap<>();
+	private final List<Path> files = new ArrayList<>();
+
+	/**
+	 * Create an exporter writing to the given directory.
+	 * @param context	The FhirContext to use for encoding resources.
+	 * @param directory	The directory to write files to, which will be created if necessary.
+	 * @param maxFileSize	The size in bytes after which a file is rolled over, or 0 for no limit.
+	 * @throws IOException	If the directory cannot be created.
+	 */
+	public NdjsonExporter(FhirContext context, Path directory, long maxFileSize) throws IOException {
+		this.context = context;
+		this.parser = context.newJsonParser().setPrettyPrint(false);
+		this.directory = Files.createDirectories(directory);
+		this.maxFileSize = maxFileSize;
+	}
+
+	/**
+	 * Write all resources in the bundle.
+	 * @param bundle	The bundle to write.
+	 * @throws IOException	If an error occurred writing.
+	 */
+	public void write(Bundle bundle) throws IOException {
+		for (BundleEntryComponent entry: bundle.getEntry()) {
+			if (entry.hasResource()) {
+				write(entry.getResource());
+			}
+		}
+	}
+
+	/**
+	 * Write a single resource.
+	 * @param resource	The resource to write.
+	 * @throws IOException	If an error occurred writing.
+	 */
+	public void write(IBaseResource resource) throws IOException {
+		TypeWriter w = writers.computeIfAbsent(context.getResourceType(resource), TypeWriter::new);
+		if (w.out == null || (maxFileSize > 0 && w.out.count >= maxFileSize)) {
+			w.roll();
+		}
+		parser.encodeResourceToWriter(resource, w.out);
+		w.out.write('\n');
+	}
+
+	/**
+	 * Get the files written so far, in the order they were created.
+	 * @return	The files written so far.
+	 */
+	public List<Path> getFiles() {
+		return Collections.unmodifiableList(files);
+	}
+
+	/**
+	 * Flush all buffered output.
+	 * 
+	 * This is the only time the files are flushed before they are closed, since the encoder 
+	 * flushes the writer it is given after each resource.
+	 * 
+	 * @throws IOException	If an error occurred writing.
+	 */
+	public void flush() throws IOException {
+		for (TypeWriter w: writers.values()) {
+			if (w.out != null) {
+				w.out.w.flush();
+			}
+		}
+	}
+
+	/**
+	 * Open the writer for a file.  Subclasses may override this to wrap the writer.
+	 * @param file	The file to write
+	 * @return	A buffered writer for the file
+	 * @throws IOException	If the file cannot be opened
+	 */
+	protected Writer openWriter(Path file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE);
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException first = null;
+		for (TypeWriter w: writers.values()) {
+			try {
+				w.close();
+			} catch (IOException e) {
+				log.error("Unexpected {} closing {}", e.getClass().getSimpleName(), w.type, e);
+				first = first == null ? e : first;
+			}
+		}
+		writers.clear();
+		if (first != null) {
+			throw first;
+		}
+	}
+
+	private class TypeWriter {
+		private final String type;
+		private int fileNo = 0;
+		private CountingWriter out = null;
+
+		private TypeWriter(String type) {
+			this.type = type;
+		}
+
+		private void roll() throws IOException {
+			close();
+			Path file = directory.resolve(type + "." + (++fileNo) + ".ndjson");
+			out = new CountingWriter(openWriter(file));
+			files.add(file);
+		}
+
+		private void close() throws IOException {
+			if (out != null) {
+				out.close();
+				out = null;
+			}
+		}
+	}
+
+	/**
+	 * Counts the number of UTF-8 bytes written so that files can be rolled over
+	 * without flushing the buffer.  Flushes are ignored, because the encoder flushes
+	 * after every resource.  The buffer is flushed by NdjsonExporter.flush() and on close.
+	 */
+	private static class CountingWriter extends Writer {
+		private final Writer w;
+		private long count = 0;
+
+		private CountingWriter(Writer w) {
+			this.w = w;
+		}
+
+		@Override
+		public void write(int c) throws IOException {
+			count += utf8Length((char) c);
+			w.write(c);
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			for (int i = off; i < off + len; i++) {
+				count += utf8Length(cbuf[i]);
+			}
+			w.write(cbuf, off, len);
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			for (int i = off; i < off + len; i++) {
+				count += utf8Length(str.charAt(i));
+			}
+			w.write(str, off, len);
+		}
+
+		private static int utf8Length(char c) {
+			if (c < 0x80) {
+				return 1;
+			} else if (c < 0x800 || Character.isSurrogate(c)) {
+				// Each half of a surrogate pair accounts for 2 of the 4 bytes of the pair
+				return 2;
+			}
+			return 3;
+		}
+
+		@Override
+		public void flush() {
+			// The buffer is only flushed by NdjsonExporter.flush() or close()
+		}
+
+		@Override
+		public void close() throws IOException {
+			w.close();
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package gov.cdc.izgw.v2tofhir.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.NamingSystem;
+
+/**
+ * SystemResolver resolves the names, OIDs and URIs used for coding and identifier systems
+ * in messages to their NamingSystem and to the system URIs preferred in FHIR.
+ *
+ * Every alias known to Systems, and the urn:oid: form of every known OID, is resolved when the class
+ * is loaded.  Other values (e.g., V2 table names such as HL70001, lower case names, or local
+ * systems) are resolved in a single pass over the value without regular expressions, and the
+ * result is cached.  Since these values come from message content, the cache stops growing
+ * at a fixed size.
+ *
+ * @author Audacious Inquiry
+ */
+final class SystemResolver {
+	/** The most values resolved after the class is loaded which are cached */
+	private static final int MAX_CACHED = 10_000;
+	private static final String URN_OID = "urn:oid:";
+	private static final String URN_UUID = "urn:uuid:";
+
+	/**
+	 * The resolution of a system name
+	 * @param namingSystem	The NamingSystem known by the name, or null if none is known
+	 * @param idSystem	The preferred system for identifiers
+	 * @param codeSystem	The preferred system for codes, which also resolves HL7 V2 table names
+	 */
+	record Resolved(NamingSystem namingSystem, String idSystem, String codeSystem) {}
+
+	private static final Map<String, Resolved> resolved = new ConcurrentHashMap<>();
+	private static final int known;
+	static {
+		for (Map.Entry<String, NamingSystem> e: Systems.namingSystems.entrySet()) {
+			resolved.computeIfAbsent(e.getKey(), SystemResolver::compute);
+			if (Systems.isOid(e.getKey())) {
+				resolved.computeIfAbsent(URN_OID + e.getKey(), SystemResolver::compute);
+			}
+		}
+		known = resolved.size();
+	}
+
+	private SystemResolver() {
+	}
+
+	/**
+	 * Resolve a system name
+	 * @param value	The name, which must not be blank
+	 * @return	The resolution of the name
+	 */
+	static Resolved resolve(String value) {
+		Resolved r = resolved.get(value);
+		if (r == null) {
+			r = compute(value);
+			if (resolved.size() < known + MAX_CACHED) {
+				resolved.putIfAbsent(value, r);
+			}
+		}
+		return r;
+	}
+
+	private static Resolved compute(String value) {
+		NamingSystem ns = Systems.namingSystems.get(value);
+		if (ns == null) {
+			ns = Systems.namingSystems.get(normalize(value));
+		}
+		if (ns == null && value.startsWith(URN_OID)) {
+			ns = Systems.namingSystems.get(value.substring(URN_OID.length()));
+		}
+		String idSystem;
+		if (ns != null) {
+			idSystem = ns.getUrl();
+		} else if (value.startsWith(URN_OID)) {
+			idSystem = value.substring(URN_OID.length());
+		} else if (value.startsWith(URN_UUID)) {
+			idSystem = value.substring(URN_UUID.length());
+		} else {
+			idSystem = value;
+		}
+		return new Resolved(ns, idSystem, toCodeSystem(idSystem));
+	}
+
+	private static String toCodeSystem(String system) {
+		// Handle mapping for HL7 V2 tables
+		if ("HL7".equalsIgnoreCase(system)) {
+			return "http://terminology.hl7.org/CodeSystem/v2-0003";
+		} else if (system.startsWith("HL7") || system.startsWith("hl7")) {
+			system = system.substring(3);
+			if (system.startsWith("-")) {
+				system = system.substring(1);
+			}
+			return Mapping.v2Table(system);
+		} else if (StringUtils.isNumeric(system)) {
+			return Mapping.v2Table(system);
+		}
+		return system;
+	}
+
+	/**
+	 * Normalize a name by removing any hyphens or underscores, and converting it to upper case.
+	 * 
+	 * Whitespace is significant, so that a system name padded with whitespace in a message
+	 * is preserved as given rather than resolved.
+	 * 
+	 * @param value	The name
+	 * @return	The normalized name
+	 */
+	static String normalize(String value) {
+		StringBuilder b = null;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			char u = Character.toUpperCase(c);
+			boolean skip = c == '-' || c == '_';
+			if (b == null && (skip || u != c)) {
+				b = new StringBuilder(value.length()).append(value, 0, i);
+			}
+			if (b != null && !skip) {
+				b.append(u);
+			}
+		}
+		return b == null ? value : b.toString();
+	}
+}
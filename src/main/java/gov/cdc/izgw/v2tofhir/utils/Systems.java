@@ -265,17 +265,94 @@ public class Systems {
 		NamingSystemUniqueIdComponent uniqueId = ns.addUniqueId();
 		uniqueId.setValue(uid);
 		uniqueId.setPreferred(false);
-		if (uid.matches("^([\\-a-z0-9]+):.*$")) {
+		if (isUri(uid)) {
 			uniqueId.setType(NamingSystemIdentifierType.URI);
-		} else if (uid.matches("^\\d+(.\\d+)+$")) {
+		} else if (isOid(uid)) {
 			uniqueId.setType(NamingSystemIdentifierType.OID);
-		} else if (uid.matches("^[0-9A-Fa-f]+(-[0-9A-Fa-f]+)+$")) {
+		} else if (isUuid(uid)) {
 			uniqueId.setType(NamingSystemIdentifierType.UUID);
 		} else {
 			uniqueId.setType(NamingSystemIdentifierType.OTHER);
 		}
 		namingSystems.put(uid, ns);
 	}
+	
+	/**
+	 * @param uid	The unique id
+	 * @return true if uid begins with a URI scheme name in lower case (e.g., http: or urn:)
+	 */
+	private static boolean isUri(String uid) {
+		for (int i = 0; i < uid.length(); i++) {
+			char c = uid.charAt(i);
+			if (c == ':') {
+				return i > 0;
+			}
+			if (!(c == '-' || (c >= 'a' && c <= 'z') || isDigit(c))) {
+				return false;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @param uid	The unique id
+	 * @return true if uid is an OID (two or more numbers separated by periods)
+	 */
+	static boolean isOid(String uid) {
+		return isSeparated(uid, '.', false);
+	}
+	
+	/**
+	 * @param uid	The unique id
+	 * @return true if uid is a UUID (two or more groups of hex digits separated by hyphens)
+	 */
+	private static boolean isUuid(String uid) {
+		return isSeparated(uid, '-', true);
+	}
+	
+	private static boolean isSeparated(String uid, char separator, boolean hex) {
+		int groups = 0;
+		boolean empty = true;
+		for (int i = 0; i < uid.length(); i++) {
+			char c = uid.charAt(i);
+			if (c == separator && !empty) {
+				groups++;
+				empty = true;
+			} else if (isDigit(c) || (hex && ((c >= 'A' && c <= 'F') || (c >= 'a' && c <= 'f')))) {
+				empty = false;
+			} else {
+				return false;
+			}
+		}
+		return !empty && groups > 0;
+	}
+	
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+	
+	/**
+	 * @param system	The system name
+	 * @return true if system is a V2 table number (e.g., 0001), name (e.g., HL70001 or HL7-0001) or
+	 * the HL7 Terminology URI for a V2 table, ignoring case.
+	 */
+	private static boolean isV2TableName(String system) {
+		int start = 0;
+		if (StringUtils.startsWithIgnoreCase(system, Mapping.V2_TABLE_PREFIX)) {
+			start = Mapping.V2_TABLE_PREFIX.length();
+		} else if (StringUtils.startsWithIgnoreCase(system, "HL7")) {
+			start = system.startsWith("-", 3) ? 4 : 3;
+		}
+		if (system.length() != start + 4) {
+			return false;
+		}
+		for (int i = start; i < system.length(); i++) {
+			if (!isDigit(system.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
 
 	/**
 	 * Given a URI, get the associated OID
@@ -364,7 +441,7 @@ public class Systems {
 				found.add("http://terminology.hl7.org/CodeSystem/v2-0003");
 			}
 		} else if (
-			system.matches("^(?i)(HL7-?|http://terminology.hl7.org/CodeSystem/v2-|)\\d{4}$") || 
+			isV2TableName(system) || 
 			system.startsWith("2.16.840.1.113883.12.")	// V2 Table OID
 		) {
 			String name = "HL7" + StringUtils.right("000" + system, 4);
@@ -387,12 +464,6 @@ public class Systems {
 		if (StringUtils.isBlank(system)) {
 			return null;
 		}
-		NamingSystem ns = namingSystems.get(system);
-		if (ns == null) {
-			// Normalize value by replacing any whitespace, hypens or underscores, and uppercasing the text.
-			String normalizedValue = system.replace("[-_\\s]+", "").toUpperCase();
-			ns = namingSystems.get(normalizedValue);
-		}
-		return ns;
+		return SystemResolver.resolve(system).namingSystem();
 	}
 }
@@ -0,0 +1,50 @@
+package gov.cdc.izgw.v2tofhir.utils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * A TerminologyProvider supplies the terminology tables used by Mapping.
+ *
+ * Mapping loads its tables from the {@link #classpath()} provider when it is initialized.
+ * Updated tables (e.g., a new release of CVX or MVX codes) can be loaded while the
+ * converter is running by passing another provider to {@link Mapping#reload(TerminologyProvider)}.
+ *
+ * The built-in providers are:
+ * <ul>
+ * <li>{@link #classpath()}: the binary snapshot compiled by the build, or the CSV files in the
+ * coding resource folder if it is not present.</li>
+ * <li>{@link #directory(Path)}: CSV files in a directory, which replace the corresponding
+ * files in the coding resource folder.</li>
+ * </ul>
+ *
+ * @see TerminologySnapshot
+ * @author Audacious Inquiry
+ */
+@FunctionalInterface
+public interface TerminologyProvider {
+	/**
+	 * Load the terminology tables.
+	 * @return	The tables
+	 * @throws IOException	If the tables cannot be loaded
+	 */
+	TerminologySnapshot load() throws IOException;
+
+	/**
+	 * The terminology distributed with the converter.
+	 * @return	The provider
+	 */
+	static TerminologyProvider classpath() {
+		return TerminologySnapshot::load;
+	}
+
+	/**
+	 * Terminology read from the CSV files in a directory each time it is loaded.
+	 * @param dir	The directory
+	 * @return	The provider
+	 * @see TerminologySnapshot#fromDirectory(Path)
+	 */
+	static TerminologyProvider directory(Path dir) {
+		return () -> TerminologySnapshot.fromDirectory(dir);
+	}
+}
@@ -0,0 +1,498 @@
+package gov.cdc.izgw.v2tofhir.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+
+import com.opencsv.CSVParserBuilder;
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import com.opencsv.enums.CSVReaderNullFieldIndicator;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * TerminologySnapshot holds the terminology tables used by Mapping in a compact form.
+ *
+ * The tables are read from the V2-to-FHIR concept map CSV files and the CVX and MVX
+ * code lists in the coding resource folder.  Reading and parsing these files takes
+ * the better part of a second, which dominates the startup time of short lived processes.
+ * The build compiles them into a binary snapshot (see {@link #RESOURCE}) by running
+ * {@link #main(String[])} in the process-classes phase, which Mapping loads in a few milliseconds.
+ * If the snapshot is not present (e.g., when run from an IDE which has not run the build),
+ * the CSV files are read instead.  Updated tables can also be read from a directory 
+ * (see {@link #fromDirectory(Path)}) while the converter is running.
+ *
+ * The snapshot contains a pool of the distinct strings in the tables, followed by the rows
+ * of each table as arrays of indexes into the pool.  Only the values are stored; FHIR
+ * ConceptMap and CodeSystem resources are created from them on request.
+ *
+ * @author Audacious Inquiry
+ */
+@Slf4j
+public final class TerminologySnapshot {
+	/** The classpath resource containing the snapshot */
+	public static final String RESOURCE = "coding/terminology.bin";
+	/** The number of values in each row of a ConceptMapTable */
+	public static final int CONCEPT_MAP_COLUMNS = 6;
+	private static final int MAGIC = 0x56325453;	// V2TS
+	private static final int VERSION = 1;
+	private static final String UNEXPECTED_ERROR_READING = "Unexpected {} reading {}({}): {}";
+	private static final String[] CONCEPT_MAP_HEADERS = { "Code", "Text", "Code System", "Code", "Display", "Code System" };
+	private static final String[] CSV_PROPERTIES = { "v2-concComment", "v2-concCommentAsPub", "HL7usageNotes" };
+	private static final String CODING_FOLDER = "coding/";
+	private static final String CONCEPT_FILES = "HL7 Concept*.csv";
+	private static final String CODE_SYSTEM_FILES = "HL7 CodeSystem*.csv";
+	private static final String CVX_FILE = "cvx.txt";
+	private static final String MVX_FILE = "mvx.txt";
+
+	/**
+	 * A mapping table from a V2-to-FHIR concept map file.
+	 *
+	 * Each row contains CONCEPT_MAP_COLUMNS values: the V2 code, its text, and its table, followed by
+	 * the FHIR code, its display name, and its system.  Missing values are null.
+	 *
+	 * @param name	The name of the mapping
+	 * @param values	The values of the rows
+	 */
+	public record ConceptMapTable(String name, String[] values) {
+		/** @return The number of rows in the table */
+		public int size() {
+			return values.length / CONCEPT_MAP_COLUMNS;
+		}
+	}
+
+	/**
+	 * A code system.
+	 *
+	 * Each row contains the code, display name, and definition of a concept, followed by
+	 * the values of its properties.  Missing values are null.
+	 *
+	 * @param mappingName	The name of the Mapping registered for the code system, or null if there is none
+	 * @param url	The url of the code system
+	 * @param name	The name of the code system
+	 * @param title	The title of the code system
+	 * @param oid	The OID of the code system, or null if not known
+	 * @param properties	The names of the concept properties
+	 * @param values	The values of the rows
+	 */
+	public record CodeSystemTable(String mappingName, String url, String name, String title, String oid,
+		String[] properties, String[] values) {
+		/** @return The number of values in each row */
+		public int columns() {
+			return 3 + properties.length;
+		}
+		/** @return The number of rows in the table */
+		public int size() {
+			return values.length / columns();
+		}
+	}
+
+	private final List<ConceptMapTable> conceptMaps;
+	private final List<CodeSystemTable> codeSystems;
+
+	private TerminologySnapshot(List<ConceptMapTable> conceptMaps, List<CodeSystemTable> codeSystems) {
+		this.conceptMaps = Collections.unmodifiableList(conceptMaps);
+		this.codeSystems = Collections.unmodifiableList(codeSystems);
+	}
+
+	/**
+	 * @return The concept map tables in the order they are loaded
+	 */
+	public List<ConceptMapTable> getConceptMaps() {
+		return conceptMaps;
+	}
+
+	/**
+	 * @return The code system tables in the order they are loaded
+	 */
+	public List<CodeSystemTable> getCodeSystems() {
+		return codeSystems;
+	}
+
+	/**
+	 * Write a snapshot of the CSV files to a file, for use during the build.
+	 * @param args	The path of the file to write
+	 * @throws IOException	If an error occurs writing the file
+	 * @throws IllegalArgumentException	If args does not contain exactly one path.  This does not 
+	 * call System.exit(), since the build runs it in the Maven JVM.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			throw new IllegalArgumentException("Usage: TerminologySnapshot <output file>, but was given " + Arrays.asList(args));
+		}
+		Path path = Path.of(args[0]);
+		if (path.getParent() != null) {
+			Files.createDirectories(path.getParent());
+		}
+		TerminologySnapshot snapshot = fromCsv();
+		try (OutputStream os = Files.newOutputStream(path)) {
+			snapshot.write(os);
+		}
+		log.info("Wrote {} concept maps and {} code systems to {}", snapshot.conceptMaps.size(), snapshot.codeSystems.size(), path);
+	}
+
+	/**
+	 * Load the snapshot from the classpath, or from the CSV files if it is not present.
+	 * @return The snapshot
+	 */
+	public static TerminologySnapshot load() {
+		try (InputStream is = TerminologySnapshot.class.getClassLoader().getResourceAsStream(RESOURCE)) {
+			if (is != null) {
+				return read(is);
+			}
+			log.info("{} not found, loading terminology from CSV files", RESOURCE);
+		} catch (IOException e) {
+			log.warn("Unexpected {} reading {}, loading terminology from CSV files: {}", e.getClass().getSimpleName(), RESOURCE, e.getMessage());
+		}
+		return fromCsv();
+	}
+
+	/**
+	 * Read a snapshot
+	 * @param is	The stream to read from
+	 * @return The snapshot
+	 * @throws IOException	If an error occurs reading the stream, or it does not contain a snapshot
+	 */
+	public static TerminologySnapshot read(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new IOException("Not a terminology snapshot, or the wrong version");
+		}
+		String[] pool = new String[in.readInt() + 1];	// pool[0] is null
+		for (int i = 1; i < pool.length; i++) {
+			pool[i] = in.readUTF();
+		}
+		int count = in.readInt();
+		List<ConceptMapTable> conceptMaps = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			String name = pool[in.readInt()];
+			conceptMaps.add(new ConceptMapTable(name, readValues(in, pool)));
+		}
+		count = in.readInt();
+		List<CodeSystemTable> codeSystems = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			String mappingName = pool[in.readInt()];
+			String url = pool[in.readInt()];
+			String name = pool[in.readInt()];
+			String title = pool[in.readInt()];
+			String oid = pool[in.readInt()];
+			codeSystems.add(new CodeSystemTable(mappingName, url, name, title, oid, readValues(in, pool), readValues(in, pool)));
+		}
+		return new TerminologySnapshot(conceptMaps, codeSystems);
+	}
+
+	private static String[] readValues(DataInputStream in, String[] pool) throws IOException {
+		String[] values = new String[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = pool[in.readInt()];
+		}
+		return values;
+	}
+
+	/**
+	 * Write the snapshot
+	 * @param os	The stream to write to
+	 * @throws IOException	If an error occurs writing the stream
+	 */
+	public void write(OutputStream os) throws IOException {
+		Map<String, Integer> pool = new LinkedHashMap<>();
+		for (ConceptMapTable t: conceptMaps) {
+			intern(pool, t.name());
+			intern(pool, t.values());
+		}
+		for (CodeSystemTable t: codeSystems) {
+			intern(pool, t.mappingName(), t.url(), t.name(), t.title(), t.oid());
+			intern(pool, t.properties());
+			intern(pool, t.values());
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(pool.size());
+		for (String s: pool.keySet()) {
+			out.writeUTF(s);
+		}
+		out.writeInt(conceptMaps.size());
+		for (ConceptMapTable t: conceptMaps) {
+			writeIndexes(out, pool, t.name());
+			writeValues(out, pool, t.values());
+		}
+		out.writeInt(codeSystems.size());
+		for (CodeSystemTable t: codeSystems) {
+			writeIndexes(out, pool, t.mappingName(), t.url(), t.name(), t.title(), t.oid());
+			writeValues(out, pool, t.properties());
+			writeValues(out, pool, t.values());
+		}
+		out.flush();
+	}
+
+	private static void intern(Map<String, Integer> pool, String ... values) {
+		for (String value: values) {
+			if (value != null) {
+				pool.computeIfAbsent(value, k -> pool.size() + 1);
+			}
+		}
+	}
+
+	private static void writeValues(DataOutputStream out, Map<String, Integer> pool, String[] values) throws IOException {
+		out.writeInt(values.length);
+		writeIndexes(out, pool, values);
+	}
+
+	private static void writeIndexes(DataOutputStream out, Map<String, Integer> pool, String ... values) throws IOException {
+		for (String value: values) {
+			out.writeInt(value == null ? 0 : pool.get(value));
+		}
+	}
+
+	/**
+	 * Read the tables from the CSV files in the coding resource folder.
+	 * @return	The snapshot
+	 */
+	public static TerminologySnapshot fromCsv() {
+		PathMatchingResourcePatternResolver resolver = new PathMatchingResourcePatternResolver();
+		Resource[] conceptFiles;
+		Resource[] codeSystemFiles;
+		try {
+			conceptFiles = resolver.getResources(CODING_FOLDER + CONCEPT_FILES);
+			codeSystemFiles = resolver.getResources(CODING_FOLDER + CODE_SYSTEM_FILES);
+		} catch (IOException e) {
+			log.error("Cannot load coding resources");
+			throw new ServiceConfigurationError("Cannot load coding resources", e);
+		}
+		return fromCsv(Arrays.asList(conceptFiles), Arrays.asList(codeSystemFiles),
+			resolver.getResource("/" + CODING_FOLDER + CVX_FILE), resolver.getResource("/" + CODING_FOLDER + MVX_FILE), new ArrayList<>());
+	}
+
+	/**
+	 * Read the tables from the CSV files in a directory.
+	 *
+	 * The directory has the same layout as the coding resource folder.  Files in the directory
+	 * replace the resources of the same name, and resources which are not in the directory
+	 * are read from the classpath, so that the directory need only contain the files which have
+	 * been updated (e.g., cvx.txt).
+	 *
+	 * Unlike {@link #fromCsv()}, which skips any file which cannot be read, this fails if any
+	 * file cannot be read, so that a damaged update does not replace working terminology.
+	 *
+	 * @param dir	The directory
+	 * @return	The snapshot
+	 * @throws IOException	If the directory or any of the files cannot be read
+	 */
+	public static TerminologySnapshot fromDirectory(Path dir) throws IOException {
+		if (!Files.isDirectory(dir)) {
+			throw new NoSuchFileException(dir.toString(), null, "Not a terminology directory");
+		}
+		PathMatchingResourcePatternResolver resolver = new PathMatchingResourcePatternResolver();
+		List<String> errors = new ArrayList<>();
+		TerminologySnapshot snapshot = fromCsv(
+			overlay(dir, CONCEPT_FILES, resolver.getResources(CODING_FOLDER + CONCEPT_FILES)),
+			overlay(dir, CODE_SYSTEM_FILES, resolver.getResources(CODING_FOLDER + CODE_SYSTEM_FILES)),
+			overlay(dir, CVX_FILE, resolver.getResource("/" + CODING_FOLDER + CVX_FILE)),
+			overlay(dir, MVX_FILE, resolver.getResource("/" + CODING_FOLDER + MVX_FILE)),
+			errors);
+		if (!errors.isEmpty()) {
+			throw new IOException("Cannot load terminology from " + dir + ": " + errors);
+		}
+		return snapshot;
+	}
+
+	private static Collection<Resource> overlay(Path dir, String glob, Resource[] resources) throws IOException {
+		Map<String, Resource> files = new LinkedHashMap<>();
+		for (Resource r: resources) {
+			files.put(r.getFilename(), r);
+		}
+		List<Path> paths = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+			stream.forEach(paths::add);
+		}
+		Collections.sort(paths);
+		for (Path path: paths) {
+			files.put(path.getFileName().toString(), new FileSystemResource(path));
+		}
+		return files.values();
+	}
+
+	private static Resource overlay(Path dir, String name, Resource resource) {
+		Path path = dir.resolve(name);
+		return Files.isRegularFile(path) ? new FileSystemResource(path) : resource;
+	}
+
+	private static TerminologySnapshot fromCsv(Collection<Resource> conceptFiles, Collection<Resource> codeSystemFiles, 
+		Resource cvx, Resource mvx, List<String> errors) {
+		List<ConceptMapTable> conceptMaps = new ArrayList<>();
+		List<CodeSystemTable> codeSystems = new ArrayList<>();
+		int fileno = 0;
+		for (Resource file : conceptFiles) {
+			conceptMaps.add(loadConceptFile(++fileno, file, errors));
+		}
+		for (Resource file : codeSystemFiles) {
+			codeSystems.add(loadCodeSystemFile(++fileno, file, errors));
+		}
+		codeSystems.add(loadData(cvx, errors,
+			Systems.CVX, "CVX", "Vaccines Administered", Systems.CVX_OID, "Active", "Comment"));
+		codeSystems.add(loadData(mvx, errors,
+			Systems.MVX, "MVX", "Manufacturers of Vaccines", Systems.MVX_OID, "Active"));
+		return new TerminologySnapshot(conceptMaps, codeSystems);
+	}
+
+	private static String getMappingName(Resource file) {
+		return file.getFilename().split("_ ")[1].split(" ")[0];
+	}
+
+	private static ConceptMapTable loadConceptFile(int fileno, Resource file, List<String> errors) {
+		String name = getMappingName(file);
+		List<String> values = new ArrayList<>();
+		int line = 0;
+		try (InputStreamReader sr = new InputStreamReader(file.getInputStream());
+				CSVReader reader = new CSVReader(sr);) {
+			reader.readNext(); // Skip first line header
+			line++;
+			String[] headers = reader.readNext();
+			int[] indices = getHeaderIndices(headers);
+			line++;
+			String[] fields = null;
+
+			while ((fields = reader.readNext()) != null) {
+				++line;
+				for (int index: indices) {
+					values.add(get(fields, index));
+				}
+				if (values.get(values.size() - CONCEPT_MAP_COLUMNS + 2) == null) {
+					log.trace("Missing table reading {}({}): {}", name, line, Arrays.asList(fields));
+				}
+			}
+			log.debug("{}: Loaded {} lines from {}", fileno, line, name);
+
+		} catch (Exception e) {
+			log.warn(UNEXPECTED_ERROR_READING, e.getClass().getSimpleName(), file.getFilename(), line,
+					e.getMessage(), e);
+			errors.add(file.getFilename() + "(" + line + "): " + e.getMessage());
+			// Drop any partial row
+			values.subList(values.size() - values.size() % CONCEPT_MAP_COLUMNS, values.size()).clear();
+		}
+		return new ConceptMapTable(name, values.toArray(new String[0]));
+	}
+
+	/**
+	 * Load a code system.
+	 *
+	 * Field data is expected to appear in this order:
+	 * Code,Display,Definition,V2 Concept Comment,V2 Concept Comment As Published,HL7 Concept Usage Notes
+	 */
+	private static CodeSystemTable loadCodeSystemFile(int fileno, Resource file, List<String> errors) {
+		String name = getMappingName(file);
+		String[] metadata = {};
+		List<String> values = new ArrayList<>();
+		int columns = 3 + CSV_PROPERTIES.length;
+		int line = 0;
+		try (InputStreamReader sr = new InputStreamReader(file.getInputStream());
+				CSVReader reader = new CSVReader(sr);) {
+			String[] first = reader.readNext();
+			metadata = first == null ? metadata : first;
+			String[] headers = reader.readNext();
+			getHeaderIndices(headers);
+			String[] fields = null;
+
+			line = 2;
+			while ((fields = reader.readNext()) != null) {
+				++line;
+				for (int i = 0; i < columns; i++) {
+					values.add(fields.length > i && StringUtils.isNotEmpty(fields[i]) ? fields[i] : null);
+				}
+			}
+			log.debug("{}: Loaded {} lines from {}", fileno, line, name);
+
+		} catch (Exception e) {
+			log.warn(UNEXPECTED_ERROR_READING, e.getClass().getSimpleName(), file.getFilename(), line,
+					e.getMessage(), e);
+			errors.add(file.getFilename() + "(" + line + "): " + e.getMessage());
+		}
+		return new CodeSystemTable(name, metadata.length > 0 ? metadata[0] : null, metadata.length > 2 ? metadata[2] : null,
+			null, null, CSV_PROPERTIES, values.toArray(new String[0]));
+	}
+
+	private static CodeSystemTable loadData(Resource file, List<String> errors, String url, String name, String title, String oid, String ... properties) {
+		List<String> values = new ArrayList<>();
+		int columns = 3 + properties.length;
+		int line = 0;
+		try (InputStreamReader sr = new InputStreamReader(file.getInputStream());
+			 CSVReader reader = new CSVReaderBuilder(sr).withCSVParser(
+					new CSVParserBuilder()
+						.withSeparator('|')
+						.withFieldAsNull(CSVReaderNullFieldIndicator.EMPTY_SEPARATORS)
+						.withIgnoreQuotations(false).build()).build();
+		) {
+			String[] fields = null;
+			while ((fields = reader.readNext()) != null) {
+				line++;
+				for (int i = 0; i < columns; i++) {
+					values.add(i < fields.length ? StringUtils.trim(fields[i]) : null);
+				}
+			}
+		} catch (Exception e) {
+			log.warn(UNEXPECTED_ERROR_READING, e.getClass().getSimpleName(), file.getFilename(), line,
+					e.getMessage(), e);
+			errors.add(file.getFilename() + "(" + line + "): " + e.getMessage());
+			values.subList(values.size() - values.size() % columns, values.size()).clear();
+		}
+		return new CodeSystemTable(null, url, name, title, oid, properties, values.toArray(new String[0]));
+	}
+
+	private static void checkAllHeadersPresent(String[] headers, int[] headerIndices)
+			throws IOException {
+		for (int i = 0; i < headerIndices.length - 1; i++) {
+			if (headerIndices[i] >= headerIndices[i + 1]) {
+				log.error("Missing headers, expcected {} but found {}", Arrays.asList(CONCEPT_MAP_HEADERS),
+						Arrays.asList(headers));
+				throw new IOException("Missing Headers");
+			}
+		}
+	}
+
+	private static String get(String[] fields, int i) {
+		if (i < fields.length && StringUtils.isNotBlank(fields[i])) {
+			return fields[i].trim();
+		}
+		return null;
+	}
+
+	private static int[] getHeaderIndices(String[] headers) throws IOException {
+		int[] headerIndices = new int[CONCEPT_MAP_HEADERS.length];
+		int startLoc = 0;
+		for (int i = 0; i < CONCEPT_MAP_HEADERS.length; i++) {
+			for (int j = startLoc; j < headers.length; j++) {
+				if (CONCEPT_MAP_HEADERS[i].equalsIgnoreCase(headers[j])) {
+					headerIndices[i] = j;
+					startLoc = j + 1;
+					break;
+				}
+			}
+		}
+		checkAllHeadersPresent(headers, headerIndices);
+		return headerIndices;
+	}
+}
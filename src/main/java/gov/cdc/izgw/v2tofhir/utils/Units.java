@@ -1,10 +1,9 @@
 package gov.cdc.izgw.v2tofhir.utils;
 
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.tuple.Pair;
 import org.hl7.fhir.r4.model.Coding;
 
 /**
@@ -1386,21 +1385,24 @@ public class Units {
 		{ "uCi", "MICROCURIE"},
 		{ "W", "Watt"},
 	};
-	private static HashMap<String, Pair<String, String>> ucumMap = new LinkedHashMap<>();
-	private static HashMap<String, String> commonUcum = new LinkedHashMap<>();
+	/** 
+	 * The Coding for each UCUM unit by the unit in uppercase, or other units by their code.
+	 * These are shared, and are copied by toUcum() before they are returned.
+	 */
+	private static Map<String, Coding> ucumMap = new HashMap<>();
+	/** The Coding for each common UCUM unit by its code */
+	private static Map<String, Coding> commonUcum = new HashMap<>();
 	
 	static {
 		for (String[] pair: commonUcumUnits) {
-			commonUcum.put(pair[0], pair[1]);
+			commonUcum.put(pair[0], new Coding(Systems.UCUM, pair[0], pair[1]));
 		}
 		for (String[] pair : mapData) {
-			String display = commonUcum.get(pair[1]);
-			if (display == null) {
-				display = pair[1];
-			}
-			ucumMap.put(pair[0], Pair.of(pair[1], display));
+			Coding common = commonUcum.get(pair[1]);
+			Coding coding = common != null ? common : new Coding(Systems.UCUM, pair[1], pair[1]);
+			ucumMap.put(pair[0], coding);
 			// Also put any unit in that is a UCUM unit mapping to itself
-			ucumMap.put(pair[1].toUpperCase(), Pair.of(pair[1], display));
+			ucumMap.put(pair[1].toUpperCase(), coding);
 		}
 	}
 	
@@ -1413,26 +1415,26 @@ public class Units {
 	 * @return	The Coding representing the UCUM unit
 	 */
 	public static Coding toUcum(String unit) {
+		Coding coding = getUcum(unit);
+		return coding != null ? coding.copy() : null;
+	}
+	
+	/**
+	 * Get the shared Coding for a unit, which must not be modified.
+	 * @param unit	The string to convert to a UCUM code
+	 * @return	The shared Coding representing the UCUM unit, or null if not known
+	 */
+	static Coding getUcum(String unit) {
 		if (unit == null || StringUtils.isBlank(unit)) {
 			return null;
 		}
 		unit = unit.replace("\s+", "");	// Remove any whitespace for lookup
-		String display = commonUcum.get(unit);
-		if (display != null) {
-			return new Coding(Systems.UCUM, unit, display);
+		Coding coding = commonUcum.get(unit);
+		if (coding != null) {
+			return coding;
 		}
 		unit = StringUtils.upperCase(unit);  // Convert to Uppercase for lookup
-		Pair<String,String> ucumValue = ucumMap.get(unit);
-		if (ucumValue == null) {
-			return null;
-		}
-		Coding coding = new Coding(Systems.UCUM, ucumValue.getKey(), ucumValue.getValue());
-		// If found in commonUcum, set display name.
-		display = commonUcum.get(coding.getCode());
-		if (display != null) {
-			coding.setDisplay(display);
-		}
-		return coding;
+		return ucumMap.get(unit);
 	}
 	
 	/**
@@ -1452,7 +1454,7 @@ public class Units {
 		if (commonUcum.containsKey(unit)) {
 			return true;
 		}
-		Coding coding = toUcum(unit);
+		Coding coding = getUcum(unit);
 		if (coding == null) {
 			return false;
 		}
@@ -3,6 +3,9 @@ package test.gov.cdc.izgateway.v2tofhir;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
@@ -31,12 +34,14 @@ import org.hl7.fhir.r4.model.DateType;
 import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.InstantType;
 import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Money;
 import org.hl7.fhir.r4.model.PositiveIntType;
 import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.TimeType;
 import org.hl7.fhir.r4.model.UnsignedIntType;
 import org.hl7.fhir.r4.model.UriType;
 import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
 import ca.uhn.fhir.context.FhirContext;
@@ -46,7 +51,14 @@ import ca.uhn.hl7v2.model.Composite;
 import ca.uhn.hl7v2.model.Primitive;
 import ca.uhn.hl7v2.model.Type;
 import ca.uhn.hl7v2.model.Varies;
+import ca.uhn.hl7v2.model.v251.datatype.CE;
+import ca.uhn.hl7v2.model.v251.datatype.ST;
+import ca.uhn.hl7v2.model.v251.message.ADT_A01;
+import ca.uhn.hl7v2.parser.PipeParser;
+import gov.cdc.izgw.v2tofhir.converter.ConversionCache;
+import gov.cdc.izgw.v2tofhir.converter.ConverterRegistry;
 import gov.cdc.izgw.v2tofhir.converter.DatatypeConverter;
+import gov.cdc.izgw.v2tofhir.converter.DatatypeConverter.Converter;
 import gov.cdc.izgw.v2tofhir.utils.Mapping;
 import gov.cdc.izgw.v2tofhir.utils.ParserUtils;
 import gov.cdc.izgw.v2tofhir.utils.Systems;
@@ -102,6 +114,102 @@ class DatatypeConverterTests extends TestBase {
 		Bundle b = p.parseResource(Bundle.class, fhirResult);
 	}
 	
+	@Test
+	void testConverterRegistry() throws HL7Exception {
+		assertEquals(StringType.class, ConverterRegistry.getDatatype("string"));
+		assertEquals(DateTimeType.class, ConverterRegistry.getDatatype("dateTime"));
+		assertEquals(Identifier.class, ConverterRegistry.getDatatype("Identifier"));
+		assertNull(ConverterRegistry.getDatatype("NotAFhirType"));
+		
+		ST st = new ST(null);
+		st.setValue("USD");
+		assertEquals("USD", DatatypeConverter.<StringType>convert("string", st, null).getValue());
+		assertThrows(IllegalArgumentException.class, () -> DatatypeConverter.convert(Money.class, st, null));
+		
+		// Register a converter for a datatype that is not supported
+		Converter<Money> before = DatatypeConverter.getConverter(Money.class);
+		try {
+			ConverterRegistry.register(Money.class, (t, table) -> new Money().setCurrency(ParserUtils.toString(t)));
+			assertEquals("USD", DatatypeConverter.convert(Money.class, st, null).getCurrency());
+			assertEquals("USD", DatatypeConverter.getConverter(Money.class).convert(st).getCurrency());
+			assertEquals("USD", DatatypeConverter.<Money>convert("Money", st, null).getCurrency());
+			// Converters obtained before registration use the registered converter
+			assertEquals("USD", before.convert(st).getCurrency());
+		} finally {
+			ConverterRegistry.unregister(Money.class);
+		}
+		assertThrows(IllegalArgumentException.class, () -> DatatypeConverter.convert(Money.class, st, null));
+		assertThrows(IllegalArgumentException.class, () -> before.convert(st));
+		
+		// Replacing a built-in converter, and restoring it
+		try {
+			ConverterRegistry.register(StringType.class, (t, table) -> new StringType("replaced"));
+			assertEquals("replaced", DatatypeConverter.<StringType>convert("string", st, null).getValue());
+		} finally {
+			ConverterRegistry.unregister(StringType.class);
+		}
+		assertEquals("USD", DatatypeConverter.<StringType>convert("string", st, null).getValue());
+	}
+	
+	@Test
+	void testConversionCache() throws HL7Exception {
+		ADT_A01 msg = new ADT_A01();
+		msg.setParser(new PipeParser());
+		ST st = new ST(msg);
+		st.setValue("ABC");
+		try {
+			ConversionCache.enable(10);
+			CodeableConcept first = DatatypeConverter.convert(CodeableConcept.class, st, "0001");
+			CodeableConcept second = DatatypeConverter.convert(CodeableConcept.class, st, "0001");
+			assertEquals(1, ConversionCache.getMissCount());
+			assertEquals(1, ConversionCache.getHitCount());
+			assertEquals(TestUtils.toString(first), TestUtils.toString(second));
+			// Each hit is a copy
+			assertNotSame(first, second);
+			second.setText("changed");
+			assertFalse(DatatypeConverter.convert(CodeableConcept.class, st, "0001").hasText());
+			// The table is part of the key, and uncached types are converted as usual
+			DatatypeConverter.convert(CodeableConcept.class, st, "0002");
+			DatatypeConverter.convert(StringType.class, st, null);
+			assertEquals(2, ConversionCache.getMissCount());
+		} finally {
+			ConversionCache.disable();
+		}
+		assertEquals(0, ConversionCache.getHitCount());
+		
+		// Misses and hits match the uncached result, including user data
+		CE ce = new CE(msg);
+		ce.getIdentifier().setValue("08");
+		ce.getText().setValue("HepB");
+		ce.getNameOfCodingSystem().setValue("CVX");
+		CodeableConcept uncached = DatatypeConverter.toCodeableConcept(ce);
+		Coding coding = uncached.getCodingFirstRep();
+		assertEquals("CVX", coding.getUserData(Mapping.ORIGINAL_SYSTEM));
+		assertEquals("HepB", coding.getUserData(Mapping.ORIGINAL_DISPLAY));
+		try {
+			ConversionCache.enable(10);
+			CodeableConcept miss = DatatypeConverter.convert(CodeableConcept.class, ce, null);
+			CodeableConcept hit = DatatypeConverter.convert(CodeableConcept.class, ce, null);
+			assertEquals(1, ConversionCache.getHitCount());
+			for (CodeableConcept cc: List.of(miss, hit)) {
+				assertEquals(TestUtils.toString(uncached), TestUtils.toString(cc));
+				Coding c = cc.getCodingFirstRep();
+				assertEquals("CVX", c.getUserData(Mapping.ORIGINAL_SYSTEM));
+				assertEquals("HepB", c.getUserData(Mapping.ORIGINAL_DISPLAY));
+				Mapping.reset(cc);
+				assertEquals("CVX", c.getSystem());
+				assertEquals("HepB", c.getDisplay());
+			}
+			// Resetting a copy does not change the cached value
+			assertEquals(TestUtils.toString(uncached), TestUtils.toString(DatatypeConverter.convert(CodeableConcept.class, ce, null)));
+		} finally {
+			ConversionCache.disable();
+		}
+		Mapping.reset(uncached);
+		assertEquals("CVX", coding.getSystem());
+		assertEquals("HepB", coding.getDisplay());
+	}
+	
 	@ParameterizedTest
 	@MethodSource("getTestDataForCoding")
 	void testCompositeConversionsForCodings(Type t) throws HL7Exception {
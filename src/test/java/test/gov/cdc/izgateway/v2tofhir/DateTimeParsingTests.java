@@ -2,8 +2,11 @@ package test.gov.cdc.izgateway.v2tofhir;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.time.Instant;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Date;
+import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
@@ -17,6 +20,7 @@ import org.hl7.fhir.r4.model.DateTimeType;
 import org.hl7.fhir.r4.model.InstantType;
 import org.hl7.fhir.r4.model.PrimitiveType;
 import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
 import org.junit.jupiter.params.provider.MethodSource;
 
 import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
@@ -659,4 +663,52 @@ class DateTimeParsingTests {
 			compareToString(s, actual, false);
 		}
 	}
+	
+	@ParameterizedTest
+	@CsvSource({
+		"20240101120000-0030, 2024-01-01T12:00:00-00:30, 2024-01-01T12:30:00Z",
+		"2024-01-01T12:00:00-00:15, 2024-01-01T12:00:00-00:15, 2024-01-01T12:15:00Z",
+		"202401011200-0045, 2024-01-01T12:00-00:45, 2024-01-01T12:45:00Z",
+		"20240101120000.12-0030, 2024-01-01T12:00:00.120-00:30, 2024-01-01T12:30:00.120Z",
+		// Values the scanner declines are converted by the general parsers
+		"20240101120000.1235-0030, 2024-01-01T12:00:00.123-00:30, 2024-01-01T12:30:00.123Z",
+		"2024-01-01T12:00:00.1235-00:30, 2024-01-01T12:00:00.123-00:30, 2024-01-01T12:30:00.123Z",
+		"20240101120000.1235-0059, 2024-01-01T12:00:00.123-00:59, 2024-01-01T12:59:00.123Z",
+		"20240101120000.1235+0030, 2024-01-01T12:00:00.123+00:30, 2024-01-01T11:30:00.123Z",
+		"20240101120000.1235-0000, 2024-01-01T12:00:00.123+00:00, 2024-01-01T12:00:00.123Z"
+	})
+	void testNegativeSubHourOffsets(String input, String expected, String utc) {
+		// The offset keeps its sign, even though it is less than an hour, whichever parser is used
+		InstantType actual = DatatypeConverter.toInstantType(input);
+		assertEquals(expected, actual.getValueAsString());
+		assertEquals(Instant.parse(utc), actual.getValue().toInstant());
+	}
+	
+	@ParameterizedTest
+	@CsvSource({
+		// Local mean time offsets include seconds
+		"Asia/Kolkata, 19051103175341, 1905-11-03T17:53:41",
+		"Asia/Kolkata, 19000101000000, 1900-01-01T00:00:00",
+		// The time zone data used by Calendar differs from java.time before 1981 
+		"Australia/Lord_Howe, 19000101000000, 1900-01-01T00:00:00",
+		"Australia/Lord_Howe, 1900, 1900"
+	})
+	void testLocalMeanTime(String zone, String input, String expected) {
+		TimeZone saved = TimeZone.getDefault();
+		try {
+			TimeZone tz = TimeZone.getTimeZone(zone);
+			TimeZone.setDefault(tz);
+			InstantType actual = DatatypeConverter.toInstantType(input);
+			assertTrue(actual.getValueAsString().startsWith(expected), actual.getValueAsString());
+			// The value is the local time in the default time zone, as Calendar computes it
+			Calendar cal = new GregorianCalendar(tz);
+			cal.clear();
+			String v = StringUtils.rightPad(input, 14, "0101000000".substring(Math.max(0, input.length() - 4)));
+			cal.set(Integer.parseInt(v.substring(0, 4)), Integer.parseInt(v.substring(4, 6)) - 1, Integer.parseInt(v.substring(6, 8)),
+				Integer.parseInt(v.substring(8, 10)), Integer.parseInt(v.substring(10, 12)), Integer.parseInt(v.substring(12, 14)));
+			assertEquals(cal.getTimeInMillis(), actual.getValue().getTime());
+		} finally {
+			TimeZone.setDefault(saved);
+		}
+	}
 }
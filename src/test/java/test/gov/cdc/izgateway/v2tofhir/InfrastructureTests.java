@@ -1,20 +1,42 @@
 package test.gov.cdc.izgateway.v2tofhir;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.stream.IntStream;
 
+import org.hl7.fhir.r4.model.CodeSystem;
 import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.ConceptMap;
 import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
 import org.junit.jupiter.params.provider.MethodSource;
 
 import ca.uhn.hl7v2.model.Type;
+import gov.cdc.izgw.v2tofhir.utils.Mapping;
 import gov.cdc.izgw.v2tofhir.utils.Systems;
+import gov.cdc.izgw.v2tofhir.utils.TerminologyProvider;
+import gov.cdc.izgw.v2tofhir.utils.TerminologySnapshot;
+import gov.cdc.izgw.v2tofhir.utils.Units;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
@@ -156,4 +178,131 @@ class InfrastructureTests extends TestBase {
 			"V2 " + v2Type + " - " + v2Name + " is not found in test data"
 			);
 	}
+	
+	@Test
+	void testTerminologySnapshot() throws IOException {
+		TerminologySnapshot csv = TerminologySnapshot.fromCsv();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		csv.write(bos);
+		byte[] expected = bos.toByteArray();
+		
+		// The snapshot built from the CSV files is read back unchanged
+		bos.reset();
+		TerminologySnapshot.read(new ByteArrayInputStream(expected)).write(bos);
+		assertArrayEquals(expected, bos.toByteArray());
+		
+		// The snapshot loaded by Mapping is current
+		bos.reset();
+		TerminologySnapshot.load().write(bos);
+		assertArrayEquals(expected, bos.toByteArray());
+		
+		Mapping m = Mapping.getMapping("Gender");
+		ConceptMap cm = m.asConceptMap();
+		assertSame(cm, m.asConceptMap());
+		assertEquals(1, cm.getGroup().size());
+		
+		CodeSystem cvx = Mapping.getCodeSystem(Systems.CVX);
+		assertSame(cvx, Mapping.getCodeSystem(Systems.CVX));
+		assertEquals(csv.getCodeSystems().stream().filter(t -> Systems.CVX.equals(t.url())).findFirst().orElseThrow().size(), cvx.getConcept().size());
+		assertEquals(cvx.getConcept().get(0).getDisplay(), Mapping.getDisplay(cvx.getConcept().get(0).getCode(), Systems.CVX));
+	}
+	
+	@Test
+	void testCodeLookupUpdates() {
+		String system = "http://example.com/CodeSystem/test";
+		assertNull(Mapping.getDisplay("A", system));
+		Map<String, Coding> cm = Mapping.updateCodeLookup(new Coding(system, "A", "Alpha"));
+		// Updates are seen even if the system was not known on an earlier lookup
+		assertEquals("Alpha", Mapping.getDisplay("A", system));
+		Coding b = new Coding(system, "B", "Beta");
+		assertThrows(UnsupportedOperationException.class, () -> cm.put("B", b));
+		
+		// Concurrent lookups see the same results
+		String display = Mapping.getDisplay("208", Systems.CVX);
+		assertNotNull(display);
+		assertTrue(IntStream.range(0, 10000).parallel().allMatch(i -> display.equals(Mapping.getDisplay("208", i % 2 == 0 ? Systems.CVX : "CVX"))));
+	}
+	
+	@Test
+	void testTerminologyReload(@TempDir Path dir) throws IOException {
+		String display = Mapping.getDisplay("208", Systems.CVX);
+		long version = Mapping.getTerminologyVersion();
+		Files.writeString(dir.resolve("cvx.txt"), 
+			"208       |Updated vaccine|Updated vaccine description||Active|False|2026/01/01\n" +
+			"999999    |New vaccine|New vaccine description||Active|False|2026/01/01\n");
+		try {
+			try (Mapping.Pin pin = Mapping.pin()) {
+				long reloaded = Mapping.reload(TerminologyProvider.directory(dir));
+				assertTrue(reloaded > version);
+				// A pinned conversion continues to use the tables it started with
+				assertEquals(display, Mapping.getDisplay("208", Systems.CVX));
+				assertEquals(version, Mapping.getTerminologyVersion());
+			}
+			assertEquals("Updated vaccine", Mapping.getDisplay("208", Systems.CVX));
+			assertEquals("New vaccine", Mapping.getDisplay("999999", "CVX"));
+			// Files not in the directory are loaded from the classpath
+			assertNotNull(Mapping.getDisplay("PFR", Systems.MVX));
+			assertNotNull(Mapping.getMapping("Gender"));
+			
+			// A failed reload leaves the current tables in place
+			long current = Mapping.getTerminologyVersion();
+			TerminologyProvider missing = TerminologyProvider.directory(dir.resolve("missing"));
+			assertThrows(IOException.class, () -> Mapping.reload(missing));
+			assertEquals(current, Mapping.getTerminologyVersion());
+		} finally {
+			Mapping.reload(TerminologyProvider.classpath());
+		}
+		assertEquals(display, Mapping.getDisplay("208", Systems.CVX));
+		assertNull(Mapping.getDisplay("999999", Systems.CVX));
+	}
+	
+	@Test
+	void testSharedCodings() {
+		// Codes from different messages share the string held by the terminology tables
+		Coding a = Mapping.map(new Coding("CVX", new String("208"), null));
+		Coding b = Mapping.map(new Coding("CVX", new String("208"), null));
+		assertEquals("208", a.getCode());
+		assertSame(a.getCode(), b.getCode());
+		assertSame(a.getSystem(), b.getSystem());
+		assertSame(a.getDisplay(), b.getDisplay());
+		assertEquals("CVX", a.getUserData(Mapping.ORIGINAL_SYSTEM));
+		
+		// Shared units are copied before they are returned
+		Coding mL = Units.toUcum("mL");
+		assertEquals("mL", mL.getCode());
+		mL.setDisplay("changed");
+		assertNotEquals("changed", Units.toUcum("mL").getDisplay());
+		assertEquals(Units.toUcum("mL").getDisplay(), Mapping.getDisplay("mL", Systems.UCUM));
+	}
+	
+	@ParameterizedTest
+	@CsvSource(delimiter = '|', value = {
+		"CVX|" + Systems.CVX,
+		"cvx|" + Systems.CVX,
+		"SNOMED_CT|" + Systems.SNOMED,
+		"urn:oid:" + Systems.LOINC_OID + "|" + Systems.LOINC,
+		Systems.MVX_OID + "|" + Systems.MVX,
+		"HL70001|http://terminology.hl7.org/CodeSystem/v2-0001",
+		"HL7-0001|http://terminology.hl7.org/CodeSystem/v2-0001",
+		"0001|http://terminology.hl7.org/CodeSystem/v2-0001",
+		"HL7|http://terminology.hl7.org/CodeSystem/v2-0003",
+		"urn:oid:1.2.3.4|1.2.3.4",
+		"http://example.com/system|http://example.com/system",
+		"99LOCAL|99LOCAL"
+	})
+	void testMapTableNameToSystem(String name, String system) {
+		assertEquals(system, Mapping.mapTableNameToSystem(name));
+		// Resolved names are cached, so check twice
+		assertEquals(system, Mapping.mapTableNameToSystem(name));
+	}
+	
+	@Test
+	void testSystemNames() {
+		assertTrue(Systems.getSystemNames("HL7-0001").contains("HL70001"));
+		assertTrue(Systems.getSystemNames("http://terminology.hl7.org/CodeSystem/v2-0203").contains("HL70203"));
+		assertTrue(Systems.getSystemNames("hl7 0001").contains("hl7 0001"));
+		assertEquals(1, Systems.getSystemNames("HL700001").size());
+		// Table numbers are not OIDs
+		assertEquals("2.16.840.1.113883.12.203", Systems.toOid(Systems.ID_TYPE));
+	}
 }
@@ -2,35 +2,56 @@ package test.gov.cdc.izgateway.v2tofhir;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.BufferedWriter;
 import java.io.FileWriter;
+import java.io.FilterWriter;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Stream;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.FastDateFormat;
 import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.r4.model.Attachment;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DocumentReference;
 import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.MessageHeader;
 import org.hl7.fhir.r4.model.Organization;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Provenance;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
 
@@ -38,8 +59,10 @@ import com.ainq.fhir.utils.PathUtils;
 
 import ca.uhn.fhir.fhirpath.IFhirPath;
 import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Composite;
 import ca.uhn.hl7v2.model.DataTypeException;
 import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.Primitive;
 import ca.uhn.hl7v2.model.Segment;
 import ca.uhn.hl7v2.model.Type;
 import ca.uhn.hl7v2.model.v251.datatype.ST;
@@ -47,19 +70,30 @@ import ca.uhn.hl7v2.model.v251.message.QBP_Q11;
 import ca.uhn.hl7v2.model.v251.segment.MSH;
 import ca.uhn.hl7v2.model.v251.segment.QPD;
 import ca.uhn.hl7v2.util.Terser;
+import gov.cdc.izgw.v2tofhir.converter.BatchConverter;
+import gov.cdc.izgw.v2tofhir.converter.ContentPolicy;
+import gov.cdc.izgw.v2tofhir.converter.ConversionCache;
+import gov.cdc.izgw.v2tofhir.converter.ConversionService;
 import gov.cdc.izgw.v2tofhir.converter.DatatypeConverter;
+import gov.cdc.izgw.v2tofhir.converter.IdStrategy;
 import gov.cdc.izgw.v2tofhir.converter.MessageParser;
 import gov.cdc.izgw.v2tofhir.annotation.ComesFrom;
 import gov.cdc.izgw.v2tofhir.annotation.Produces;
 import gov.cdc.izgw.v2tofhir.segment.AbstractSegmentParser;
+import gov.cdc.izgw.v2tofhir.segment.AbstractStructureParser;
 import gov.cdc.izgw.v2tofhir.segment.FieldHandler;
 import gov.cdc.izgw.v2tofhir.segment.IzDetail;
 import gov.cdc.izgw.v2tofhir.segment.PIDParser;
+import gov.cdc.izgw.v2tofhir.segment.ParserIndex;
 import gov.cdc.izgw.v2tofhir.segment.StructureParser;
+import gov.cdc.izgw.v2tofhir.utils.Er7Message;
+import gov.cdc.izgw.v2tofhir.utils.Er7Segment;
 import gov.cdc.izgw.v2tofhir.utils.Mapping;
+import gov.cdc.izgw.v2tofhir.utils.NdjsonExporter;
 import gov.cdc.izgw.v2tofhir.utils.ParserUtils;
 import gov.cdc.izgw.v2tofhir.utils.QBPUtils;
 import gov.cdc.izgw.v2tofhir.utils.TextUtils;
+import io.azam.ulidj.ULID;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
@@ -99,6 +133,434 @@ class MessageParserTests extends TestBase {
 		writeTheTests(testData, msg);
 	}
 	
+	@ParameterizedTest
+	@MethodSource("testTheData1")
+	void testContentPolicy(TestData testData) throws HL7Exception {
+		String text = testData.getTestData();
+		for (ContentPolicy policy: ContentPolicy.values()) {
+			MessageParser p = new MessageParser();
+			p.getContext().setContentPolicy(policy);
+			p.setContentStore(m -> "urn:test:message");
+			p.convert(text);
+			DocumentReference dr = p.getFirstResource(DocumentReference.class);
+			Attachment att = dr.getContentFirstRep().getAttachment();
+			assertEquals(policy.hasBytes(), att.hasData(), policy + " data");
+			assertEquals(policy.hasText(), dr.getContentFirstRep().hasExtension(MessageParser.ORIGINAL_TEXT), policy + " text");
+			if (policy.hasText()) {
+				// The text given to convert is kept as is.
+				assertEquals(text, dr.getContentFirstRep().getExtensionByUrl(MessageParser.ORIGINAL_TEXT).getValue().primitiveValue());
+			}
+			assertEquals(policy == ContentPolicy.REFERENCE, att.hasUrl(), policy + " url");
+		}
+	}
+	
+	@Test
+	void testConversionService() throws HL7Exception {
+		List<String> messages = TEST_MESSAGES.stream().map(TestData::getTestData).toList();
+		List<String> expected = new ArrayList<>();
+		MessageParser reused = newDeterministicParser();
+		for (String message: messages) {
+			// A new parser for each message, so that nothing can be left over from a previous conversion
+			MessageParser p = newDeterministicParser();
+			expected.add(toComparableJson(p.convert(message)));
+			reused.convert(message);
+			assertEquals(p.getContext().getProfileIds(), reused.getContext().getProfileIds());
+		}
+		List<Bundle> bundles;
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try (ConversionService service = new ConversionService(executor, 4, MessageParserTests::newDeterministicParser)) {
+			bundles = service.convertAll(messages);
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(expected.size(), bundles.size());
+		for (int i = 0; i < bundles.size(); i++) {
+			assertEquals(expected.get(i), toComparableJson(bundles.get(i)), "Message " + i);
+		}
+	}
+	
+	@Test
+	void testConversionCacheResults() throws HL7Exception {
+		List<String> messages = TEST_MESSAGES.stream().map(TestData::getTestData).toList();
+		List<String> expected = new ArrayList<>();
+		for (String message: messages) {
+			expected.add(toComparableJson(newDeterministicParser().convert(message)));
+		}
+		try {
+			ConversionCache.enable(10_000);
+			// Twice, so that the second pass converts from values cached in the first
+			for (int pass = 0; pass < 2; pass++) {
+				for (int i = 0; i < messages.size(); i++) {
+					assertEquals(expected.get(i), toComparableJson(newDeterministicParser().convert(messages.get(i))), "Message " + i);
+				}
+			}
+			assertTrue(ConversionCache.getHitCount() > 0);
+		} finally {
+			ConversionCache.disable();
+		}
+	}
+	
+	private static MessageParser newDeterministicParser() {
+		MessageParser p = new MessageParser();
+		p.setIdStrategy(IdStrategy.deterministic());
+		return p;
+	}
+	
+	/**
+	 * Encode a bundle as JSON, without the time each Provenance was recorded, which is the
+	 * only part of a conversion using deterministic ids that depends on when it was run.
+	 */
+	private static String toComparableJson(Bundle b) {
+		for (Bundle.BundleEntryComponent entry: b.getEntry()) {
+			if (entry.getResource() instanceof Provenance provenance) {
+				provenance.setRecorded(null);
+			}
+		}
+		return ctx.newJsonParser().encodeResourceToString(b);
+	}
+	
+	@Test
+	void testBatchConverter() throws IOException {
+		List<String> messages = TEST_MESSAGES.stream().map(TestData::getTestData).limit(20).toList();
+		StringBuilder batch = new StringBuilder("FHS|^~\\&|\r\nBHS|^~\\&|\r\n");
+		for (String message: messages) {
+			// Use LF between segments to verify line ending handling
+			batch.append(message.replace("\r", "\n")).append("\n");
+		}
+		batch.append("MSH|not a message\rBTS|21\rFTS|1\r");
+		
+		List<BatchConverter.Result> results = new ArrayList<>();
+		int count;
+		try (ConversionService service = new ConversionService(4)) {
+			count = new BatchConverter(service, 3).convert(new StringReader(batch.toString()), results::add);
+		}
+		assertEquals(messages.size() + 1, count);
+		assertEquals(count, results.size());
+		for (int i = 0; i < messages.size(); i++) {
+			BatchConverter.Result r = results.get(i);
+			assertEquals(i, r.getIndex());
+			assertEquals(StringUtils.strip(messages.get(i), "\r"), StringUtils.strip(r.getMessage(), "\r"));
+			assertNull(r.getError());
+			assertTrue(r.getBundle().hasEntry());
+		}
+		// The bad message is reported without stopping the batch.
+		assertNull(results.get(messages.size()).getBundle());
+		assertTrue(results.get(messages.size()).getError() instanceof HL7Exception);
+	}
+	
+	@Test
+	void testNdjsonExport(@TempDir Path dir) throws IOException, HL7Exception {
+		MessageParser p = new MessageParser();
+		Map<String, Integer> expected = new LinkedHashMap<>();
+		try (NdjsonExporter exporter = new NdjsonExporter(ctx, dir, 4096)) {
+			for (TestData testData: TEST_MESSAGES.subList(0, 10)) {
+				Bundle b = p.convert(testData.getTestData());
+				b.getEntry().forEach(e -> expected.merge(e.getResource().fhirType(), 1, Integer::sum));
+				exporter.write(b);
+			}
+			exporter.close();
+			Map<String, Integer> actual = new LinkedHashMap<>();
+			for (Path file: exporter.getFiles()) {
+				String type = StringUtils.substringBefore(file.getFileName().toString(), ".");
+				for (String line: Files.readAllLines(file)) {
+					assertEquals(type, ctx.newJsonParser().parseResource(line).fhirType());
+					actual.merge(type, 1, Integer::sum);
+				}
+			}
+			assertEquals(expected, actual);
+			// Files were rolled over at the size limit
+			assertTrue(exporter.getFiles().size() > expected.size());
+		}
+	}
+	
+	@Test
+	void testNdjsonFlush(@TempDir Path dir) throws IOException, HL7Exception {
+		int[] flushes = { 0 };
+		Bundle b = new MessageParser().convert(TEST_MESSAGES.get(0).getTestData());
+		try (NdjsonExporter exporter = new NdjsonExporter(ctx, dir, 0) {
+			@Override
+			protected Writer openWriter(Path file) throws IOException {
+				return new FilterWriter(super.openWriter(file)) {
+					@Override
+					public void flush() throws IOException {
+						flushes[0]++;
+						super.flush();
+					}
+				};
+			}
+		}) {
+			exporter.write(b);
+			exporter.write(b);
+			// Encoding resources does not flush the files
+			assertEquals(0, flushes[0]);
+			exporter.flush();
+			assertEquals(exporter.getFiles().size(), flushes[0]);
+		}
+	}
+	
+	@Test
+	void testParserIndex() {
+		assertFalse(ParserIndex.INDEXES.isEmpty());
+		MessageParser p = new MessageParser();
+		for (String segment: List.of("DSC", "ERR", "EVN", "MRG", "MSA", "MSH", "NK1", "OBX", "ORC", "PD1", "PID", "PV1", "QAK", "QID", "QPD", "RCP", "RXA", "RXR")) {
+			AbstractStructureParser parser = (AbstractStructureParser) p.getParser(segment);
+			assertEquals(segment + "Parser", parser.getClass().getSimpleName());
+			// The generated handlers must match those found by reflection
+			List<FieldHandler> expected = new ArrayList<>();
+			for (Method method: parser.getClass().getMethods()) {
+				for (ComesFrom from: method.getAnnotationsByType(ComesFrom.class)) {
+					expected.add(new FieldHandler(method, from, parser));
+				}
+			}
+			Collections.sort(expected);
+			List<FieldHandler> indexed = new ArrayList<>(ParserIndex.INDEXES.get(0).getFieldHandlers(parser));
+			Collections.sort(indexed);
+			assertEquals(expected.toString(), indexed.toString());
+		}
+	}
+	
+	@Test
+	void testStream() throws IOException, HL7Exception {
+		MessageParser p = new MessageParser();
+		for (TestData testData: TEST_MESSAGES) {
+			String text = testData.getTestData();
+			if (text.split("[\r\n]+MSH").length > 1) {
+				// stream() converts a single message
+				continue;
+			}
+			Map<String, Integer> expected = new TreeMap<>();
+			p.convert(text).getEntry().forEach(e -> expected.merge(e.getResource().fhirType(), 1, Integer::sum));
+			// Streaming does not retain the message content, so there is no DocumentReference or its Provenance
+			expected.remove("DocumentReference");
+			expected.merge("Provenance", -1, Integer::sum);
+			Map<String, Integer> actual = new TreeMap<>();
+			p.stream(new StringReader(text.replace("\r", "\n")), r -> actual.merge(r.fhirType(), 1, Integer::sum));
+			// Practitioners are only merged within an order
+			for (String type: List.of("Practitioner", "PractitionerRole")) {
+				assertTrue(actual.getOrDefault(type, 0) >= expected.getOrDefault(type, 0), type);
+				actual.remove(type);
+				expected.remove(type);
+			}
+			assertEquals(expected, actual, StringUtils.left(text, 100));
+		}
+		assertThrows(HL7Exception.class, () -> p.stream(new StringReader("PID|1\r"), r -> {}));
+		assertThrows(HL7Exception.class, () -> p.stream(new StringReader(TEST_MESSAGES.get(0).getTestData() + TEST_MESSAGES.get(1).getTestData()), r -> {}));
+	}
+	
+	@Test
+	void testIdStrategy() throws HL7Exception {
+		String text = TEST_MESSAGES.get(0).getTestData();
+		MessageParser p = new MessageParser();
+		
+		p.setIdStrategy(IdStrategy.deterministic());
+		List<String> first = getIds(p.convert(text));
+		assertEquals(first, getIds(p.convert(text)));
+		assertEquals(first.size(), new HashSet<>(first).size());
+		// A different message control id gives different ids
+		List<String> other = getIds(p.convert(text.replace("|RESULT-01|", "|RESULT-99|")));
+		assertTrue(Collections.disjoint(first, other));
+		
+		p.setIdStrategy(IdStrategy.counter());
+		List<String> counted = getIds(p.convert(text));
+		assertEquals("1", counted.get(0));
+		assertEquals(counted.size(), new HashSet<>(counted).size());
+		
+		p.setIdStrategy(null);
+		assertTrue(getIds(p.convert(text)).stream().allMatch(ULID::isValid));
+		String last = "";
+		for (int i = 0; i < 1000; i++) {
+			// Monotonic ULIDs increase even when created within the same millisecond
+			String id = IdStrategy.monotonicUlid().newId(p, "Patient");
+			assertTrue(last.compareTo(id) < 0);
+			last = id;
+		}
+	}
+	
+	@Test
+	void testProvenance() throws HL7Exception {
+		MessageParser p = new MessageParser();
+		Bundle b = p.convert(TEST_MESSAGES.get(0).getTestData());
+		List<String> types = getResourceTypes(b);
+		int first = types.indexOf("Provenance");
+		assertTrue(first > 0);
+		// Provenance is created when conversion is finished, after all other resources
+		assertTrue(types.subList(first, types.size()).stream().allMatch("Provenance"::equals));
+
+		MessageHeader mh = p.getFirstResource(MessageHeader.class);
+		Provenance prov = p.getProvenance(mh);
+		assertNotNull(prov);
+		assertSame(prov, mh.getUserData(Provenance.class.getName()));
+		assertEquals(mh.getIdElement().toUnqualifiedVersionless().getValue(), prov.getTargetFirstRep().getReference());
+		// Codings added by MSHParser to the provenance are kept
+		assertEquals(2, prov.getActivity().getCoding().size());
+		for (Provenance pr: p.getResources(Provenance.class)) {
+			assertNotNull(p.getResource(pr.getTargetFirstRep().getReferenceElement().getIdPart()));
+		}
+		for (Resource r: p.getResources(Resource.class)) {
+			if (r.getMeta().getSourceElement().hasExtension(MessageParser.ORIGINAL_TEXT)) {
+				// Resources updated by segments have provenance
+				assertNotNull(r.getUserData(Provenance.class.getName()), r.getId());
+			}
+		}
+	}
+
+	@Test
+	void testResourceLookup() {
+		MessageParser p = new MessageParser();
+		p.getContext().setStoringProvenance(false);
+		Provenance prov = p.createResource(Provenance.class, "prov");
+		Patient patient = p.createResource(Patient.class, "patient");
+		Organization org1 = p.createResource(Organization.class, "org1").setName("Org");
+		Organization org2 = p.createResource(Organization.class, "org2").setName("Org");
+		patient.addGeneralPractitioner(ParserUtils.toReference(org1, patient, "general-practitioner"));
+		patient.addGeneralPractitioner(ParserUtils.toReference(org2, patient, "general-practitioner"));
+		
+		// By identity: a resource already in the bundle is not added again
+		assertSame(patient, p.addResource(null, patient));
+		assertEquals(4, p.getBundle().getEntry().size());
+		
+		// By id
+		assertSame(patient, p.getResource("patient"));
+		assertSame(org2, p.getResource(Organization.class, "org2"));
+		assertNull(p.getResource("unknown"));
+		
+		// By class, including superclasses, in bundle order
+		assertEquals(List.of(org1, org2), p.getResources(Organization.class));
+		assertEquals(List.of(prov, patient, org1, org2), p.getResources(Resource.class));
+		assertSame(org1, p.getFirstResource(Organization.class));
+		assertSame(org2, p.getLastResource(Organization.class));
+		
+		// Lists by class are kept up to date as resources are added
+		Organization org3 = p.createResource(Organization.class, "org3");
+		assertSame(org3, p.getLastResource(Organization.class));
+		assertSame(org3, p.getLastResource(Resource.class));
+		
+		// Entries added directly to the bundle are found
+		Patient other = new Patient();
+		other.setId("other");
+		p.getBundle().addEntry().setResource(other);
+		assertSame(other, p.getResource("other"));
+		assertSame(other, p.getLastResource(Patient.class));
+		
+		// Reordering entries without changing their number is seen
+		assertSame(prov, p.getFirstResource(Resource.class));
+		p.getContext().setStoringProvenance(true);
+		p.sortProvenance(p.getBundle());
+		assertSame(patient, p.getFirstResource(Resource.class));
+		assertSame(prov, p.getLastResource(Resource.class));
+		
+		// Removing merged duplicates is seen
+		p.createBundle(Collections.emptyList());
+		assertEquals(List.of(org1, org3), p.getResources(Organization.class));
+		assertNull(p.getResource("org2"));
+		assertSame(org1, p.getResource("org1"));
+	}
+
+	private static List<String> getIds(Bundle b) {
+		List<String> ids = new ArrayList<>();
+		ids.add(b.getIdPart());
+		b.getEntry().forEach(e -> ids.add(e.getResource().getIdPart()));
+		return ids;
+	}
+	
+	@Test
+	void testEr7Message() throws HL7Exception {
+		MessageParser p = new MessageParser();
+		int compared = 0;
+		for (TestData testData: TEST_MESSAGES) {
+			String text = testData.getTestData();
+			Er7Message er7 = new Er7Message(text);
+			Set<Segment> segments = new LinkedHashSet<>();
+			ParserUtils.iterateSegments(p.getV2Parser().parse(text), segments);
+			Map<String, Integer> occurrences = new LinkedHashMap<>();
+			for (Segment segment: segments) {
+				if (segment.isEmpty()) {
+					continue;
+				}
+				int occurrence = occurrences.merge(segment.getName(), 1, Integer::sum) - 1;
+				Er7Segment seg = er7.getSegments(segment.getName()).get(occurrence);
+				boolean header = "MSH".equals(segment.getName());
+				if (!header) {
+					assertFalse(seg.isEmpty(), seg.toString());
+					if (!seg.toString().matches(".*[|^~&]\\s.*")) {
+						// Without leading whitespace, which HAPI removes from text values, the text encodes as HAPI encodes the segment
+						assertEquals(segment.encode(), seg.encode());
+					}
+				}
+				// Values read from the text must match those parsed by HAPI
+				for (int field = 1; field <= segment.numFields(); field++) {
+					Type[] reps = segment.getField(field);
+					if (!header) {
+						assertEquals(reps.length, seg.getRepetitionCount(field), seg + " " + field);
+					}
+					for (int rep = 0; rep < reps.length; rep++) {
+						if (reps[rep] instanceof Primitive prim) {
+							assertEquals(prim.getValue(), seg.getValue(field, rep, 1, 1), seg + " " + field);
+							compared++;
+						} else if (reps[rep] instanceof Composite comp) {
+							Type[] components = comp.getComponents();
+							for (int c = 0; c < components.length; c++) {
+								if (components[c] instanceof Primitive prim) {
+									assertEquals(prim.getValue(), seg.getValue(field, rep, c + 1, 1), seg + " " + field + "." + (c + 1));
+									compared++;
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+		assertTrue(compared > 0);
+		
+		Er7Message er7 = new Er7Message("MSH|^~\\&|SEND\rPID|1||123^^^A&1.2&ISO~456^^^B~||Doe^John\\T\\Jane^^&||20240102|\n");
+		assertEquals(2, er7.size());
+		Er7Segment msh = er7.getSegment("MSH");
+		assertEquals("|", msh.getValue(1));
+		assertEquals("^~\\&", msh.getValue(2));
+		assertEquals("SEND", msh.getValue(3));
+		Er7Segment pid = er7.getSegment("PID");
+		assertEquals(8, pid.getFieldCount());
+		assertEquals(2, pid.getRepetitionCount(3));
+		assertEquals("1.2", pid.getValue(3, 0, 4, 2));
+		assertEquals("456", pid.getValue(3, 1, 1, 1));
+		assertEquals("Doe", pid.getValue(5));
+		assertEquals("John&Jane", pid.getValue(5, 2));
+		assertEquals("", pid.get(3, 2).toString());
+		assertNull(pid.getValue(8));
+		assertEquals("PID|1||123^^^A&1.2&ISO~456^^^B||Doe^John\\T\\Jane||20240102", pid.encode());
+		assertTrue(new Er7Message("PID|~|^&|").get(0).isEmpty());
+	}
+	
+	@Test
+	void testParsingText() throws IOException, HL7Exception {
+		List<String> texts = new ArrayList<>(TEST_MESSAGES.stream().map(TestData::getTestData).toList());
+		// HAPI V2 removes leading whitespace from text values
+		texts.add("MSH|^~\\&|A|B|C|D|20240101||VXU^V04^VXU_V04|1|P|2.5.1\rPID|1|| 123^^^MYEHR^MR~||  Doe^ John^&|| 20240101|F|||| ^PRN^PH^^^555^5551212\r");
+		int compared = 0;
+		for (String text: texts) {
+			if (text.split("[\r\n]+MSH").length > 1) {
+				// stream() converts a single message
+				continue;
+			}
+			Bundle expected = new Bundle();
+			newDeterministicParser().stream(new StringReader(text), r -> expected.addEntry().setResource(r));
+			Bundle actual = new Bundle();
+			MessageParser p = newDeterministicParser();
+			p.setParsingText(true);
+			p.stream(new StringReader(text), r -> actual.addEntry().setResource(r));
+			// Reading PID from its text creates the same resources as HAPI V2 parsing it
+			assertEquals(toComparableJson(expected), toComparableJson(actual), StringUtils.left(text, 100));
+			if (actual.getEntry().stream().anyMatch(e -> e.getResource() instanceof Patient)) {
+				compared++;
+			}
+		}
+		assertTrue(compared > 0);
+	}
+	
+	private static List<String> getResourceTypes(Bundle b) {
+		return b.getEntry().stream().map(e -> e.getResource().fhirType()).toList();
+	}
+	
 	private static MessageParser MP = new MessageParser();
 	private static BufferedWriter bw = null;
 	